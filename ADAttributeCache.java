@@ -0,0 +1,237 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache for the attribute maps produced by ADUserLookup.
+ * Entries are kept under the users sAMAccountName and mail so a lookup by
+ * either one finds the same entry. Keys are case insensitive like they are in AD.
+ *
+ * Entries expire after a configurable time to live and the least recently
+ * used entry is dropped once the cache is full. Users that were not found are
+ * cached as well, with their own (usually shorter) time to live, so repeated
+ * lookups of unknown accounts do not go to AD every time.
+ *
+ * Cached maps are unmodifiable and shared between callers.
+ * @author DCConway
+ */
+public class ADAttributeCache {
+
+    private static final Map<String,String> NOT_FOUND = Collections.emptyMap();
+
+    private final int maxEntries;
+    private final LinkedHashMap<String,CacheEntry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long ttlMillis;
+    private volatile long negativeTtlMillis;
+
+    /**
+     * @param maxEntries - maximum number of keys held, each user takes up to two.
+     * @param ttlMillis - how long a found user stays cached.
+     * @param negativeTtlMillis - how long a user that was not found stays cached, 0 disables negative caching.
+     */
+    public ADAttributeCache(final int maxEntries, long ttlMillis, long negativeTtlMillis){
+        if(maxEntries < 1){
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new LinkedHashMap<String,CacheEntry>(Math.min(maxEntries, 1024), 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) {
+                return size() > ADAttributeCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached attributes of a user.
+     *
+     * @param searchValue - sAMAccountName or mail.
+     * @param searchBy - "username" or "email".
+     * @return the cached map, an empty map if the user is cached as not found,
+     * or null if there is no live entry.
+     */
+    public Map<String,String> get(String searchValue, String searchBy){
+        String key = key(searchValue, searchBy);
+        long now = System.currentTimeMillis();
+        synchronized(entries){
+            CacheEntry entry = entries.get(key);
+            if(entry != null){
+                if(entry.expiresAt > now){
+                    hits.incrementAndGet();
+                    return entry.attributes;
+                }
+                removeEntry(entry);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the attributes of a user under the value that was searched for
+     * and also under the users userName and mail if the map has them.
+     *
+     * @param searchValue
+     * @param searchBy
+     * @param attributes - attribute map as built by ADUserLookup, it is copied.
+     * ADUserLookup lays it out by its attribute mapping on the first hit.
+     * @return the unmodifiable map that is now cached.
+     */
+    public Map<String,String> put(String searchValue, String searchBy, Map<String,String> attributes){
+        Map<String,String> shared = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        String[] keys = new String[]{
+            key(searchValue, searchBy),
+            key(attributes.get("userName"), "username"),
+            key(attributes.get("mail"), "email")
+        };
+        store(new CacheEntry(shared, keys, System.currentTimeMillis() + ttlMillis));
+        return shared;
+    }
+
+    /**
+     * Caches a user record under the value that was searched for and also
+     * under the users userName and mail. The record is not copied.
+     *
+     * @param searchValue
+     * @param searchBy
+     * @param record
+     * @return the record as an unmodifiable map, this is what get returns.
+     */
+    public Map<String,String> put(String searchValue, String searchBy, ADUserRecord record){
+        Map<String,String> shared = record.asMap();
+        String[] keys = new String[]{
+            key(searchValue, searchBy),
+            key(record.get("userName"), "username"),
+            key(record.get("mail"), "email")
+        };
+        store(new CacheEntry(shared, keys, System.currentTimeMillis() + ttlMillis));
+        return shared;
+    }
+
+    /**
+     * Records that no user exists for the value.
+     *
+     * @param searchValue
+     * @param searchBy
+     */
+    public void putNotFound(String searchValue, String searchBy){
+        if(negativeTtlMillis <= 0){
+            return;
+        }
+        store(new CacheEntry(NOT_FOUND, new String[]{key(searchValue, searchBy)}, System.currentTimeMillis() + negativeTtlMillis));
+    }
+
+    /**
+     * Removes a user from the cache, including the entries kept under its
+     * other name.
+     *
+     * @param searchValue
+     * @param searchBy
+     */
+    public void invalidate(String searchValue, String searchBy){
+        String key = key(searchValue, searchBy);
+        synchronized(entries){
+            CacheEntry entry = entries.get(key);
+            if(entry != null){
+                removeEntry(entry);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void invalidateAll(){
+        synchronized(entries){
+            entries.clear();
+        }
+    }
+
+    private void store(CacheEntry entry){
+        synchronized(entries){
+            for(String key : entry.keys){
+                if(key == null){
+                    continue;
+                }
+                CacheEntry previous = entries.put(key, entry);
+                if(previous != null && previous != entry){
+                    removeEntry(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all keys that still point at the entry. Caller holds the lock.
+     */
+    private void removeEntry(CacheEntry entry){
+        for(String key : entry.keys){
+            if(key != null && entries.get(key) == entry){
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Cache key for a value, null when the value is empty.
+     */
+    static String key(String searchValue, String searchBy){
+        if(searchValue == null || searchValue.trim().isEmpty()){
+            return null;
+        }
+        return searchBy.toLowerCase(Locale.ROOT) + ":" + searchValue.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public int size(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    public void setNegativeTtlMillis(long negativeTtlMillis) {
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    private static final class CacheEntry {
+
+        private final Map<String,String> attributes;
+        private final String[] keys;
+        private final long expiresAt;
+
+        CacheEntry(Map<String,String> attributes, String[] keys, long expiresAt){
+            this.attributes = attributes;
+            this.keys = keys;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
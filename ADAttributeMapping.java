@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+/**
+ * Describes which AD attributes ADUserLookup reads and the keys they are
+ * returned under, e.g. givenName is returned as firstName.
+ * The table is compiled once into parallel arrays so mapping a search result
+ * is a single pass over the attributes without any string parsing. Only the
+ * mapped attributes are requested from AD.
+ *
+ * A user in the AD may or may not have a value for all of the attributes
+ * that are needed for the application. In order to prevent bad behavior
+ * by the application if there is no value for an attribute then an
+ * empty String is used for that attribute.
+ * @author DCConway
+ */
+public final class ADAttributeMapping {
+
+    /**
+     * The attributes returned by {@link ADUserLookup#getUserAttributesMap(String)}.
+     */
+    public static final ADAttributeMapping DEFAULT = new ADAttributeMapping(new String[][]{
+        {"userName", "samaccountname"},
+        {"firstName", "givenname"},
+        {"lastName", "sn"},
+        {"mail", "mail"},
+        {"displayName", "cn"},
+        {"city", "l"},
+        {"street", "StreetAddress"},
+        {"state", "st"},
+        {"zip", "PostalCode"},
+        {"phone", "telephoneNumber"},
+        // CTR/CIV
+        {"title", "Title"},
+        // country abbreviation
+        {"country", "c"},
+        // country name full
+        {"countryName", "co"},
+        // middle initial
+        {"mi", "Initials"},
+        // might not exist for all users
+        {"company", "Company"},
+        {"department", "Department"}
+    });
+
+    private final String[] keys;
+    private final String[] ldapAttributes;
+    private final Map<String,Integer> indexByKey;
+
+    /**
+     * @param table - one {key, ldap attribute} pair per attribute, in the order
+     * the values are stored in an ADUserRecord.
+     */
+    public ADAttributeMapping(String[][] table){
+        this.keys = new String[table.length];
+        this.ldapAttributes = new String[table.length];
+        HashMap<String,Integer> index = new HashMap<>();
+        for(int i = 0; i < table.length; i++){
+            keys[i] = table[i][0];
+            ldapAttributes[i] = table[i][1];
+            if(index.put(keys[i], i) != null){
+                throw new IllegalArgumentException("Duplicate key: " + keys[i]);
+            }
+        }
+        this.indexByKey = Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Maps the attributes of one search result.
+     *
+     * @param attrs
+     * @return
+     */
+    public ADUserRecord project(Attributes attrs){
+        String[] values = new String[keys.length];
+        int missing = 0;
+        for(int i = 0; i < values.length; i++){
+            String value = stringValue(attrs.get(ldapAttributes[i]));
+            if(value == null){
+                value = "";
+                missing++;
+            }
+            values[i] = value;
+        }
+        ADUserRecord record = new ADUserRecord(this, values);
+        if(missing > 0){
+            logMissing(record);
+        }
+        return record;
+    }
+
+    /**
+     * Lays out an attribute map keyed like getUserAttributesMap, e.g. one
+     * cached with ADAttributeCache.put. Keys the mapping does not have are
+     * dropped, missing ones are empty.
+     *
+     * @param attributes
+     * @return
+     */
+    public ADUserRecord project(Map<String,String> attributes){
+        String[] values = new String[keys.length];
+        for(int i = 0; i < values.length; i++){
+            String value = attributes.get(keys[i]);
+            values[i] = value == null ? "" : value;
+        }
+        return new ADUserRecord(this, values);
+    }
+
+    private void logMissing(ADUserRecord record){
+        Logger logger = Logger.getLogger(ADUserLookup.class.getName());
+        if(!logger.isLoggable(Level.FINE)){
+            return;
+        }
+        StringBuilder names = new StringBuilder();
+        for(int i = 0; i < keys.length; i++){
+            if(record.get(i).isEmpty()){
+                names.append(names.length() == 0 ? "" : ", ").append(keys[i]);
+            }
+        }
+        logger.log(Level.FINE, "{0} not found for user: {1}", new Object[]{names, record.get(0)});
+    }
+
+    /**
+     * First value of an attribute as a String.
+     *
+     * @param attr - may be null.
+     * @return the value or null when the attribute has no value.
+     */
+    public static String stringValue(Attribute attr){
+        // get() throws NoSuchElementException, not NamingException, when there is no value
+        if(attr == null || attr.size() == 0){
+            return null;
+        }
+        try {
+            Object value = attr.get();
+            return value == null ? null : value.toString();
+        } catch (NamingException ex) {
+            return null;
+        }
+    }
+
+    public int size(){
+        return keys.length;
+    }
+
+    public String getKey(int index){
+        return keys[index];
+    }
+
+    public String getLdapAttribute(int index){
+        return ldapAttributes[index];
+    }
+
+    /**
+     * @param key
+     * @return position of the key in a record or -1.
+     */
+    public int indexOf(Object key){
+        Integer index = indexByKey.get(key);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the LDAP attributes to request with SearchControls.setReturningAttributes.
+     */
+    public String[] getReturningAttributes(){
+        return Arrays.copyOf(ldapAttributes, ldapAttributes.length);
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of {@link ADUserLookup#getUserAttributesBatch(java.util.Collection, String)}.
+ * Every name that was asked for ends up in exactly one of found, missing or failed.
+ * Names are reported the way the caller passed them in.
+ * @author DCConway
+ */
+public class ADBatchResult {
+
+    private final Map<String,Map<String,String>> found = new LinkedHashMap<>();
+    private final Set<String> missing = new LinkedHashSet<>();
+    private final Set<String> failed = new LinkedHashSet<>();
+
+    void addFound(String name, Map<String,String> attributes){
+        found.put(name, attributes);
+    }
+
+    void addMissing(String name){
+        missing.add(name);
+    }
+
+    void addFailed(String name){
+        failed.add(name);
+    }
+
+    /**
+     * @return name to attribute map of every user that was found. The attribute
+     * maps hold the same keys as {@link ADUserLookup#getUserAttributesMap(String)}.
+     */
+    public Map<String,Map<String,String>> getFound() {
+        return Collections.unmodifiableMap(found);
+    }
+
+    /**
+     * @return names that do not exist in AD.
+     */
+    public Set<String> getMissing() {
+        return Collections.unmodifiableSet(missing);
+    }
+
+    /**
+     * @return names whose search failed, e.g. because AD could not be reached.
+     * Looking them up again may succeed.
+     */
+    public Set<String> getFailed() {
+        return Collections.unmodifiableSet(failed);
+    }
+
+    /**
+     * @param name
+     * @return the attributes of the user or null if it was not found.
+     */
+    public Map<String,String> get(String name){
+        return found.get(name);
+    }
+}
@@ -0,0 +1,539 @@
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Bounded pool of LDAP connections to Microsoft AD.
+ * A JNDI context is not safe to use from more than one thread at a time, so
+ * instead of a single shared context each lookup borrows a connection, runs
+ * its search and hands the connection back. Connections stay bound between
+ * borrows which saves the SSL handshake and bind on every request.
+ *
+ * Connections are validated on borrow once they have been idle for a while,
+ * evicted by a background thread when idle too long and retired once they
+ * reach their max lifetime.
+ *
+ * The pool also keeps the latency and error rate of the server it connects
+ * to, which ADServerBalancer uses to pick a domain controller.
+ *
+ * Usage:
+ * <pre>
+ * try(ADConnectionPool.PooledConnection conn = pool.borrow()){
+ *     conn.getContext().search(...);
+ * }catch(CommunicationException ex){
+ *     // the connection was invalidated, borrow again to reconnect
+ * }
+ * </pre>
+ * @author DCConway
+ */
+public class ADConnectionPool implements ADConnectionSource, ADConnectionPoolMXBean {
+
+    private static final String[] VALIDATION_ATTRIBUTES = {"objectClass"};
+    private static final AtomicLong POOL_COUNT = new AtomicLong();
+
+    private final Hashtable<String,Object> envConfig;
+    private final int maxSize;
+    private final Semaphore permits;
+    // most recently used connection sits at the head so the warmest one is reused first
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final ADLatencyHistogram connectLatency = new ADLatencyHistogram();
+    private volatile long borrowTimeoutMillis = 10000;
+    private volatile long validateAfterIdleMillis = 30000;
+    private volatile long maxIdleMillis = 300000;
+    private volatile long maxLifetimeMillis = 1800000;
+    private volatile boolean closed;
+    // server health, guarded by healthLock
+    private final Object healthLock = new Object();
+    private double latencyNanos;
+    private double errorRate;
+    private int consecutiveFailures;
+    private long lastFailureAt;
+    private long trialAt;
+
+    /**
+     * Creates a pool of at most maxSize connections. No connection is opened
+     * until the first borrow.
+     *
+     * @param envConfig - JNDI environment, see {@link ADUserLookup#ADUserLookup(String, String[], Hashtable)}
+     * @param maxSize - maximum number of connections open at the same time.
+     */
+    public ADConnectionPool(Hashtable<String,?> envConfig, int maxSize){
+        if(maxSize < 1){
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.envConfig = new Hashtable<String,Object>(envConfig);
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        final String threadName = "ADConnectionPool-evictor-" + POOL_COUNT.incrementAndGet();
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if none is idle.
+     * Blocks for up to the borrow timeout when all connections are in use.
+     * The connection must be handed back with {@link PooledConnection#close()}.
+     *
+     * @return
+     * @throws NamingException if a connection can not be opened or none became
+     * available before the borrow timeout.
+     */
+    @Override
+    public PooledConnection borrow() throws NamingException {
+        if(closed){
+            throw new ServiceUnavailableException("LDAP connection pool is closed");
+        }
+        try {
+            if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+                throw new ServiceUnavailableException("Timed out waiting for an LDAP connection, all " + maxSize + " in use");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted waiting for an LDAP connection");
+        }
+        try {
+            PooledConnection conn;
+            while((conn = idle.pollFirst()) != null){
+                long now = System.currentTimeMillis();
+                if(isExpired(conn, now)){
+                    destroy(conn);
+                }else if(now - conn.lastUsed > validateAfterIdleMillis && !validate(conn)){
+                    destroy(conn);
+                }else{
+                    conn.borrowed = true;
+                    conn.broken = false;
+                    return conn;
+                }
+            }
+            Hashtable<String,Object> env;
+            synchronized(envConfig){
+                env = new Hashtable<>(envConfig);
+            }
+            long start = System.nanoTime();
+            try {
+                conn = new PooledConnection(this, new InitialLdapContext(env, null));
+            } catch (NamingException ex) {
+                connectFailures.incrementAndGet();
+                recordFailure();
+                throw ex;
+            } finally {
+                connectLatency.record(System.nanoTime() - start);
+            }
+            created.incrementAndGet();
+            conn.borrowed = true;
+            return conn;
+        } catch (NamingException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Broken or expired connections are closed
+     * instead of being reused.
+     */
+    void release(PooledConnection conn){
+        if(!conn.borrowed){
+            return;
+        }
+        conn.borrowed = false;
+        conn.lastUsed = System.currentTimeMillis();
+        try {
+            if(closed || conn.broken || isExpired(conn, conn.lastUsed)){
+                destroy(conn);
+            }else{
+                idle.offerFirst(conn);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes every connection that has been idle longer than the max idle time
+     * or has outlived the max lifetime. Runs periodically on a daemon thread.
+     */
+    public void evictIdle(){
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while(it.hasNext()){
+            PooledConnection conn = it.next();
+            if(isExpired(conn, now) && idle.removeFirstOccurrence(conn)){
+                destroy(conn);
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops handing out new ones. Connections
+     * that are currently borrowed are closed when they are returned.
+     */
+    @Override
+    public void close(){
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection conn;
+        while((conn = idle.pollFirst()) != null){
+            destroy(conn);
+        }
+    }
+
+    private boolean isExpired(PooledConnection conn, long now){
+        return now - conn.createdAt > maxLifetimeMillis
+                || (!conn.borrowed && now - conn.lastUsed > maxIdleMillis);
+    }
+
+    /**
+     * Cheap round trip that reads the objectClass of the root DSE. A server
+     * that dropped the connection while it sat idle fails here instead of in
+     * the caller's search.
+     */
+    private boolean validate(PooledConnection conn){
+        try {
+            conn.context.getAttributes("", VALIDATION_ATTRIBUTES);
+            return true;
+        } catch (NamingException ex) {
+            Logger.getLogger(ADConnectionPool.class.getName()).log(Level.FINE, "Discarding stale LDAP connection", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Borrows a connection and reads the root DSE to measure the round trip.
+     * Used by health probes, the result is recorded like a search.
+     *
+     * @return round trip time in nanoseconds.
+     * @throws NamingException
+     */
+    public long probe() throws NamingException {
+        try (PooledConnection conn = borrow()) {
+            long start = System.nanoTime();
+            try {
+                conn.context.getAttributes("", VALIDATION_ATTRIBUTES);
+            } catch (NamingException ex) {
+                conn.invalidate();
+                recordFailure();
+                throw ex;
+            }
+            long elapsed = System.nanoTime() - start;
+            recordSuccess(elapsed);
+            return elapsed;
+        }
+    }
+
+    /**
+     * Records a successful request and its round trip time.
+     */
+    void recordSuccess(long nanos){
+        synchronized(healthLock){
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + (nanos - latencyNanos) * 0.2;
+            errorRate = errorRate * 0.8;
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Records a failed connect or a connection that broke during a request.
+     */
+    void recordFailure(){
+        synchronized(healthLock){
+            errorRate = errorRate * 0.8 + 0.2;
+            consecutiveFailures++;
+            lastFailureAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Claims the single trial request a DC with an open circuit gets once it
+     * has had no failure and handed out no trial for openMillis. The trial's
+     * recorded success or failure decides the circuit; a trial that records
+     * neither is handed out again after another openMillis.
+     *
+     * @return true if the caller holds the trial.
+     */
+    boolean claimTrial(long openMillis, long now){
+        synchronized(healthLock){
+            if(now - Math.max(lastFailureAt, trialAt) <= openMillis){
+                return false;
+            }
+            trialAt = now;
+            return true;
+        }
+    }
+
+    /**
+     * Whether a request failed because of the connection or the server rather
+     * than the request: the connection broke or no response came within the
+     * read timeout. JNDI only says the latter in the message. An AD time
+     * limit is the server answering and does not count.
+     */
+    static boolean isConnectionFailure(NamingException ex){
+        if(ex instanceof CommunicationException || ex instanceof ServiceUnavailableException){
+            return true;
+        }
+        String message = ex.getMessage();
+        return !(ex instanceof TimeLimitExceededException) && message != null && message.contains("read timed out");
+    }
+
+    private void destroy(PooledConnection conn){
+        destroyed.incrementAndGet();
+        try {
+            conn.context.close();
+        } catch (NamingException ex) {
+            Logger.getLogger(ADConnectionPool.class.getName()).log(Level.FINE, "Exception closing LDAP Connection", ex);
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the server this pool connects to.
+     */
+    public String getProviderUrl() {
+        synchronized(envConfig){
+            return String.valueOf(envConfig.get(Context.PROVIDER_URL));
+        }
+    }
+
+    /**
+     * @return moving average of the request round trip in milliseconds, 0 until measured.
+     */
+    public double getLatencyMillis() {
+        synchronized(healthLock){
+            return latencyNanos / 1000000.0;
+        }
+    }
+
+    /**
+     * @return moving average of the share of failed requests, between 0 and 1.
+     */
+    public double getErrorRate() {
+        synchronized(healthLock){
+            return errorRate;
+        }
+    }
+
+    public int getConsecutiveFailures() {
+        synchronized(healthLock){
+            return consecutiveFailures;
+        }
+    }
+
+    public long getLastFailureMillis() {
+        synchronized(healthLock){
+            return lastFailureAt;
+        }
+    }
+
+    /**
+     * @return when the last trial request of an open circuit was handed out, 0 if never.
+     */
+    public long getLastTrialMillis() {
+        synchronized(healthLock){
+            return trialAt;
+        }
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getDestroyedCount() {
+        return destroyed.get();
+    }
+
+    /**
+     * @return number of connections that could not be opened.
+     */
+    @Override
+    public long getConnectFailureCount() {
+        return connectFailures.get();
+    }
+
+    /**
+     * @return time taken to open and bind new connections, failed attempts included.
+     */
+    @Override
+    public ADLatencyHistogram.Snapshot getConnectLatency() {
+        return connectLatency.snapshot();
+    }
+
+    /**
+     * Starts the connect statistics from zero again.
+     */
+    public void resetStatistics() {
+        connectFailures.set(0);
+        connectLatency.reset();
+    }
+
+    /**
+     * @param connectTimeoutMillis - how long opening a new connection may take
+     * before it fails, 0 uses the JNDI default which waits for the OS. Applies
+     * to connections opened from now on.
+     */
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        setEnvTimeout("com.sun.jndi.ldap.connect.timeout", connectTimeoutMillis);
+    }
+
+    /**
+     * @param readTimeoutMillis - how long a connection waits for the response
+     * to a request before it fails, 0 waits forever. Applies to connections
+     * opened from now on.
+     */
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        setEnvTimeout("com.sun.jndi.ldap.read.timeout", readTimeoutMillis);
+    }
+
+    private void setEnvTimeout(String property, long millis) {
+        synchronized(envConfig){
+            if(millis > 0){
+                envConfig.put(property, Long.toString(millis));
+            }else{
+                envConfig.remove(property);
+            }
+        }
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    /**
+     * @param borrowTimeoutMillis - how long borrow waits for a free connection. Default 10s.
+     */
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    public long getValidateAfterIdleMillis() {
+        return validateAfterIdleMillis;
+    }
+
+    /**
+     * @param validateAfterIdleMillis - connections idle longer than this are
+     * validated before they are handed out. Default 30s.
+     */
+    public void setValidateAfterIdleMillis(long validateAfterIdleMillis) {
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    /**
+     * @param maxIdleMillis - idle connections are closed after this long. Default 5 minutes.
+     */
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public long getMaxLifetimeMillis() {
+        return maxLifetimeMillis;
+    }
+
+    /**
+     * @param maxLifetimeMillis - connections are retired after this long even
+     * when busy so load spreads again after a DC restart. Default 30 minutes.
+     */
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    /**
+     * A connection borrowed from the pool. Only the borrowing thread may use
+     * the context, and only until close is called.
+     */
+    public static final class PooledConnection implements AutoCloseable {
+
+        private final ADConnectionPool pool;
+        private final LdapContext context;
+        private final long createdAt;
+        private volatile long lastUsed;
+        private volatile boolean borrowed;
+        private volatile boolean broken;
+
+        private PooledConnection(ADConnectionPool pool, LdapContext context){
+            this.pool = pool;
+            this.context = context;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = this.createdAt;
+        }
+
+        public LdapContext getContext() {
+            return context;
+        }
+
+        /**
+         * Marks the connection as unusable, e.g. after a CommunicationException.
+         * It is closed instead of being returned to the pool.
+         */
+        public void invalidate() {
+            this.broken = true;
+        }
+
+        /**
+         * Records that a request on this connection succeeded and how long it took.
+         */
+        void recordSuccess(long nanos) {
+            pool.recordSuccess(nanos);
+        }
+
+        /**
+         * Records that the server failed a request on this connection.
+         */
+        void recordFailure() {
+            pool.recordFailure();
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * JMX view of an {@link ADConnectionPool}, registered by
+ * {@link ADLookupMetrics#register(String)} once per domain controller.
+ * @author DCConway
+ */
+public interface ADConnectionPoolMXBean {
+
+    String getProviderUrl();
+
+    double getLatencyMillis();
+
+    double getErrorRate();
+
+    int getConsecutiveFailures();
+
+    long getLastFailureMillis();
+
+    int getActiveCount();
+
+    int getIdleCount();
+
+    int getMaxSize();
+
+    long getCreatedCount();
+
+    long getDestroyedCount();
+
+    long getConnectFailureCount();
+
+    ADLatencyHistogram.Snapshot getConnectLatency();
+}
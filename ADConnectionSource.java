@@ -0,0 +1,29 @@
+import javax.naming.NamingException;
+
+/**
+ * Where ADUserLookup gets its LDAP connections from. Either a single
+ * {@link ADConnectionPool} or an {@link ADServerBalancer} over several domain
+ * controllers.
+ * @author DCConway
+ */
+public interface ADConnectionSource {
+
+    /**
+     * Borrows a connection, it must be handed back with
+     * {@link ADConnectionPool.PooledConnection#close()}.
+     *
+     * @return
+     * @throws NamingException
+     */
+    ADConnectionPool.PooledConnection borrow() throws NamingException;
+
+    /**
+     * @return maximum number of connections that can be borrowed at the same time.
+     */
+    int getMaxSize();
+
+    /**
+     * Closes all connections.
+     */
+    void close();
+}
@@ -0,0 +1,497 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Local copy of the user attributes served by ADUserLookup, for read heavy
+ * applications that should not query AD on every lookup.
+ *
+ * The replica is filled once with a paged search over all users and then
+ * kept current by periodically asking for the users whose uSNChanged is
+ * higher than the highest one seen so far. After every change the replica is
+ * written to a snapshot file which is memory mapped and read back on the next
+ * start, so a restarted node is warm without a full load.
+ *
+ * uSNChanged is local to a domain controller, the lookup used by the replica
+ * should therefore always talk to the same DC (a single pool, not a balancer).
+ * Incremental syncs do not see deleted users, a full reload on a longer
+ * interval removes them.
+ *
+ * Usage:
+ * <pre>
+ * ADDirectoryReplica replica = new ADDirectoryReplica(lookup, new File("/var/cache/app/ad-users.bin"));
+ * replica.start(5 * 60 * 1000, 24 * 60 * 60 * 1000);
+ * lookup.setReplica(replica);
+ * </pre>
+ * @author DCConway
+ */
+public class ADDirectoryReplica {
+
+    /**
+     * Told about changes to the replica, on the sync thread.
+     */
+    public interface Listener {
+
+        /**
+         * The replica was replaced by a full load or a snapshot.
+         */
+        void reloaded(ADDirectoryReplica replica);
+
+        /**
+         * Users changed in an incremental sync.
+         *
+         * @param previous - the old record of each user, null for new users.
+         * @param current - the new record of each user, same order as previous.
+         */
+        void usersChanged(List<ADUserRecord> previous, List<ADUserRecord> current);
+    }
+
+    private static final int MAGIC = 0x41445250;
+    private static final int VERSION = 1;
+    private static final String USN_ATTRIBUTE = "uSNChanged";
+
+    private final ADUserLookup lookup;
+    private final File snapshotFile;
+    private volatile Index index;
+    private volatile int pageSize = 500;
+    private volatile long lastFullLoad;
+    private volatile long lastSync;
+    private ScheduledExecutorService scheduler;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param lookup - lookup that reads from AD, its attribute mapping defines the replicated attributes.
+     * @param snapshotFile - where the replica is persisted, null keeps it in memory only.
+     */
+    public ADDirectoryReplica(ADUserLookup lookup, File snapshotFile){
+        this.lookup = lookup;
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Loads the snapshot, or does a full load if there is none, and schedules
+     * the incremental syncs and full reloads on a daemon thread.
+     *
+     * @param syncIntervalMillis - time between incremental syncs.
+     * @param fullReloadIntervalMillis - time between full reloads, 0 for never.
+     */
+    public synchronized void start(long syncIntervalMillis, final long fullReloadIntervalMillis){
+        if(scheduler != null){
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ADDirectoryReplica-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(!loadSnapshot()){
+                        fullLoad();
+                    }
+                } catch (IOException | NamingException | RuntimeException ex) {
+                    Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.SEVERE, "Initial load of the AD replica failed", ex);
+                }
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(index == null || (fullReloadIntervalMillis > 0
+                            && System.currentTimeMillis() - lastFullLoad > fullReloadIntervalMillis)){
+                        fullLoad();
+                    }else{
+                        sync();
+                    }
+                } catch (NamingException | RuntimeException ex) {
+                    Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.SEVERE, "AD replica sync failed", ex);
+                }
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduled syncs. The replica keeps serving what it has.
+     */
+    public synchronized void stop(){
+        if(scheduler != null){
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Replaces the replica with a fresh copy of all users and saves the snapshot.
+     *
+     * @throws NamingException
+     */
+    public synchronized void fullLoad() throws NamingException {
+        long start = System.currentTimeMillis();
+        ADAttributeMapping mapping = lookup.getAttributeMapping();
+        Map<String,Entry> users = new HashMap<>();
+        long highestUsn = read(mapping, "(samaccountname=*)", users);
+        Index fresh = new Index(mapping, highestUsn);
+        for(Map.Entry<String,Entry> user : users.entrySet()){
+            fresh.put(user.getKey(), user.getValue().record, user.getValue().usn);
+        }
+        this.index = fresh;
+        this.lastFullLoad = start;
+        this.lastSync = start;
+        Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.INFO, "AD replica loaded {0} users in {1} ms",
+                new Object[]{fresh.byDn.size(), System.currentTimeMillis() - start});
+        save(fresh);
+        fireReloaded();
+    }
+
+    /**
+     * Reads the users that changed since the last sync into the replica and
+     * saves the snapshot if there were any. The changes are only applied,
+     * and the highest uSNChanged moved past them, once the whole search has
+     * been read, a sync that fails part way leaves the replica as it was and
+     * the next one asks for the same changes again.
+     *
+     * @return number of users that changed.
+     * @throws NamingException
+     */
+    public synchronized int sync() throws NamingException {
+        Index current = this.index;
+        if(current == null || current.mapping != lookup.getAttributeMapping()){
+            fullLoad();
+            return this.index.byDn.size();
+        }
+        long start = System.currentTimeMillis();
+        // results do not come in uSNChanged order, nothing is applied until all are read
+        Map<String,Entry> changes = new LinkedHashMap<>();
+        long highestUsn = read(current.mapping, "(" + USN_ATTRIBUTE + ">=" + (current.highestUsn + 1) + ")", changes);
+        List<ADUserRecord> previous = new ArrayList<>(changes.size());
+        List<ADUserRecord> changed = new ArrayList<>(changes.size());
+        for(Map.Entry<String,Entry> change : changes.entrySet()){
+            previous.add(current.put(change.getKey(), change.getValue().record, change.getValue().usn));
+            changed.add(change.getValue().record);
+        }
+        if(highestUsn > current.highestUsn){
+            current.highestUsn = highestUsn;
+        }
+        this.lastSync = start;
+        if(!changed.isEmpty()){
+            save(current);
+            for(Listener listener : listeners){
+                try {
+                    listener.usersChanged(previous, changed);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.WARNING, "AD replica listener failed", ex);
+                }
+            }
+        }
+        return changed.size();
+    }
+
+    /**
+     * Reads the users matching the filter into users, by DN. Nothing is
+     * applied to the replica here.
+     *
+     * @return the highest uSNChanged read, 0 if there were no users.
+     */
+    private long read(ADAttributeMapping mapping, String filter, Map<String,Entry> users) throws NamingException {
+        String[] mapped = mapping.getReturningAttributes();
+        String[] attributes = Arrays.copyOf(mapped, mapped.length + 1);
+        attributes[mapped.length] = USN_ATTRIBUTE;
+        long highestUsn = 0;
+        try (ADPagedSearch search = lookup.searchUsersPaged(filter, pageSize, attributes)) {
+            while(search.hasNext()){
+                SearchResult rs = search.next();
+                Attributes attrs = rs.getAttributes();
+                String value = ADAttributeMapping.stringValue(attrs.get(USN_ATTRIBUTE));
+                long usn = value == null ? 0 : Long.parseLong(value);
+                users.put(rs.getNameInNamespace(), new Entry(mapping.project(attrs), usn));
+                if(usn > highestUsn){
+                    highestUsn = usn;
+                }
+            }
+        } catch (IllegalStateException ex) {
+            if(ex.getCause() instanceof NamingException){
+                throw (NamingException)ex.getCause();
+            }
+            throw ex;
+        }
+        return highestUsn;
+    }
+
+    /**
+     * Reads the snapshot file into the replica. The snapshot is ignored if it
+     * was written with a different attribute mapping.
+     *
+     * @return true if the snapshot was loaded.
+     * @throws IOException
+     */
+    public synchronized boolean loadSnapshot() throws IOException {
+        if(snapshotFile == null || !snapshotFile.isFile()){
+            return false;
+        }
+        ADAttributeMapping mapping = lookup.getAttributeMapping();
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buf.getInt() != MAGIC || buf.getInt() != VERSION){
+                Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.WARNING, "Ignoring unknown AD replica snapshot {0}", snapshotFile);
+                return false;
+            }
+            long savedAt = buf.getLong();
+            long highestUsn = buf.getLong();
+            int fields = buf.getInt();
+            if(fields != mapping.size()){
+                return false;
+            }
+            for(int i = 0; i < fields; i++){
+                if(!mapping.getKey(i).equals(readString(buf))){
+                    return false;
+                }
+            }
+            Index loaded = new Index(mapping, highestUsn);
+            int count = buf.getInt();
+            for(int i = 0; i < count; i++){
+                String dn = readString(buf);
+                long usn = buf.getLong();
+                String[] values = new String[fields];
+                for(int j = 0; j < fields; j++){
+                    values[j] = readString(buf);
+                }
+                loaded.put(dn, new ADUserRecord(mapping, values), usn);
+            }
+            this.index = loaded;
+            this.lastFullLoad = savedAt;
+            this.lastSync = savedAt;
+            Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.INFO, "AD replica restored {0} users from {1}",
+                    new Object[]{count, snapshotFile});
+            fireReloaded();
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.WARNING, "Ignoring damaged AD replica snapshot " + snapshotFile, ex);
+            return false;
+        }
+    }
+
+    private void fireReloaded(){
+        for(Listener listener : listeners){
+            try {
+                listener.reloaded(this);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.WARNING, "AD replica listener failed", ex);
+            }
+        }
+    }
+
+    public void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    private void save(Index source){
+        if(snapshotFile == null){
+            return;
+        }
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(lastFullLoad);
+                out.writeLong(source.highestUsn);
+                out.writeInt(source.mapping.size());
+                for(int i = 0; i < source.mapping.size(); i++){
+                    writeString(out, source.mapping.getKey(i));
+                }
+                // entries can not change while we write, sync and fullLoad hold the lock
+                out.writeInt(source.byDn.size());
+                for(Map.Entry<String,Entry> e : source.byDn.entrySet()){
+                    writeString(out, e.getKey());
+                    out.writeLong(e.getValue().usn);
+                    ADUserRecord record = e.getValue().record;
+                    for(int i = 0; i < source.mapping.size(); i++){
+                        writeString(out, record.get(i));
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ADDirectoryReplica.class.getName()).log(Level.WARNING, "Could not save AD replica snapshot", ex);
+            tmp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buf){
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param searchValue
+     * @param searchBy - "username" or "email"
+     * @return the replicated user or null if the replica does not know it.
+     */
+    public ADUserRecord find(String searchValue, String searchBy){
+        Index current = this.index;
+        String key = ADAttributeCache.key(searchValue, searchBy);
+        return current == null || key == null ? null : current.byKey.get(key);
+    }
+
+    public ADUserRecord findByUserName(String userName){
+        return find(userName, "username");
+    }
+
+    public ADUserRecord findByMail(String mail){
+        return find(mail, "email");
+    }
+
+    /**
+     * @return a copy of all replicated users.
+     */
+    public List<ADUserRecord> getRecords(){
+        Index current = this.index;
+        List<ADUserRecord> records = new ArrayList<>(current == null ? 0 : current.byDn.size());
+        if(current != null){
+            for(Entry entry : current.byDn.values()){
+                records.add(entry.record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return true once the replica was loaded.
+     */
+    public boolean isReady(){
+        return index != null;
+    }
+
+    /**
+     * @return number of replicated users.
+     */
+    public int size(){
+        Index current = this.index;
+        return current == null ? 0 : current.byDn.size();
+    }
+
+    public long getHighestUsn(){
+        Index current = this.index;
+        return current == null ? 0 : current.highestUsn;
+    }
+
+    public long getLastSyncMillis() {
+        return lastSync;
+    }
+
+    public long getLastFullLoadMillis() {
+        return lastFullLoad;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Users by DN plus a lookup table keyed like the ADAttributeCache. Only
+     * the sync thread writes, lookups read concurrently. highestUsn is set
+     * by the caller once a whole sync is applied, not per user.
+     */
+    private static final class Index {
+
+        private final ADAttributeMapping mapping;
+        private final ConcurrentHashMap<String,Entry> byDn = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String,ADUserRecord> byKey = new ConcurrentHashMap<>();
+        private volatile long highestUsn;
+
+        Index(ADAttributeMapping mapping, long highestUsn){
+            this.mapping = mapping;
+            this.highestUsn = highestUsn;
+        }
+
+        /**
+         * @return the previous record of the user or null.
+         */
+        ADUserRecord put(String dn, ADUserRecord record, long usn){
+            Entry previous = byDn.put(dn, new Entry(record, usn));
+            if(previous != null){
+                // the user may have been renamed, drop keys that point at the old record
+                removeKey(ADAttributeCache.key(previous.record.get("userName"), "username"), previous.record);
+                removeKey(ADAttributeCache.key(previous.record.get("mail"), "email"), previous.record);
+            }
+            addKey(ADAttributeCache.key(record.get("userName"), "username"), record);
+            addKey(ADAttributeCache.key(record.get("mail"), "email"), record);
+            return previous == null ? null : previous.record;
+        }
+
+        private void addKey(String key, ADUserRecord record){
+            if(key != null){
+                byKey.put(key, record);
+            }
+        }
+
+        private void removeKey(String key, ADUserRecord record){
+            if(key != null){
+                byKey.remove(key, record);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final ADUserRecord record;
+        private final long usn;
+
+        Entry(ADUserRecord record, long usn){
+            this.record = record;
+            this.usn = usn;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the effective (nested) group memberships of users, filled by
+ * {@link ADUserLookup#getEffectiveGroups(String)}.
+ *
+ * Every group DN seen is interned once and gets a small int id, the groups of
+ * a user are kept as a BitSet of those ids. A membership check is a hash
+ * lookup of the group plus a bit test, and a user in a few hundred groups
+ * costs a few dozen bytes instead of a few hundred DN strings.
+ * Group DNs are case insensitive like they are in AD. Ids are never reused,
+ * the number of groups in a domain is small compared to the number of users.
+ *
+ * Users are dropped after a configurable time to live and the least recently
+ * used one once the cache is full. Several ADUserLookup instances for the same
+ * domain can share one instance.
+ * @author DCConway
+ */
+public class ADGroupMembership {
+
+    private final ConcurrentHashMap<String,Integer> groupIds = new ConcurrentHashMap<>();
+    private volatile String[] groupNames = new String[256];
+    private int groupCount;
+    private final int maxUsers;
+    private final LinkedHashMap<String,CacheEntry> users;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long ttlMillis;
+
+    /**
+     * @param maxUsers - maximum number of users held.
+     * @param ttlMillis - how long the groups of a user stay cached.
+     */
+    public ADGroupMembership(final int maxUsers, long ttlMillis){
+        if(maxUsers < 1){
+            throw new IllegalArgumentException("maxUsers must be at least 1");
+        }
+        this.maxUsers = maxUsers;
+        this.ttlMillis = ttlMillis;
+        this.users = new LinkedHashMap<String,CacheEntry>(Math.min(maxUsers, 1024), 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) {
+                return size() > ADGroupMembership.this.maxUsers;
+            }
+        };
+    }
+
+    /**
+     * @param userName
+     * @return the group ids of the user, or null if there is no live entry.
+     * The set is shared and must not be modified.
+     */
+    BitSet get(String userName){
+        String key = key(userName);
+        long now = System.currentTimeMillis();
+        synchronized(users){
+            CacheEntry entry = users.get(key);
+            if(entry != null){
+                if(entry.expiresAt > now){
+                    hits.incrementAndGet();
+                    return entry.groups;
+                }
+                users.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the effective groups of a user.
+     *
+     * @param userName
+     * @param groupDns - DNs of all groups the user is a direct or nested member of.
+     * @return the group ids that are now cached.
+     */
+    BitSet put(String userName, Collection<String> groupDns){
+        BitSet groups = new BitSet();
+        for(String dn : groupDns){
+            groups.set(intern(dn));
+        }
+        String key = key(userName);
+        if(key != null){
+            synchronized(users){
+                users.put(key, new CacheEntry(groups, System.currentTimeMillis() + ttlMillis));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @param groupDn
+     * @return the id of the group, or -1 if no cached user was ever in it.
+     */
+    int groupId(String groupDn){
+        Integer id = groupIds.get(groupDn.trim().toLowerCase(Locale.ROOT));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param groups - group ids.
+     * @return the DNs of the groups, as AD returned them when first seen.
+     */
+    Set<String> groupNames(BitSet groups){
+        String[] names = this.groupNames;
+        Set<String> dns = new LinkedHashSet<>();
+        for(int id = groups.nextSetBit(0); id >= 0; id = groups.nextSetBit(id + 1)){
+            dns.add(names[id]);
+        }
+        return Collections.unmodifiableSet(dns);
+    }
+
+    private int intern(String groupDn){
+        String key = groupDn.trim().toLowerCase(Locale.ROOT);
+        Integer id = groupIds.get(key);
+        if(id != null){
+            return id;
+        }
+        synchronized(groupIds){
+            id = groupIds.get(key);
+            if(id == null){
+                id = groupCount++;
+                String[] names = this.groupNames;
+                if(id == names.length){
+                    String[] grown = new String[names.length * 2];
+                    System.arraycopy(names, 0, grown, 0, names.length);
+                    names = grown;
+                }
+                names[id] = groupDn;
+                this.groupNames = names;
+                // the id is published after its name so readers always find the name
+                groupIds.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Removes a user from the cache, e.g. after its groups were changed.
+     *
+     * @param userName
+     */
+    public void invalidate(String userName){
+        String key = key(userName);
+        synchronized(users){
+            users.remove(key);
+        }
+    }
+
+    /**
+     * Removes all users. Interned groups are kept.
+     */
+    public void invalidateAll(){
+        synchronized(users){
+            users.clear();
+        }
+    }
+
+    static String key(String userName){
+        if(userName == null || userName.trim().isEmpty()){
+            return null;
+        }
+        return userName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public int size(){
+        synchronized(users){
+            return users.size();
+        }
+    }
+
+    /**
+     * @return number of distinct groups interned so far.
+     */
+    public int getGroupCount(){
+        return groupIds.size();
+    }
+
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    private static final class CacheEntry {
+
+        private final BitSet groups;
+        private final long expiresAt;
+
+        CacheEntry(BitSet groups, long expiresAt){
+            this.groups = groups;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
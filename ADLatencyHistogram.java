@@ -0,0 +1,158 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram. Recording is a couple of atomic adds so it can
+ * sit on every request.
+ *
+ * Latencies are counted in microsecond buckets that grow exponentially, four
+ * buckets per power of two, so a percentile is accurate to about 25% from
+ * 1 microsecond up to more than an hour. Counts add up from creation or the
+ * last reset.
+ * @author DCConway
+ */
+public class ADLatencyHistogram {
+
+    private static final int BUCKETS = 128;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos - elapsed time, e.g. the difference of two System.nanoTime() calls.
+     */
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos / 1000));
+        totalNanos.add(nanos);
+        long max;
+        while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)){
+            // another thread raised the max, compare again
+        }
+    }
+
+    /**
+     * Micros 0-3 get a bucket each, above that every power of two is split in four.
+     */
+    private static int bucket(long micros){
+        if(micros < 4){
+            return (int)micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int)(micros >>> (exponent - 2)) & 3;
+        return Math.min(4 * (exponent - 1) + sub, BUCKETS - 1);
+    }
+
+    /**
+     * @return the smallest latency that falls in the bucket after this one, in micros.
+     */
+    private static long upperBound(int bucket){
+        if(bucket < 4){
+            return bucket + 1;
+        }
+        int exponent = bucket / 4 + 1;
+        return (long)(4 + bucket % 4 + 1) << (exponent - 2);
+    }
+
+    /**
+     * Starts counting from zero again.
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++){
+            counts.set(i, 0);
+        }
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /**
+     * @return the current counts. Requests recorded while the snapshot is taken
+     * may be partly included.
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        double mean = total == 0 ? 0 : totalNanos.sum() / (double)total / 1000000.0;
+        // a bucket bound can lie above the slowest request, never report more than that
+        double max = maxNanos.get() / 1000000.0;
+        return new Snapshot(total, mean,
+                Math.min(percentile(copy, total, 0.50), max), Math.min(percentile(copy, total, 0.90), max),
+                Math.min(percentile(copy, total, 0.99), max), max);
+    }
+
+    private static double percentile(long[] counts, long total, double fraction){
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long)Math.ceil(total * fraction);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                return upperBound(i) / 1000.0;
+            }
+        }
+        return upperBound(counts.length - 1) / 1000.0;
+    }
+
+    /**
+     * Latency statistics at one point in time, all times in milliseconds.
+     * Percentiles are the upper bound of the bucket they fall in.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        Snapshot(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis){
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    count, meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+        }
+    }
+}
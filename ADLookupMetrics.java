@@ -0,0 +1,316 @@
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+
+/**
+ * Latency and error statistics of one ADUserLookup, see
+ * {@link ADUserLookup#getMetrics()}.
+ *
+ * Latencies are kept for every LDAP search (search), for searchUser
+ * (userSearch), for the attribute lookups behind getUserAttributesMap and
+ * findUserRecord including the ones answered from the cache
+ * (attributeLookup) and for group lookups that were not cached
+ * (groupLookup). Connect times are
+ * kept per domain controller by its ADConnectionPool.
+ *
+ * The statistics can be pulled with {@link #snapshot()} or watched over JMX
+ * after {@link #register(String)}, which also registers the pool of every
+ * domain controller.
+ * @author DCConway
+ */
+public class ADLookupMetrics implements ADLookupMetricsMXBean {
+
+    private static final String JMX_DOMAIN = "ADUserLookup";
+
+    private final ADUserLookup lookup;
+    final ADLatencyHistogram searchLatency = new ADLatencyHistogram();
+    final ADLatencyHistogram userSearchLatency = new ADLatencyHistogram();
+    final ADLatencyHistogram attributeLookupLatency = new ADLatencyHistogram();
+    final ADLatencyHistogram groupLookupLatency = new ADLatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final ConcurrentHashMap<String,LongAdder> attributeMisses = new ConcurrentHashMap<>();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    ADLookupMetrics(ADUserLookup lookup){
+        this.lookup = lookup;
+    }
+
+    /**
+     * Counts a search that failed after its retry.
+     */
+    void recordFailure(NamingException ex){
+        if(isTimeout(ex)){
+            timeouts.increment();
+        }else{
+            errors.increment();
+        }
+    }
+
+    /**
+     * AD time limits end in TimeLimitExceededException, JNDI read timeouts and
+     * pool borrow timeouts only say so in the message.
+     */
+    private static boolean isTimeout(NamingException ex){
+        if(ex instanceof TimeLimitExceededException || ex.getRootCause() instanceof SocketTimeoutException){
+            return true;
+        }
+        String message = ex.getMessage();
+        return message != null && message.toLowerCase(Locale.ROOT).contains("timed out");
+    }
+
+    void recordRejected(){
+        rejected.increment();
+    }
+
+    /**
+     * Counts the attributes AD had no value for.
+     */
+    void recordMissing(ADUserRecord record){
+        ADAttributeMapping mapping = record.getMapping();
+        for(int i = 0; i < mapping.size(); i++){
+            if(record.get(i).isEmpty()){
+                LongAdder counter = attributeMisses.get(mapping.getKey(i));
+                if(counter == null){
+                    LongAdder created = new LongAdder();
+                    counter = attributeMisses.putIfAbsent(mapping.getKey(i), created);
+                    if(counter == null){
+                        counter = created;
+                    }
+                }
+                counter.increment();
+            }
+        }
+    }
+
+    @Override
+    public ADLatencyHistogram.Snapshot getSearchLatency() {
+        return searchLatency.snapshot();
+    }
+
+    @Override
+    public ADLatencyHistogram.Snapshot getUserSearchLatency() {
+        return userSearchLatency.snapshot();
+    }
+
+    @Override
+    public ADLatencyHistogram.Snapshot getAttributeLookupLatency() {
+        return attributeLookupLatency.snapshot();
+    }
+
+    @Override
+    public ADLatencyHistogram.Snapshot getGroupLookupLatency() {
+        return groupLookupLatency.snapshot();
+    }
+
+    /**
+     * @return number of searches that failed for another reason than a timeout.
+     */
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return number of searches that hit the AD time limit, the read timeout
+     * or the pool borrow timeout.
+     */
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return number of async lookups turned away by the concurrent request limit.
+     */
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return per attribute key, how often a user loaded from AD had no value for it.
+     */
+    @Override
+    public Map<String,Long> getAttributeMissCounts() {
+        Map<String,Long> counts = new TreeMap<>();
+        for(Map.Entry<String,LongAdder> e : attributeMisses.entrySet()){
+            counts.put(e.getKey(), e.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        ADAttributeCache cache = lookup.getAttributeCache();
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        ADAttributeCache cache = lookup.getAttributeCache();
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @Override
+    public int getCacheSize() {
+        ADAttributeCache cache = lookup.getAttributeCache();
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getGroupCacheHitCount() {
+        return lookup.getGroupMembership().getHitCount();
+    }
+
+    @Override
+    public long getGroupCacheMissCount() {
+        return lookup.getGroupMembership().getMissCount();
+    }
+
+    @Override
+    public long getCoalescedLookupCount() {
+        return lookup.getCoalescedLookupCount();
+    }
+
+    /**
+     * @return the pool of every domain controller the lookup uses, empty for
+     * connection sources other than ADConnectionPool and ADServerBalancer.
+     */
+    public List<ADConnectionPool> getPools() {
+        ADConnectionSource source = lookup.getConnectionSource();
+        if(source instanceof ADServerBalancer){
+            return ((ADServerBalancer)source).getServers();
+        }
+        if(source instanceof ADConnectionPool){
+            return Collections.singletonList((ADConnectionPool)source);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Starts the latency histograms and counters from zero again, including
+     * the connect statistics of the pools.
+     */
+    @Override
+    public void resetStatistics() {
+        searchLatency.reset();
+        userSearchLatency.reset();
+        attributeLookupLatency.reset();
+        groupLookupLatency.reset();
+        errors.reset();
+        timeouts.reset();
+        rejected.reset();
+        attributeMisses.clear();
+        for(ADConnectionPool pool : getPools()){
+            pool.resetStatistics();
+        }
+    }
+
+    /**
+     * All statistics as flat name/value pairs for pushing to a metrics system,
+     * e.g. "search.p99Millis", "errors", "cache.hits",
+     * "pool.ldaps://dc1:636.latencyMillis".
+     *
+     * @return
+     */
+    public Map<String,Number> snapshot(){
+        Map<String,Number> values = new LinkedHashMap<>();
+        put(values, "search", searchLatency.snapshot());
+        put(values, "userSearch", userSearchLatency.snapshot());
+        put(values, "attributeLookup", attributeLookupLatency.snapshot());
+        put(values, "groupLookup", groupLookupLatency.snapshot());
+        values.put("errors", getErrorCount());
+        values.put("timeouts", getTimeoutCount());
+        values.put("rejected", getRejectedCount());
+        values.put("coalesced", getCoalescedLookupCount());
+        for(Map.Entry<String,Long> e : getAttributeMissCounts().entrySet()){
+            values.put("attributeMiss." + e.getKey(), e.getValue());
+        }
+        values.put("cache.hits", getCacheHitCount());
+        values.put("cache.misses", getCacheMissCount());
+        values.put("cache.size", getCacheSize());
+        values.put("groupCache.hits", getGroupCacheHitCount());
+        values.put("groupCache.misses", getGroupCacheMissCount());
+        values.put("groupCache.size", lookup.getGroupMembership().size());
+        for(ADConnectionPool pool : getPools()){
+            String prefix = "pool." + pool.getProviderUrl() + ".";
+            values.put(prefix + "active", pool.getActiveCount());
+            values.put(prefix + "idle", pool.getIdleCount());
+            values.put(prefix + "maxSize", pool.getMaxSize());
+            values.put(prefix + "latencyMillis", pool.getLatencyMillis());
+            values.put(prefix + "errorRate", pool.getErrorRate());
+            values.put(prefix + "consecutiveFailures", pool.getConsecutiveFailures());
+            values.put(prefix + "connectFailures", pool.getConnectFailureCount());
+            put(values, prefix + "connect", pool.getConnectLatency());
+        }
+        return values;
+    }
+
+    private static void put(Map<String,Number> values, String name, ADLatencyHistogram.Snapshot latency){
+        values.put(name + ".count", latency.getCount());
+        values.put(name + ".meanMillis", latency.getMeanMillis());
+        values.put(name + ".p50Millis", latency.getP50Millis());
+        values.put(name + ".p90Millis", latency.getP90Millis());
+        values.put(name + ".p99Millis", latency.getP99Millis());
+        values.put(name + ".maxMillis", latency.getMaxMillis());
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as
+     * ADUserLookup:type=Lookup,name=&lt;name&gt; and the pool of every domain
+     * controller as ADUserLookup:type=ConnectionPool,name=&lt;name&gt;,server=&lt;url&gt;.
+     * Failures are logged, monitoring should not stop the application.
+     *
+     * @param name - identifies the lookup, e.g. the application name.
+     */
+    public synchronized void register(String name){
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String quoted = ObjectName.quote(name);
+            ObjectName lookupName = new ObjectName(JMX_DOMAIN + ":type=Lookup,name=" + quoted);
+            server.registerMBean(this, lookupName);
+            registered.add(lookupName);
+            for(ADConnectionPool pool : getPools()){
+                ObjectName poolName = new ObjectName(JMX_DOMAIN + ":type=ConnectionPool,name=" + quoted
+                        + ",server=" + ObjectName.quote(pool.getProviderUrl()));
+                server.registerMBean(pool, poolName);
+                registered.add(poolName);
+            }
+        } catch (JMException ex) {
+            Logger.getLogger(ADLookupMetrics.class.getName()).log(Level.WARNING, "Could not register AD lookup MBeans", ex);
+        }
+    }
+
+    /**
+     * Removes the MBeans added by {@link #register(String)}.
+     */
+    public synchronized void unregister(){
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : registered){
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                Logger.getLogger(ADLookupMetrics.class.getName()).log(Level.FINE, "Could not unregister " + name, ex);
+            }
+        }
+        registered.clear();
+    }
+}
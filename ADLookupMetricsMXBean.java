@@ -0,0 +1,38 @@
+import java.util.Map;
+
+/**
+ * JMX view of {@link ADLookupMetrics}.
+ * @author DCConway
+ */
+public interface ADLookupMetricsMXBean {
+
+    ADLatencyHistogram.Snapshot getSearchLatency();
+
+    ADLatencyHistogram.Snapshot getUserSearchLatency();
+
+    ADLatencyHistogram.Snapshot getAttributeLookupLatency();
+
+    ADLatencyHistogram.Snapshot getGroupLookupLatency();
+
+    long getErrorCount();
+
+    long getTimeoutCount();
+
+    long getRejectedCount();
+
+    Map<String,Long> getAttributeMissCounts();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    int getCacheSize();
+
+    long getGroupCacheHitCount();
+
+    long getGroupCacheMissCount();
+
+    long getCoalescedLookupCount();
+
+    void resetStatistics();
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Lazily walks the results of a search one page at a time using the LDAP
+ * paged results control, so searches that match more entries than the AD size
+ * limit (1000 by default) return everything while only one page is held in
+ * memory.
+ *
+ * The search keeps a pooled connection until it is exhausted or closed.
+ * Always close it, preferably with try-with-resources:
+ * <pre>
+ * try(ADPagedSearch search = lookup.searchUsersPaged("(department=Finance)", 500)){
+ *     while(search.hasNext()){
+ *         SearchResult rs = search.next();
+ *     }
+ * }
+ * </pre>
+ * A NamingException while fetching the next page is thrown wrapped in an
+ * IllegalStateException since Iterator methods can not throw checked exceptions.
+ * @author DCConway
+ */
+public class ADPagedSearch implements Iterator<SearchResult>, AutoCloseable {
+
+    private final ADConnectionPool.PooledConnection conn;
+    private final String base;
+    private final String filter;
+    private final SearchControls controls;
+    private final int pageSize;
+    private NamingEnumeration<SearchResult> page;
+    private SearchResult next;
+    private long pageCount;
+    // cookie the page being read was requested with, null for the first page
+    private byte[] cookie;
+    // the server has no more pages or the connection failed, nothing to abandon
+    private boolean finished;
+    private boolean closed;
+
+    ADPagedSearch(ADConnectionPool.PooledConnection conn, String base, String filter, SearchControls controls, int pageSize) throws NamingException {
+        this.conn = conn;
+        this.base = base;
+        this.filter = filter;
+        this.controls = controls;
+        this.pageSize = pageSize;
+        try {
+            fetchPage(null);
+        } catch (NamingException | IOException | RuntimeException ex) {
+            conn.invalidate();
+            if(ex instanceof NamingException && ADConnectionPool.isConnectionFailure((NamingException)ex)){
+                conn.recordFailure();
+            }
+            finished = true;
+            close();
+            if(ex instanceof NamingException){
+                throw (NamingException)ex;
+            }
+            NamingException ne = new NamingException("Could not start paged search");
+            ne.setRootCause(ex);
+            throw ne;
+        }
+    }
+
+    private void fetchPage(byte[] cookie) throws NamingException, IOException {
+        LdapContext ctx = conn.getContext();
+        ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+        page = ctx.search(base, filter, controls);
+        this.cookie = cookie;
+        pageCount++;
+    }
+
+    /**
+     * Tells the server to drop the state of a paged search that is closed
+     * before its last page: the same search with a page size of 0 and the
+     * outstanding cookie. That is the one of the page just read through if
+     * the server sent it, else the one the current page was asked for with.
+     */
+    private void abandon() throws NamingException, IOException {
+        byte[] outstanding = nextCookie();
+        if(outstanding == null){
+            outstanding = cookie;
+        }
+        if(outstanding == null){
+            return;
+        }
+        LdapContext ctx = conn.getContext();
+        ctx.setRequestControls(new Control[]{new PagedResultsControl(0, outstanding, Control.CRITICAL)});
+        ctx.search(base, filter, controls).close();
+    }
+
+    /**
+     * Cookie for the next page from the response of the page just read, null
+     * when the server has no more results.
+     */
+    private byte[] nextCookie() throws NamingException {
+        Control[] response = conn.getContext().getResponseControls();
+        if(response != null){
+            for(Control control : response){
+                if(control instanceof PagedResultsResponseControl){
+                    byte[] cookie = ((PagedResultsResponseControl)control).getCookie();
+                    return cookie == null || cookie.length == 0 ? null : cookie;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next != null){
+            return true;
+        }
+        if(closed){
+            return false;
+        }
+        try {
+            while(true){
+                boolean more;
+                try {
+                    more = page.hasMore();
+                } catch (PartialResultException ex) {
+                    // AD reports unfollowed referrals at the end of a search from the domain root
+                    more = false;
+                }
+                if(more){
+                    next = page.next();
+                    return true;
+                }
+                page.close();
+                byte[] cookie = nextCookie();
+                if(cookie == null){
+                    finished = true;
+                    close();
+                    return false;
+                }
+                fetchPage(cookie);
+            }
+        } catch (NamingException | IOException ex) {
+            conn.invalidate();
+            if(ex instanceof NamingException && ADConnectionPool.isConnectionFailure((NamingException)ex)){
+                conn.recordFailure();
+            }
+            finished = true;
+            close();
+            throw new IllegalStateException("Paged search failed after " + pageCount + " pages", ex);
+        }
+    }
+
+    @Override
+    public SearchResult next() {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        SearchResult result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * @return number of pages requested so far.
+     */
+    public long getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Stops the search and returns the connection to the pool. Results that
+     * were already read can still be taken with next. A search closed before
+     * its last page is abandoned on the server.
+     */
+    @Override
+    public void close() {
+        if(closed){
+            return;
+        }
+        closed = true;
+        try {
+            if(page != null){
+                page.close();
+            }
+            if(!finished){
+                abandon();
+            }
+            // the connection goes back to the pool, later searches on it must not be paged
+            conn.getContext().setRequestControls(null);
+        } catch (NamingException | IOException ex) {
+            Logger.getLogger(ADPagedSearch.class.getName()).log(Level.FINE, "Exception ending paged search", ex);
+            conn.invalidate();
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+/**
+ * Spreads LDAP connections over several domain controllers. Every DC gets its
+ * own ADConnectionPool and each borrow goes to the fastest healthy DC, judged
+ * by the moving average of its round trip time.
+ *
+ * A DC that fails several requests in a row is taken out of rotation (its
+ * circuit is opened) for a cool down period. After that a single borrow is
+ * sent to it as a trial while everyone else keeps avoiding it; a success puts
+ * the DC back and a failure starts the cool down again.
+ * A background probe reads the root DSE of every DC periodically so latency
+ * stays current for idle DCs and a recovered DC is noticed without waiting
+ * for a user request.
+ *
+ * Connections get a connect timeout of 5 seconds unless the environment sets
+ * com.sun.jndi.ldap.connect.timeout, so an unreachable DC fails fast instead of
+ * waiting for the OS TCP timeout. Likewise a read timeout of 30 seconds unless
+ * com.sun.jndi.ldap.read.timeout is set, so a DC that accepts connections but
+ * stops answering fails its requests, which counts against its circuit.
+ * @author DCConway
+ */
+public class ADServerBalancer implements ADConnectionSource {
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+    private final List<ADConnectionPool> servers;
+    private final ScheduledExecutorService prober;
+    private volatile int failureThreshold = 3;
+    private volatile long openMillis = 30000;
+
+    /**
+     * @param envConfig - JNDI environment, Context.PROVIDER_URL is replaced by each of the urls.
+     * @param providerUrls - one ldap:// or ldaps:// url per domain controller.
+     * @param maxSizePerServer - maximum number of connections to each domain controller.
+     * @param probeIntervalMillis - how often every DC is probed, 0 disables probing.
+     */
+    public ADServerBalancer(Hashtable<String,?> envConfig, List<String> providerUrls, int maxSizePerServer, long probeIntervalMillis){
+        if(providerUrls.isEmpty()){
+            throw new IllegalArgumentException("At least one domain controller is required");
+        }
+        List<ADConnectionPool> pools = new ArrayList<>();
+        for(String url : providerUrls){
+            Hashtable<String,Object> env = new Hashtable<String,Object>(envConfig);
+            env.put(Context.PROVIDER_URL, url);
+            ADConnectionPool pool = new ADConnectionPool(env, maxSizePerServer);
+            if(!env.containsKey("com.sun.jndi.ldap.connect.timeout")){
+                pool.setConnectTimeoutMillis(DEFAULT_CONNECT_TIMEOUT_MILLIS);
+            }
+            if(!env.containsKey("com.sun.jndi.ldap.read.timeout")){
+                pool.setReadTimeoutMillis(DEFAULT_READ_TIMEOUT_MILLIS);
+            }
+            pools.add(pool);
+        }
+        this.servers = Collections.unmodifiableList(pools);
+        if(probeIntervalMillis > 0){
+            this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ADServerBalancer-probe");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.prober.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probeAll();
+                }
+            }, 0, probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }else{
+            this.prober = null;
+        }
+    }
+
+    /**
+     * Borrows a connection from the best available domain controller. If
+     * connecting fails the next one is tried.
+     *
+     * @return
+     * @throws NamingException - ServiceUnavailableException when every DC is out of rotation.
+     */
+    @Override
+    public ADConnectionPool.PooledConnection borrow() throws NamingException {
+        List<ADConnectionPool> candidates = rank();
+        if(candidates.isEmpty()){
+            throw new ServiceUnavailableException("All " + servers.size() + " domain controllers are unavailable");
+        }
+        NamingException lastFailure = null;
+        for(ADConnectionPool pool : candidates){
+            try {
+                return pool.borrow();
+            } catch (NamingException ex) {
+                Logger.getLogger(ADServerBalancer.class.getName()).log(Level.WARNING, "Could not connect to " + pool.getProviderUrl() + ", trying the next domain controller", ex);
+                lastFailure = ex;
+            }
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * Available DCs, best first. A DC with free connections comes before one
+     * that is saturated, then the lower latency wins. DCs that were never
+     * measured come first so they get measured. A DC whose trial request this
+     * caller claimed comes before all of them.
+     */
+    private List<ADConnectionPool> rank(){
+        long now = System.currentTimeMillis();
+        // the stats change while sorting, so sort on a snapshot of them
+        List<Ranked> available = new ArrayList<>(servers.size());
+        ADConnectionPool trial = null;
+        for(ADConnectionPool pool : servers){
+            if(isClosed(pool)){
+                available.add(new Ranked(pool));
+            }else if(trial == null && pool.claimTrial(openMillis, now)){
+                trial = pool;
+            }
+        }
+        Collections.sort(available);
+        List<ADConnectionPool> ranked = new ArrayList<>(available.size() + 1);
+        if(trial != null){
+            ranked.add(trial);
+        }
+        for(Ranked r : available){
+            ranked.add(r.pool);
+        }
+        return ranked;
+    }
+
+    /**
+     * The circuit of a DC is closed while it has fewer consecutive failures
+     * than the threshold.
+     */
+    private boolean isClosed(ADConnectionPool pool){
+        return pool.getConsecutiveFailures() < failureThreshold;
+    }
+
+    /**
+     * Probes every domain controller once.
+     */
+    public void probeAll(){
+        for(ADConnectionPool pool : servers){
+            try {
+                pool.probe();
+            } catch (NamingException | RuntimeException ex) {
+                Logger.getLogger(ADServerBalancer.class.getName()).log(Level.FINE, "Probe of " + pool.getProviderUrl() + " failed", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the pool of every domain controller, for monitoring.
+     */
+    public List<ADConnectionPool> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return true if the DC is in rotation right now, or its circuit is open
+     * and the next borrow would get its trial request.
+     */
+    public boolean isAvailable(ADConnectionPool pool){
+        long since = Math.max(pool.getLastFailureMillis(), pool.getLastTrialMillis());
+        return isClosed(pool) || System.currentTimeMillis() - since > openMillis;
+    }
+
+    @Override
+    public int getMaxSize() {
+        int size = 0;
+        for(ADConnectionPool pool : servers){
+            size += pool.getMaxSize();
+        }
+        return size;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @param failureThreshold - consecutive failures that take a DC out of rotation. Default 3.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * @param openMillis - how long a failing DC stays out of rotation. Default 30s.
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+
+    @Override
+    public void close() {
+        if(prober != null){
+            prober.shutdownNow();
+        }
+        for(ADConnectionPool pool : servers){
+            pool.close();
+        }
+    }
+
+    private static final class Ranked implements Comparable<Ranked> {
+
+        private final ADConnectionPool pool;
+        private final boolean full;
+        private final double latency;
+
+        Ranked(ADConnectionPool pool){
+            this.pool = pool;
+            this.full = pool.getActiveCount() >= pool.getMaxSize();
+            this.latency = pool.getLatencyMillis();
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            if(full != other.full){
+                return full ? 1 : -1;
+            }
+            return Double.compare(latency, other.latency);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+/**
+ * Makes concurrent identical lookups share one search. The first thread to
+ * ask for a key runs the search, threads that ask for the same key while it
+ * is running wait for it and get the same result or the same exception.
+ * Nothing is remembered once the search finished, that is what the
+ * ADAttributeCache is for.
+ * @author DCConway
+ * @param <V> - type of the lookup result.
+ */
+public class ADSingleFlight<V> {
+
+    /**
+     * A lookup that may be shared between threads.
+     * @param <V>
+     */
+    public interface Loader<V> {
+        V load() throws NamingException;
+    }
+
+    private final ConcurrentHashMap<String,CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the loader unless a lookup for the same key is already running, in
+     * which case its result is returned instead.
+     *
+     * @param key - identifies the lookup, null always runs the loader.
+     * @param loader
+     * @return
+     * @throws NamingException
+     */
+    public V execute(String key, Loader<V> loader) throws NamingException {
+        calls.incrementAndGet();
+        if(key == null){
+            return loader.load();
+        }
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if(running != null){
+            coalesced.incrementAndGet();
+            return await(running);
+        }
+        try {
+            V value = loader.load();
+            mine.complete(value);
+            return value;
+        } catch (NamingException | RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private V await(CompletableFuture<V> running) throws NamingException {
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted waiting for a shared AD lookup");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof NamingException){
+                throw (NamingException)cause;
+            }
+            if(cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        }
+    }
+
+    /**
+     * @return number of lookups asked for.
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of lookups that were answered by a search another thread ran.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of searches running right now.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,315 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory prefix index over the users of the directory for user picker
+ * fields, so typing a name does not run a wildcard search in AD per keystroke.
+ *
+ * The displayName, lastName, firstName, mail and userName of every record are
+ * lower cased and stored in one sorted String array, the words of the display
+ * name are indexed as well so "john" finds "Smith, John". Each entry points at
+ * its record by int offset. A lookup is a binary search for the prefix followed
+ * by a scan of the matching range, matches are ranked by field and by how
+ * much of the entry the prefix covers.
+ *
+ * Changes are applied incrementally: changed users go into a small delta
+ * index and their old records are hidden, the delta is folded into the main
+ * index once it grows past a threshold. Both are replaced atomically, lookups
+ * never wait for an update.
+ *
+ * Usage with a replica, which keeps the index current on its sync thread:
+ * <pre>
+ * ADTypeaheadIndex typeahead = new ADTypeaheadIndex();
+ * typeahead.attach(replica);
+ * List&lt;ADUserRecord&gt; matches = typeahead.search("smi", 10);
+ * </pre>
+ * @author DCConway
+ */
+public class ADTypeaheadIndex implements ADDirectoryReplica.Listener {
+
+    private static final String[] FIELDS = {"displayName", "lastName", "firstName", "mail", "userName"};
+    private static final int[] FIELD_WEIGHT = {50, 40, 30, 20, 20};
+    private static final int WORD_FIELD = 0;
+
+    private volatile Snapshot snapshot = new Snapshot(Segment.build(new ADUserRecord[0]),
+            Segment.build(new ADUserRecord[0]), Collections.<ADUserRecord>emptySet());
+    private volatile int maxScan = 5000;
+    private volatile int compactThreshold = 1000;
+
+    /**
+     * Builds the index from the replica and keeps it current with the
+     * replica's syncs.
+     *
+     * @param replica
+     */
+    public void attach(ADDirectoryReplica replica){
+        replica.addListener(this);
+        rebuild(replica.getRecords());
+    }
+
+    /**
+     * Replaces the whole index.
+     *
+     * @param records
+     */
+    public synchronized void rebuild(Iterable<ADUserRecord> records){
+        List<ADUserRecord> list = new ArrayList<>();
+        for(ADUserRecord record : records){
+            list.add(record);
+        }
+        snapshot = new Snapshot(Segment.build(list.toArray(new ADUserRecord[list.size()])),
+                Segment.build(new ADUserRecord[0]), Collections.<ADUserRecord>emptySet());
+    }
+
+    /**
+     * Applies changed users.
+     *
+     * @param previous - old record of each user, null for new users.
+     * @param current - new record of each user, null for removed users.
+     */
+    public synchronized void update(List<ADUserRecord> previous, List<ADUserRecord> current){
+        Snapshot old = snapshot;
+        Set<ADUserRecord> hidden = Collections.newSetFromMap(new IdentityHashMap<ADUserRecord,Boolean>());
+        hidden.addAll(old.hidden);
+        List<ADUserRecord> delta = new ArrayList<>(Arrays.asList(old.delta.records));
+        for(int i = 0; i < current.size(); i++){
+            ADUserRecord before = previous.get(i);
+            ADUserRecord after = current.get(i);
+            if(before != null){
+                hidden.add(before);
+            }
+            if(after != null){
+                delta.add(after);
+            }
+        }
+        // records in the delta that were replaced again are dropped right away
+        List<ADUserRecord> live = new ArrayList<>(delta.size());
+        for(ADUserRecord record : delta){
+            if(!hidden.remove(record)){
+                live.add(record);
+            }
+        }
+        if(live.size() + hidden.size() > compactThreshold){
+            List<ADUserRecord> all = new ArrayList<>(old.main.records.length + live.size());
+            for(ADUserRecord record : old.main.records){
+                if(!hidden.contains(record)){
+                    all.add(record);
+                }
+            }
+            all.addAll(live);
+            rebuild(all);
+            return;
+        }
+        snapshot = new Snapshot(old.main, Segment.build(live.toArray(new ADUserRecord[live.size()])), hidden);
+    }
+
+    @Override
+    public void reloaded(ADDirectoryReplica replica) {
+        rebuild(replica.getRecords());
+    }
+
+    @Override
+    public void usersChanged(List<ADUserRecord> previous, List<ADUserRecord> current) {
+        update(previous, current);
+    }
+
+    /**
+     * Finds the users whose name, mail or username starts with the prefix.
+     *
+     * @param prefix - case is ignored.
+     * @param limit - maximum number of matches.
+     * @return the best matches first.
+     */
+    public List<ADUserRecord> search(String prefix, int limit){
+        String key = normalize(prefix);
+        if(key.isEmpty() || limit < 1){
+            return Collections.emptyList();
+        }
+        Snapshot current = this.snapshot;
+        final Map<ADUserRecord,Integer> scores = new HashMap<>();
+        // changed users are hidden in main and only found in the delta, which is
+        // small by construction, so it is scanned first on a budget of its own
+        current.delta.collect(key, current.hidden, scores, maxScan);
+        current.main.collect(key, current.hidden, scores, maxScan);
+
+        List<ADUserRecord> matches = new ArrayList<>(scores.keySet());
+        Collections.sort(matches, new Comparator<ADUserRecord>() {
+            @Override
+            public int compare(ADUserRecord a, ADUserRecord b) {
+                int byScore = scores.get(b) - scores.get(a);
+                return byScore != 0 ? byScore : normalize(a.get(FIELDS[0])).compareTo(normalize(b.get(FIELDS[0])));
+            }
+        });
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    /**
+     * @return number of users in the index.
+     */
+    public int size(){
+        Snapshot current = this.snapshot;
+        return current.main.records.length + current.delta.records.length - current.hidden.size();
+    }
+
+    public int getMaxScan() {
+        return maxScan;
+    }
+
+    /**
+     * @param maxScan - maximum index entries looked at per search in the
+     * main index and again in the delta, bounds the cost of very short
+     * prefixes. Default 5000.
+     */
+    public void setMaxScan(int maxScan) {
+        this.maxScan = maxScan;
+    }
+
+    public int getCompactThreshold() {
+        return compactThreshold;
+    }
+
+    /**
+     * @param compactThreshold - changed users kept in the delta before the
+     * index is rebuilt. Default 1000.
+     */
+    public void setCompactThreshold(int compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    private static String normalize(String value){
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Snapshot {
+
+        private final Segment main;
+        private final Segment delta;
+        private final Set<ADUserRecord> hidden;
+
+        Snapshot(Segment main, Segment delta, Set<ADUserRecord> hidden){
+            this.main = main;
+            this.delta = delta;
+            this.hidden = hidden;
+        }
+    }
+
+    /**
+     * Sorted keys with the offset of their record and the field they came from.
+     */
+    private static final class Segment {
+
+        private final ADUserRecord[] records;
+        private final String[] keys;
+        private final int[] offsets;
+        private final byte[] fields;
+
+        private Segment(ADUserRecord[] records, String[] keys, int[] offsets, byte[] fields){
+            this.records = records;
+            this.keys = keys;
+            this.offsets = offsets;
+            this.fields = fields;
+        }
+
+        static Segment build(ADUserRecord[] records){
+            List<Entry> entries = new ArrayList<>(records.length * (FIELDS.length + 1));
+            for(int r = 0; r < records.length; r++){
+                for(int f = 0; f < FIELDS.length; f++){
+                    String value = normalize(records[r].get(FIELDS[f]));
+                    if(value.isEmpty()){
+                        continue;
+                    }
+                    entries.add(new Entry(value, r, f));
+                    if(f == WORD_FIELD){
+                        // later words of the display name, e.g. the first name in "smith, john"
+                        int start = -1;
+                        for(int i = 0; i <= value.length(); i++){
+                            boolean letter = i < value.length() && Character.isLetterOrDigit(value.charAt(i));
+                            if(letter && start < 0){
+                                start = i;
+                            }else if(!letter && start >= 0){
+                                if(start > 0){
+                                    entries.add(new Entry(value.substring(start), r, f));
+                                }
+                                start = -1;
+                            }
+                        }
+                    }
+                }
+            }
+            Collections.sort(entries);
+            String[] keys = new String[entries.size()];
+            int[] offsets = new int[entries.size()];
+            byte[] fields = new byte[entries.size()];
+            for(int i = 0; i < keys.length; i++){
+                Entry e = entries.get(i);
+                keys[i] = e.key;
+                offsets[i] = e.offset;
+                fields[i] = (byte)e.field;
+            }
+            return new Segment(records, keys, offsets, fields);
+        }
+
+        /**
+         * Scores the records of all entries starting with the prefix, up to
+         * budget entries. Hidden entries are skipped without using it up.
+         *
+         * @return the scan budget left.
+         */
+        int collect(String prefix, Set<ADUserRecord> hidden, Map<ADUserRecord,Integer> scores, int budget){
+            for(int i = lowerBound(prefix); i < keys.length && budget > 0 && keys[i].startsWith(prefix); i++){
+                ADUserRecord record = records[offsets[i]];
+                if(hidden.contains(record)){
+                    continue;
+                }
+                budget--;
+                int score = FIELD_WEIGHT[fields[i]] + (keys[i].length() == prefix.length() ? 100 : 0)
+                        - Math.min(keys[i].length() - prefix.length(), 30);
+                Integer best = scores.get(record);
+                if(best == null || best < score){
+                    scores.put(record, score);
+                }
+            }
+            return budget;
+        }
+
+        private int lowerBound(String prefix){
+            int lo = 0;
+            int hi = keys.length;
+            while(lo < hi){
+                int mid = (lo + hi) >>> 1;
+                if(keys[mid].compareTo(prefix) < 0){
+                    lo = mid + 1;
+                }else{
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        private final String key;
+        private final int offset;
+        private final int field;
+
+        Entry(String key, int offset, int field){
+            this.key = key;
+            this.offset = offset;
+            this.field = field;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
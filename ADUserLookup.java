@@ -1,3 +1,52 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
 /**
  * Used to connect to Microsoft AD and query for a users attributes using either
  * the users sAMAccountName or email.
@@ -8,11 +57,31 @@
  */
 public class ADUserLookup {
     
-    private DirContext ctx;
+    private static final int DEFAULT_POOL_SIZE = 8;
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 32;
+    // AD returns at most MaxPageSize (1000) entries per search, larger results are paged
+    private static final int GROUP_PAGE_SIZE = 500;
+    
+    private ADConnectionSource pool;
+    private boolean ownsPool;
     private String domainBase = "dc=,dc=,dc=,dc=";
     private SearchControls searchCtls;
     private String baseFilter = "(&((&(objectCategory=Person)(objectClass=User)))";
     private ArrayList<String> userTestInfo = new ArrayList<>();
+    private volatile ADAttributeMapping attributeMapping = ADAttributeMapping.DEFAULT;
+    private volatile SearchControls mappingCtls = mappingControls(ADAttributeMapping.DEFAULT);
+    private volatile ADAttributeCache attributeCache;
+    private volatile ADDirectoryReplica replica;
+    private final ADSingleFlight<ADUserRecord> singleFlight = new ADSingleFlight<>();
+    private volatile ADGroupMembership groupMembership = new ADGroupMembership(10000, TimeUnit.MINUTES.toMillis(5));
+    private final ADSingleFlight<BitSet> groupFlight = new ADSingleFlight<>();
+    private final ADLookupMetrics metrics = new ADLookupMetrics(this);
+    private volatile boolean coalesceLookups = true;
+    private volatile int batchChunkSize = 200;
+    private ExecutorService executor;
+    private boolean ownsExecutor;
+    private volatile int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private volatile Semaphore requestPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_REQUESTS);
     
     /**
      * Default Constructor for use on the Weblogic Multitenancy servers.
@@ -24,6 +93,8 @@ public class ADUserLookup {
     }
     /**
      * Parameterized constructor to create a connection to ldap.
+     * The instance keeps its own pool of up to 8 connections and is safe to
+     * share between request threads.
      * 
      * @param domainBase
      * @param returnAttributes
@@ -35,24 +106,65 @@ public class ADUserLookup {
      * Context.SECURITY_CREDENTIALS, "use the Tools class"
      */
     public ADUserLookup(String domainBase,String[] returnAttributes,Hashtable envConfig){
-        // create ldap dir context
+        this(domainBase, returnAttributes, new ADConnectionPool(environment(envConfig), DEFAULT_POOL_SIZE));
+        this.ownsPool = true;
+    }
+    /**
+     * Parameterized constructor that spreads the searches over several domain
+     * controllers, see {@link ADServerBalancer}. Each DC gets a pool of up to
+     * 8 connections and is probed every 10 seconds.
+     * 
+     * @param domainBase
+     * @param returnAttributes
+     * @param envConfig - as above, Context.PROVIDER_URL is ignored.
+     * @param domainControllers - one "ldaps://host:636" url per domain controller.
+     */
+    public ADUserLookup(String domainBase,String[] returnAttributes,Hashtable<String,?> envConfig,List<String> domainControllers){
+        this(domainBase, returnAttributes, new ADServerBalancer(envConfig, domainControllers, DEFAULT_POOL_SIZE, 10000));
+        this.ownsPool = true;
+    }
+    /**
+     * Parameterized constructor that runs its searches over an existing pool
+     * or balancer. Use this to share one set of connections between several
+     * lookups, the pool is not closed by {@link #closeLdapConnection()}.
+     * 
+     * @param domainBase
+     * @param returnAttributes
+     * @param pool 
+     */
+    public ADUserLookup(String domainBase,String[] returnAttributes,ADConnectionSource pool){
         this.domainBase = domainBase;
+        this.pool = pool;
+        searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        if(returnAttributes != null){
+            searchCtls.setReturningAttributes(returnAttributes);
+        }else{
+            searchCtls.setReturningAttributes(null);
+        }
+        // open the first connection up front so a bad configuration shows up at startup
         try {
-            ctx = new InitialDirContext(envConfig);
-            searchCtls = new SearchControls();
-            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            if(returnAttributes != null){
-                searchCtls.setReturningAttributes(returnAttributes);
-            }else{
-                searchCtls.setReturningAttributes(null);
-            }
-            Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "********* Connected to AD....");
+            pool.borrow().close();
+            Logger.getLogger(ADUserLookup.class.getName()).log(Level.FINE, "Connected to AD");
         } catch (NamingException ex) {
             Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "Exception Connecting to Active Directory", ex);
-            ex.printStackTrace();
         }
     }
     
+    /**
+     * Copies the caller's untyped JNDI environment once into a typed table
+     * for the pools. JNDI only reads String keys, any others are left out.
+     */
+    private static Hashtable<String,Object> environment(Hashtable<?,?> envConfig){
+        Hashtable<String,Object> env = new Hashtable<>();
+        for(Map.Entry<?,?> entry : envConfig.entrySet()){
+            if(entry.getKey() instanceof String){
+                env.put((String) entry.getKey(), entry.getValue());
+            }
+        }
+        return env;
+    }
+    
     /**
      * 
      * @param searchValue
@@ -62,20 +174,215 @@ public class ADUserLookup {
      * @throws NamingException 
      */
     public NamingEnumeration searchUser( String searchValue, String searchBy) throws NamingException {
-        String filter = createQueryFilter(searchValue, searchBy);
-        return this.ctx.search(this.domainBase, filter, this.searchCtls);
+        return searchUser(searchValue, searchBy, 0);
+    }
+    /**
+     * Same as {@link #searchUser(String, String)} with a time limit that is
+     * sent to AD with the search.
+     * 
+     * @param searchValue
+     * @param searchBy
+     * @param timeoutMillis - 0 for no limit.
+     * @return
+     * @throws NamingException - TimeLimitExceededException when the limit is hit.
+     */
+    public NamingEnumeration<SearchResult> searchUser( String searchValue, String searchBy, long timeoutMillis) throws NamingException {
+        long start = System.nanoTime();
+        try {
+            String filter = createQueryFilter(searchValue, searchBy);
+            return new ResultEnumeration(search(filter, withTimeLimit(this.searchCtls, timeoutMillis)));
+        } finally {
+            metrics.userSearchLatency.record(System.nanoTime() - start);
+        }
+    }
+    /**
+     * Runs a search on a pooled connection. The results are read completely
+     * before the connection goes back to the pool since another thread may
+     * pick it up right away. A connection that fails with a
+     * CommunicationException is discarded and the search is retried once on
+     * a fresh connection. Every search is timed, failures are counted once.
+     */
+    private List<SearchResult> search(String filter, SearchControls controls) throws NamingException {
+        if(this.pool == null){
+            throw new ServiceUnavailableException("No LDAP connection, use the parameterized constructor");
+        }
+        long start = System.nanoTime();
+        try {
+            return searchWithRetry(filter, controls);
+        } catch (NamingException ex) {
+            metrics.recordFailure(ex);
+            throw ex;
+        } finally {
+            metrics.searchLatency.record(System.nanoTime() - start);
+        }
+    }
+    
+    private List<SearchResult> searchWithRetry(String filter, SearchControls controls) throws NamingException {
+        NamingException lastFailure = null;
+        for(int attempt = 0; attempt < 2; attempt++){
+            ADConnectionPool.PooledConnection conn = this.pool.borrow();
+            try {
+                long start = System.nanoTime();
+                List<SearchResult> results = readAll(conn.getContext().search(this.domainBase, filter, controls));
+                conn.recordSuccess(System.nanoTime() - start);
+                return results;
+            } catch (CommunicationException | ServiceUnavailableException ex) {
+                Logger.getLogger(ADUserLookup.class.getName()).log(Level.WARNING, "Lost LDAP connection, reconnecting", ex);
+                conn.invalidate();
+                conn.recordFailure();
+                lastFailure = ex;
+            } catch (NamingException ex) {
+                if(ADConnectionPool.isConnectionFailure(ex)){
+                    // read timeout, the server is not answering, retrying would only wait again
+                    conn.invalidate();
+                    conn.recordFailure();
+                }
+                throw ex;
+            } finally {
+                conn.close();
+            }
+        }
+        throw lastFailure;
+    }
+    
+    private static List<SearchResult> readAll(NamingEnumeration<SearchResult> results) throws NamingException {
+        List<SearchResult> list = new ArrayList<>();
+        try {
+            while(results.hasMore()){
+                list.add(results.next());
+            }
+        } catch (PartialResultException ex) {
+            // AD reports unfollowed referrals at the end of a search from the domain root
+        } finally {
+            results.close();
+        }
+        return list;
+    }
+    /**
+     * Starts a paged search over all users that match the filter. Results are
+     * fetched from AD one page at a time while the caller iterates, so the
+     * search is not cut off by the AD size limit and memory use does not grow
+     * with the number of users. The returned search holds a pooled connection
+     * until it is exhausted or closed.
+     * 
+     * @param filter - LDAP filter that is combined with the person filter, e.g.
+     * "(department=Finance)" or "(&amp;(company=ACME)(title=CTR))". 
+     * Use {@link #createUserFilter(String, String)} to build a simple one.
+     * @param pageSize - entries per page, at most the AD MaxPageSize (1000 by default).
+     * @return
+     * @throws NamingException 
+     */
+    public ADPagedSearch searchUsersPaged(String filter, int pageSize) throws NamingException {
+        return startPagedSearch(filter, pageSize, this.searchCtls);
+    }
+    /**
+     * Same as {@link #searchUsersPaged(String, int)} but returns the given
+     * attributes instead of the ones set in the constructor.
+     * 
+     * @param filter
+     * @param pageSize
+     * @param returningAttributes - null returns all attributes.
+     * @return
+     * @throws NamingException 
+     */
+    public ADPagedSearch searchUsersPaged(String filter, int pageSize, String[] returningAttributes) throws NamingException {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(returningAttributes);
+        return startPagedSearch(filter, pageSize, controls);
+    }
+    
+    private ADPagedSearch startPagedSearch(String filter, int pageSize, SearchControls controls) throws NamingException {
+        if(this.pool == null){
+            throw new ServiceUnavailableException("No LDAP connection, use the parameterized constructor");
+        }
+        if(pageSize < 1){
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        return new ADPagedSearch(this.pool.borrow(), this.domainBase, 
+                this.baseFilter.concat(filter).concat(")"), controls, pageSize);
+    }
+    /**
+     * Streams the attributes of all users that match the filter, see 
+     * {@link #searchUsersPaged(String, int)}. Each element is a map with the
+     * same keys as {@link #getUserAttributesMap(String)}. The stream must be
+     * closed to give the connection back:
+     * <pre>
+     * try(Stream&lt;Map&lt;String,String&gt;&gt; users = lookup.streamUsers("(company=ACME)", 500)){
+     *     users.forEach(...);
+     * }
+     * </pre>
+     * 
+     * @param filter
+     * @param pageSize
+     * @return
+     * @throws NamingException 
+     */
+    public Stream<Map<String,String>> streamUsers(String filter, int pageSize) throws NamingException {
+        return streamUserRecords(filter, pageSize).map(new Function<ADUserRecord,Map<String,String>>() {
+            @Override
+            public Map<String,String> apply(ADUserRecord record) {
+                return record.asMap();
+            }
+        });
+    }
+    /**
+     * Same as {@link #streamUsers(String, int)} but returns fixed layout
+     * records. Only the mapped attributes are requested from AD.
+     * 
+     * @param filter
+     * @param pageSize
+     * @return
+     * @throws NamingException 
+     */
+    public Stream<ADUserRecord> streamUserRecords(String filter, int pageSize) throws NamingException {
+        final ADAttributeMapping mapping = this.attributeMapping;
+        final ADPagedSearch search = startPagedSearch(filter, pageSize, this.mappingCtls);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(search, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        search.close();
+                    }
+                })
+                .map(new Function<SearchResult,ADUserRecord>() {
+                    @Override
+                    public ADUserRecord apply(SearchResult rs) {
+                        return mapping.project(rs.getAttributes());
+                    }
+                });
+    }
+    /**
+     * Creates a filter for {@link #searchUsersPaged(String, int)} that matches
+     * one attribute. The value is escaped.
+     * 
+     * @param searchValue
+     * @param searchBy - "username", "email", "department", "company" or "title"
+     * @return 
+     */
+    public static String createUserFilter(String searchValue, String searchBy){
+        String attribute = filterAttribute(searchBy);
+        if (attribute == null) {
+            throw new IllegalArgumentException("Unsupported searchBy: " + searchBy);
+        }
+        StringBuilder filter = new StringBuilder("(").append(attribute).append('=');
+        escapeFilterValue(searchValue, filter);
+        return filter.append(')').toString();
     }
     /**
      * Closes connection to LDAP
      */
     public void closeLdapConnection() {
-        Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "Closing LDAP Connection.");
-        try {
-            if (ctx != null) {
-                ctx.close();
+        Logger.getLogger(ADUserLookup.class.getName()).log(Level.FINE, "Closing LDAP Connection.");
+        metrics.unregister();
+        if (pool != null && ownsPool) {
+            pool.close();
+        }
+        synchronized (this) {
+            if (executor != null && ownsExecutor) {
+                executor.shutdown();
+                executor = null;
             }
-        } catch (NamingException e) {
-            Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "Exception closing LDAP Connection", e);
         }
     }/**
      * Searches for a user in the AD by their username and returns a HashMap containing
@@ -99,156 +406,578 @@ public class ADUserLookup {
      * - company
      * - department
      * 
+     * When an attribute cache is set the map is a copy of the cached entry.
+     * 
      * @param userName
      * @return 
      */
     public HashMap<String,String> getUserAttributesMap(String userName){
-        HashMap<String,String> attributeMap = new HashMap<>();
+        return new HashMap<>(findUserAttributes(userName, "username"));
+    }
+    /**
+     * Looks up a user by username or email and returns the same attributes as
+     * {@link #getUserAttributesMap(String)}. When an attribute cache is set the
+     * answer comes from the cache if possible and the returned map is the one
+     * shared by all callers, so it can not be modified.
+     * If the user does not exist or AD can not be reached the map is empty.
+     * 
+     * @param searchValue
+     * @param searchBy - "username" or "email"
+     * @return 
+     */
+    public Map<String,String> findUserAttributes(String searchValue, String searchBy){
         try {
-            NamingEnumeration<SearchResult> result = searchUser(userName,"username");
-            if(result.hasMore()){
-                String temp;
-                SearchResult rs = (SearchResult)result.next();
-                Attributes attrs = rs.getAttributes();
-                /**
-                 * A user in the AD may or may not have a value for all of the attributes
-                 * that are needed for the application. In order to prevent bad behavior 
-                 * by the application if there is no value for an attribute then an
-                 * empty String for that attribute is placed into the returned HashMap.
-                 */
-                // UserName
-                try{
-                    temp = attrs.get("samaccountname").toString();
-                    attributeMap.put("userName", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "userName not found for user: {0}", userName);
-                    attributeMap.put("userName", "");
-                }
-                // FirstName
-                try{
-                    temp = attrs.get("givenname").toString();
-                    attributeMap.put("firstName", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "firstName not found for user: ", ne);
-                    attributeMap.put("firstName", "");
-                }
-                // LastName
-                try{
-                    temp = attrs.get("sn").toString();
-                    attributeMap.put("lastName", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "lastName not found for user", ne);
-                    attributeMap.put("lastName", "");
-                }
-                // email
-                try{
-                    temp = attrs.get("mail").toString();
-                    attributeMap.put("mail", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "mail not found for user", ne);
-                    attributeMap.put("mail", "");
-                }
-                // display name
-                try{
-                    temp = attrs.get("cn").toString();
-                    attributeMap.put("displayName", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "displayName not found for user", ne);
-                    attributeMap.put("displayName", "");
-                }
-                // location/city
-                try{
-                    temp = attrs.get("l").toString();
-                    attributeMap.put("city", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "city not found for user", ne);
-                    attributeMap.put("city", "");
-                }
-                // street name
-                try{
-                    temp = attrs.get("StreetAddress").toString();
-                    attributeMap.put("street", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "street not found for user", ne);
-                    attributeMap.put("street", "");
+            ADUserRecord record = lookupRecord(searchValue, searchBy, 0);
+            return record == null ? Collections.<String,String>emptyMap() : record.asMap();
+        } catch (NamingException ex) {
+            Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "AD Query Exception", ex);
+            return Collections.emptyMap();
+        }
+    }
+    /**
+     * Looks up a user by username or email and returns its attributes as a
+     * fixed layout record, see {@link #setAttributeMapping(ADAttributeMapping)}.
+     * Uses the attribute cache when one is set.
+     * 
+     * @param searchValue
+     * @param searchBy - "username" or "email"
+     * @return the record or null if the user does not exist.
+     * @throws NamingException 
+     */
+    public ADUserRecord findUserRecord(String searchValue, String searchBy) throws NamingException {
+        return lookupRecord(searchValue, searchBy, 0);
+    }
+    
+    /**
+     * Replica, then cache, then single flight, then AD. The cache is filled by
+     * the thread that runs the search so threads arriving after it finished
+     * hit the cache. Users the replica does not know yet are looked up in AD.
+     */
+    private ADUserRecord lookupRecord(String searchValue, String searchBy, long timeoutMillis) throws NamingException {
+        long start = System.nanoTime();
+        try {
+            return resolveRecord(searchValue, searchBy, timeoutMillis);
+        } finally {
+            metrics.attributeLookupLatency.record(System.nanoTime() - start);
+        }
+    }
+    private ADUserRecord resolveRecord(final String searchValue, final String searchBy, final long timeoutMillis) throws NamingException {
+        ADUserRecord replicated = fromReplica(searchValue, searchBy);
+        if(replicated != null){
+            return replicated;
+        }
+        final ADAttributeCache cache = this.attributeCache;
+        if(cache != null){
+            Map<String,String> cached = cache.get(searchValue, searchBy);
+            if(cached != null){
+                if(cached.isEmpty()){
+                    return null;
                 }
-                // state
-                try{
-                    temp = attrs.get("st").toString();
-                    attributeMap.put("state", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "state not found for user", ne);
-                    attributeMap.put("state", "");
+                ADUserRecord record = ADUserRecord.of(cached);
+                if(record == null){
+                    // a plain map put by the caller, laid out once and cached as a record
+                    record = this.attributeMapping.project(cached);
+                    cache.put(searchValue, searchBy, record);
                 }
-                // zip code
-                try{
-                    temp = attrs.get("PostalCode").toString();
-                    attributeMap.put("zip", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "zip not found for user", ne);
-                    attributeMap.put("zip", "");
+                if(record.getMapping() == this.attributeMapping){
+                    return record;
                 }
-                // phone number
-                try{
-                    temp = attrs.get("telephoneNumber").toString();
-                    attributeMap.put("phone", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "phone not found for user", ne);
-                    attributeMap.put("phone", "");
+            }
+        }
+        ADSingleFlight.Loader<ADUserRecord> loader = new ADSingleFlight.Loader<ADUserRecord>() {
+            @Override
+            public ADUserRecord load() throws NamingException {
+                ADUserRecord record = loadUserRecord(searchValue, searchBy, timeoutMillis);
+                if(cache != null){
+                    if(record == null){
+                        cache.putNotFound(searchValue, searchBy);
+                    }else{
+                        cache.put(searchValue, searchBy, record);
+                    }
                 }
-                // title (CTR/CIV)
-                try{
-                    temp = attrs.get("Title").toString();
-                    attributeMap.put("title", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "title not found for user", ne);
-                    attributeMap.put("title", "");
+                return record;
+            }
+        };
+        if(!this.coalesceLookups){
+            return loader.load();
+        }
+        return this.singleFlight.execute(ADAttributeCache.key(searchValue, searchBy), loader);
+    }
+    private ADUserRecord fromReplica(String searchValue, String searchBy){
+        ADDirectoryReplica replica = this.replica;
+        if(replica == null){
+            return null;
+        }
+        ADUserRecord record = replica.find(searchValue, searchBy);
+        return record != null && record.getMapping() == this.attributeMapping ? record : null;
+    }
+    /**
+     * Searches AD for the user and maps its attributes.
+     * 
+     * @return the record or null if there is no such user.
+     */
+    private ADUserRecord loadUserRecord(String searchValue, String searchBy, long timeoutMillis) throws NamingException {
+        ADAttributeMapping mapping = this.attributeMapping;
+        List<SearchResult> results = search(createQueryFilter(searchValue, searchBy), withTimeLimit(this.mappingCtls, timeoutMillis));
+        if(results.isEmpty()){
+            return null;
+        }
+        ADUserRecord record = mapping.project(results.get(0).getAttributes());
+        metrics.recordMissing(record);
+        return record;
+    }
+    
+    /**
+     * Checks whether a user is a member of a group, directly or through
+     * nested groups. Uses the cached groups of the user if there are any.
+     * 
+     * @param userName - sAMAccountName
+     * @param groupDn - distinguished name of the group, case is ignored.
+     * @return false also when the user does not exist.
+     * @throws NamingException 
+     */
+    public boolean isMemberOf(String userName, String groupDn) throws NamingException {
+        ADGroupMembership membership = this.groupMembership;
+        BitSet groups = effectiveGroups(membership, userName);
+        int id = membership.groupId(groupDn);
+        return id >= 0 && groups.get(id);
+    }
+    /**
+     * Returns every group a user is a member of, directly or through nested
+     * groups. AD resolves the nesting in a single search using the
+     * LDAP_MATCHING_RULE_IN_CHAIN (1.2.840.113556.1.4.1941) matching rule,
+     * the result is cached, see {@link #setGroupMembership(ADGroupMembership)}.
+     * 
+     * @param userName - sAMAccountName
+     * @return the group DNs, empty when the user does not exist.
+     * @throws NamingException 
+     */
+    public Set<String> getEffectiveGroups(String userName) throws NamingException {
+        ADGroupMembership membership = this.groupMembership;
+        return membership.groupNames(effectiveGroups(membership, userName));
+    }
+    private BitSet effectiveGroups(final ADGroupMembership membership, final String userName) throws NamingException {
+        BitSet cached = membership.get(userName);
+        if(cached != null){
+            return cached;
+        }
+        long start = System.nanoTime();
+        try {
+            return this.groupFlight.execute(ADGroupMembership.key(userName), new ADSingleFlight.Loader<BitSet>() {
+                @Override
+                public BitSet load() throws NamingException {
+                    return membership.put(userName, loadEffectiveGroups(userName));
                 }
-                // country abbreviation
-                try{
-                    temp = attrs.get("c").toString();
-                    attributeMap.put("country", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "country not found for user", ne);
-                    attributeMap.put("country", "");
+            });
+        } finally {
+            metrics.groupLookupLatency.record(System.nanoTime() - start);
+        }
+    }
+    /**
+     * Finds the DN of the user, then all groups whose member attribute
+     * contains it through any chain of groups.
+     */
+    private List<String> loadEffectiveGroups(String userName) throws NamingException {
+        SearchControls dnOnly = new SearchControls();
+        dnOnly.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        dnOnly.setReturningAttributes(new String[0]);
+        List<SearchResult> users = search(createQueryFilter(Collections.singletonList(userName), "username"), dnOnly);
+        if(users.isEmpty()){
+            return Collections.emptyList();
+        }
+        StringBuilder filter = new StringBuilder("(&(objectCategory=group)(member:1.2.840.113556.1.4.1941:=");
+        escapeFilterValue(users.get(0).getNameInNamespace(), filter);
+        filter.append("))");
+        // users in large tenants can be in more nested groups than fit one page
+        List<String> dns = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ADPagedSearch groups = new ADPagedSearch(this.pool.borrow(), this.domainBase, filter.toString(), dnOnly, GROUP_PAGE_SIZE)) {
+            while(groups.hasNext()){
+                dns.add(groups.next().getNameInNamespace());
+            }
+        } catch (IllegalStateException ex) {
+            if(ex.getCause() instanceof NamingException){
+                metrics.recordFailure((NamingException)ex.getCause());
+                throw (NamingException)ex.getCause();
+            }
+            throw ex;
+        } catch (NamingException ex) {
+            metrics.recordFailure(ex);
+            throw ex;
+        } finally {
+            metrics.searchLatency.record(System.nanoTime() - start);
+        }
+        return dns;
+    }
+    
+    /**
+     * Looks up many users at once. The names are split into chunks and each
+     * chunk is resolved with a single search using an OR filter, e.g.
+     * (|(samaccountname=a)(samaccountname=b)...). Chunks run in parallel, each
+     * on its own pooled connection. Users found in the attribute cache are not
+     * searched for again.
+     * 
+     * @param names - sAMAccountNames or emails, duplicates are only searched once.
+     * @param searchBy - "username" or "email"
+     * @return found users by name plus the names that do not exist or could not be searched.
+     */
+    public ADBatchResult getUserAttributesBatch(Collection<String> names, String searchBy){
+        CompletableFuture<ADBatchResult> future = startBatch(names, searchBy, 0);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return failedBatch(names);
+        } catch (ExecutionException ex) {
+            Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "AD Query Exception", ex.getCause());
+            return failedBatch(names);
+        }
+    }
+    /**
+     * Starts the chunk searches of a batch and returns a future that completes
+     * once all of them finished. Never completes exceptionally, names of
+     * chunks that failed are reported as failed.
+     */
+    private CompletableFuture<ADBatchResult> startBatch(final Collection<String> names, final String searchBy, long timeoutMillis){
+        final String attribute = filterAttribute(searchBy);
+        if(attribute == null){
+            throw new IllegalArgumentException("Unsupported searchBy: " + searchBy);
+        }
+        final ADAttributeMapping mapping = this.attributeMapping;
+        final ADBatchResult batchResult = new ADBatchResult();
+        final ADAttributeCache cache = this.attributeCache;
+        // normalized name -> name as passed in, one entry per name still to search
+        final LinkedHashMap<String,String> pending = new LinkedHashMap<>();
+        for(String name : names){
+            String key = ADAttributeCache.key(name, searchBy);
+            if(key == null){
+                batchResult.addMissing(name);
+                continue;
+            }
+            ADUserRecord replicated = fromReplica(name, searchBy);
+            if(replicated != null){
+                batchResult.addFound(name, replicated.asMap());
+                continue;
+            }
+            Map<String,String> cached = cache == null ? null : cache.get(name, searchBy);
+            if(cached == null){
+                if(!pending.containsKey(key)){
+                    pending.put(key, name);
                 }
-                // country name full
-                try{
-                    temp = attrs.get("co").toString();
-                    attributeMap.put("countryName", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "countryName not found for user", ne);
-                    attributeMap.put("countryName", "");
+            }else if(cached.isEmpty()){
+                batchResult.addMissing(name);
+            }else{
+                batchResult.addFound(name, cached);
+            }
+        }
+        if(pending.isEmpty()){
+            return CompletableFuture.completedFuture(batchResult);
+        }
+        
+        final SearchControls controls = withTimeLimit(controlsReturning(attribute), timeoutMillis);
+        int chunkSize = this.batchChunkSize;
+        final List<List<String>> chunks = new ArrayList<>();
+        final List<CompletableFuture<List<SearchResult>>> futures = new ArrayList<>();
+        List<String> all = new ArrayList<>(pending.values());
+        for(int from = 0; from < all.size(); from += chunkSize){
+            List<String> chunk = all.subList(from, Math.min(from + chunkSize, all.size()));
+            final String filter = createQueryFilter(chunk, searchBy);
+            chunks.add(chunk);
+            futures.add(CompletableFuture.supplyAsync(new Supplier<List<SearchResult>>() {
+                @Override
+                public List<SearchResult> get() {
+                    try {
+                        return search(filter, controls);
+                    } catch (NamingException ex) {
+                        throw new CompletionException(ex);
+                    }
                 }
-                // middle initial
-                try{
-                    temp = attrs.get("Initials").toString();
-                    attributeMap.put("mi", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "mi not found for user", ne);
-                    attributeMap.put("mi", "");
+            }, getExecutor()));
+        }
+        
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .handle(new BiFunction<Void,Throwable,ADBatchResult>() {
+            @Override
+            public ADBatchResult apply(Void ignored, Throwable failure) {
+                Map<String,Map<String,String>> foundByKey = new HashMap<>();
+                Set<String> failedKeys = new HashSet<>();
+                for(int i = 0; i < futures.size(); i++){
+                    List<String> chunk = chunks.get(i);
+                    List<SearchResult> results;
+                    try {
+                        results = futures.get(i).join();
+                    } catch (CompletionException | CancellationException ex) {
+                        Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "AD Query Exception", ex.getCause());
+                        for(String name : chunk){
+                            String key = ADAttributeCache.key(name, searchBy);
+                            if(pending.remove(key) != null){
+                                batchResult.addFailed(name);
+                                failedKeys.add(key);
+                            }
+                        }
+                        continue;
+                    }
+                    for(SearchResult rs : results){
+                        Attributes attrs = rs.getAttributes();
+                        String key = ADAttributeCache.key(ADAttributeMapping.stringValue(attrs.get(attribute)), searchBy);
+                        String name = pending.remove(key);
+                        if(name != null){
+                            ADUserRecord record = mapping.project(attrs);
+                            Map<String,String> attributes = cache == null 
+                                    ? record.asMap() 
+                                    : cache.put(name, searchBy, record);
+                            batchResult.addFound(name, attributes);
+                            foundByKey.put(key, attributes);
+                        }
+                    }
+                    for(String name : chunk){
+                        if(pending.remove(ADAttributeCache.key(name, searchBy)) != null){
+                            batchResult.addMissing(name);
+                            if(cache != null){
+                                cache.putNotFound(name, searchBy);
+                            }
+                        }
+                    }
                 }
-                // company - might not exist for all users
-                try{
-                    temp = attrs.get("Company").toString();
-                    attributeMap.put("company", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "company not found for user", ne);
-                    attributeMap.put("company", "");
+                // the same user can be asked for under several spellings, give each the same answer
+                for(String name : names){
+                    String key = ADAttributeCache.key(name, searchBy);
+                    if(key == null || batchResult.get(name) != null 
+                            || batchResult.getMissing().contains(name) || batchResult.getFailed().contains(name)){
+                        continue;
+                    }
+                    Map<String,String> attributes = foundByKey.get(key);
+                    if(attributes != null){
+                        batchResult.addFound(name, attributes);
+                    }else if(failedKeys.contains(key)){
+                        batchResult.addFailed(name);
+                    }else{
+                        batchResult.addMissing(name);
+                    }
                 }
-                // department - might not exist for all users
-                try{
-                    temp = attrs.get("Department").toString();
-                    attributeMap.put("department", temp.substring(temp.indexOf(":")+1));
-                }catch (Exception ne){
-                    Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "department not found for user", ne);
-                    attributeMap.put("department", "");
+                return batchResult;
+            }
+        });
+    }
+    
+    private static ADBatchResult failedBatch(Collection<String> names){
+        ADBatchResult batchResult = new ADBatchResult();
+        for(String name : names){
+            batchResult.addFailed(name);
+        }
+        return batchResult;
+    }
+    
+    /**
+     * Asynchronous version of {@link #searchUser(String, String)}. Runs on the
+     * lookup executor, see {@link #setExecutor(ExecutorService)}.
+     * 
+     * @param searchValue
+     * @param searchBy
+     * @param timeoutMillis - AD time limit for the search and deadline for the
+     * future, which then fails with a TimeoutException. 0 for no limit.
+     * @return future that fails with ServiceUnavailableException right away if
+     * the concurrent request limit is reached.
+     */
+    public CompletableFuture<NamingEnumeration<SearchResult>> searchUserAsync(final String searchValue, final String searchBy, final long timeoutMillis){
+        return submitAsync(new Callable<NamingEnumeration<SearchResult>>() {
+            @Override
+            public NamingEnumeration<SearchResult> call() throws NamingException {
+                return searchUser(searchValue, searchBy, timeoutMillis);
+            }
+        }, timeoutMillis);
+    }
+    /**
+     * Asynchronous version of {@link #getUserAttributesMap(String)}. Unlike the
+     * synchronous method a failed search completes the future exceptionally
+     * instead of returning an empty map.
+     * 
+     * @param userName
+     * @param timeoutMillis - AD time limit for the search and deadline for the future. 0 for no limit.
+     * @return 
+     */
+    public CompletableFuture<HashMap<String,String>> getUserAttributesMapAsync(final String userName, final long timeoutMillis){
+        return submitAsync(new Callable<HashMap<String,String>>() {
+            @Override
+            public HashMap<String,String> call() throws NamingException {
+                ADUserRecord record = lookupRecord(userName, "username", timeoutMillis);
+                return record == null ? new HashMap<String,String>() : record.toMap();
+            }
+        }, timeoutMillis);
+    }
+    /**
+     * Asynchronous version of {@link #findUserRecord(String, String)}.
+     * 
+     * @param searchValue
+     * @param searchBy
+     * @param timeoutMillis - AD time limit for the search and deadline for the future. 0 for no limit.
+     * @return future of the record or null if the user does not exist.
+     */
+    public CompletableFuture<ADUserRecord> findUserRecordAsync(final String searchValue, final String searchBy, final long timeoutMillis){
+        return submitAsync(new Callable<ADUserRecord>() {
+            @Override
+            public ADUserRecord call() throws NamingException {
+                return lookupRecord(searchValue, searchBy, timeoutMillis);
+            }
+        }, timeoutMillis);
+    }
+    /**
+     * Asynchronous version of {@link #getUserAttributesBatch(Collection, String)}.
+     * The whole batch counts as one request against the concurrency limit.
+     * 
+     * @param names
+     * @param searchBy
+     * @param timeoutMillis - AD time limit for each chunk search and deadline for the future. 0 for no limit.
+     * @return 
+     */
+    public CompletableFuture<ADBatchResult> getUserAttributesBatchAsync(Collection<String> names, String searchBy, long timeoutMillis){
+        final Semaphore permits = this.requestPermits;
+        if(!permits.tryAcquire()){
+            return rejected();
+        }
+        CompletableFuture<ADBatchResult> future;
+        try {
+            future = startBatch(names, searchBy, timeoutMillis);
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+        future.whenComplete(new BiConsumer<ADBatchResult,Throwable>() {
+            @Override
+            public void accept(ADBatchResult result, Throwable failure) {
+                permits.release();
+            }
+        });
+        return withDeadline(future, timeoutMillis);
+    }
+    
+    /**
+     * Runs the task on the executor if a request permit is free. The permit is
+     * held until the task finished, even when the deadline passed before, since
+     * the search is still running on the DC.
+     */
+    private <T> CompletableFuture<T> submitAsync(final Callable<T> task, long timeoutMillis){
+        final Semaphore permits = this.requestPermits;
+        if(!permits.tryAcquire()){
+            return rejected();
+        }
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable ex) {
+                        future.completeExceptionally(ex);
+                    } finally {
+                        permits.release();
+                    }
                 }
+            });
+        } catch (RejectedExecutionException ex) {
+            permits.release();
+            future.completeExceptionally(ex);
+        }
+        return withDeadline(future, timeoutMillis);
+    }
+    
+    private <T> CompletableFuture<T> rejected(){
+        metrics.recordRejected();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new ServiceUnavailableException(
+                "Too many concurrent AD lookups, the limit is " + this.maxConcurrentRequests));
+        return future;
+    }
+    
+    private static <T> CompletableFuture<T> withDeadline(final CompletableFuture<T> future, final long timeoutMillis){
+        if(timeoutMillis <= 0 || future.isDone()){
+            return future;
+        }
+        final ScheduledFuture<?> timer = DeadlineTimer.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException("AD lookup did not finish within " + timeoutMillis + " ms"));
             }
-        } catch (NamingException ex) {
-            Logger.getLogger(ADUserLookup.class.getName()).log(Level.SEVERE, "AD Query Exception", ex);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<T,Throwable>() {
+            @Override
+            public void accept(T result, Throwable failure) {
+                timer.cancel(false);
+            }
+        });
+        return future;
+    }
+    /**
+     * Copy of the search controls with the AD time limit set.
+     */
+    private static SearchControls withTimeLimit(SearchControls base, long timeoutMillis){
+        if(timeoutMillis <= 0){
+            return base;
         }
-        return attributeMap;
+        return new SearchControls(base.getSearchScope(), base.getCountLimit(), 
+                (int)Math.min(timeoutMillis, Integer.MAX_VALUE), base.getReturningAttributes(), 
+                base.getReturningObjFlag(), base.getDerefLinkFlag());
+    }
+    /**
+     * Copy of the attribute search controls that makes sure the attribute is returned.
+     */
+    private SearchControls controlsReturning(String attribute){
+        SearchControls base = this.mappingCtls;
+        String[] returning = base.getReturningAttributes();
+        boolean present = false;
+        for(String returned : returning){
+            present |= returned.equalsIgnoreCase(attribute);
+        }
+        if(!present){
+            returning = Arrays.copyOf(returning, returning.length + 1);
+            returning[returning.length - 1] = attribute;
+        }
+        return new SearchControls(base.getSearchScope(), base.getCountLimit(), 
+                base.getTimeLimit(), returning, base.getReturningObjFlag(), 
+                base.getDerefLinkFlag());
+    }
+    /**
+     * Executor for the asynchronous lookups and the parallel batch searches.
+     * Unless one was set, an executor that starts a virtual thread per task is
+     * created on first use. On a JVM without virtual threads a fixed pool of
+     * daemon threads, one per allowed concurrent request, is used instead.
+     */
+    private synchronized ExecutorService getExecutor(){
+        if(this.executor == null){
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                this.executor = (ExecutorService)factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                this.executor = Executors.newFixedThreadPool(Math.max(this.maxConcurrentRequests, 1), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ADUserLookup-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            this.ownsExecutor = true;
+        }
+        return this.executor;
+    }
+    
+    /**
+     * Holds the daemon thread that fails async lookups at their deadline.
+     */
+    private static final class DeadlineTimer {
+        
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ADUserLookup-deadline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
     /**
      * 
@@ -302,15 +1031,263 @@ public class ADUserLookup {
     }    
     private String createQueryFilter( String searchValue, String searchBy ) {
         String filter = this.baseFilter;
+        String attribute = filterAttribute(searchBy);
+        if (attribute != null) {
+            filter = filter.concat("(").concat(attribute).concat("=").concat(searchValue).concat("))");
+        }
+        return filter;
+    }
+    /**
+     * Creates a filter that matches any of the values, e.g.
+     * (|(samaccountname=a)(samaccountname=b)). Unlike the single value filter
+     * the values are escaped so a name can not turn into a wildcard.
+     */
+    private String createQueryFilter( Collection<String> searchValues, String searchBy ) {
+        String attribute = filterAttribute(searchBy);
+        if (attribute == null) {
+            throw new IllegalArgumentException("Unsupported searchBy: " + searchBy);
+        }
+        StringBuilder filter = new StringBuilder(this.baseFilter.length() + searchValues.size() * 32);
+        filter.append(this.baseFilter).append("(|");
+        for (String value : searchValues) {
+            filter.append('(').append(attribute).append('=');
+            escapeFilterValue(value, filter);
+            filter.append(')');
+        }
+        return filter.append("))").toString();
+    }
+    /**
+     * LDAP attribute that is searched for a searchBy value.
+     */
+    private static String filterAttribute( String searchBy ) {
         if (searchBy.equals("email")) {
-            filter = filter.concat("(mail=").concat(searchValue).concat("))");
+            return "mail";
         } else if (searchBy.equals("username")) {
-            filter = filter.concat("(samaccountname=").concat(searchValue).concat("))");
+            return "samaccountname";
+        } else if (searchBy.equals("department")) {
+            return "department";
+        } else if (searchBy.equals("company")) {
+            return "company";
+        } else if (searchBy.equals("title")) {
+            return "title";
+        }
+        return null;
+    }
+    /**
+     * Escapes the characters that have a meaning in a search filter (RFC 4515).
+     */
+    private static void escapeFilterValue( String value, StringBuilder out ) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\5c"); break;
+                case '*': out.append("\\2a"); break;
+                case '(': out.append("\\28"); break;
+                case ')': out.append("\\29"); break;
+                case '\0': out.append("\\00"); break;
+                default: out.append(c);
+            }
         }
-        return filter;
+    }
+    
+    public ADAttributeMapping getAttributeMapping() {
+        return attributeMapping;
+    }
+    
+    /**
+     * Sets the attributes read by the attribute lookups (getUserAttributesMap,
+     * findUserRecord, batch and stream). Defaults to {@link ADAttributeMapping#DEFAULT}.
+     * Searches only request the mapped attributes from AD. If an attribute
+     * cache is shared with other lookups they should use the same mapping.
+     * 
+     * @param attributeMapping 
+     */
+    public void setAttributeMapping(ADAttributeMapping attributeMapping) {
+        this.mappingCtls = mappingControls(attributeMapping);
+        this.attributeMapping = attributeMapping;
+    }
+    
+    private static SearchControls mappingControls(ADAttributeMapping mapping) {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(mapping.getReturningAttributes());
+        return controls;
+    }
+    
+    public ADAttributeCache getAttributeCache() {
+        return attributeCache;
+    }
+    
+    /**
+     * Puts a cache in front of the attribute lookups. Several ADUserLookup
+     * instances for the same domain can share one cache.
+     * 
+     * @param attributeCache - the cache or null to always query AD.
+     */
+    public void setAttributeCache(ADAttributeCache attributeCache) {
+        this.attributeCache = attributeCache;
+    }
+    
+    public ADDirectoryReplica getReplica() {
+        return replica;
+    }
+    
+    /**
+     * Serves attribute lookups from a local replica of the directory. Users
+     * that are not in the replica are still looked up in AD.
+     * 
+     * @param replica - the replica or null to always query AD.
+     */
+    public void setReplica(ADDirectoryReplica replica) {
+        this.replica = replica;
+    }
+    
+    /**
+     * @return latency, error and cache statistics of this lookup, see
+     * {@link ADLookupMetrics#register(String)} to publish them over JMX.
+     */
+    public ADLookupMetrics getMetrics() {
+        return metrics;
+    }
+    
+    ADConnectionSource getConnectionSource() {
+        return pool;
+    }
+    
+    public ADGroupMembership getGroupMembership() {
+        return groupMembership;
+    }
+    
+    /**
+     * Sets the cache used by {@link #isMemberOf(String, String)} and
+     * {@link #getEffectiveGroups(String)}. By default every instance has its
+     * own cache of 10000 users for 5 minutes.
+     * 
+     * @param groupMembership 
+     */
+    public void setGroupMembership(ADGroupMembership groupMembership) {
+        this.groupMembership = groupMembership;
+    }
+    
+    public boolean isCoalesceLookups() {
+        return coalesceLookups;
+    }
+    
+    /**
+     * When on (the default) concurrent attribute lookups of the same user
+     * share one search, see {@link #getCoalescedLookupCount()}.
+     * 
+     * @param coalesceLookups 
+     */
+    public void setCoalesceLookups(boolean coalesceLookups) {
+        this.coalesceLookups = coalesceLookups;
+    }
+    
+    /**
+     * @return number of attribute lookups that did not search AD themselves
+     * because the same user was being looked up by another thread.
+     */
+    public long getCoalescedLookupCount() {
+        return singleFlight.getCoalescedCount();
+    }
+    
+    /**
+     * @return number of attribute lookups that went past the cache while
+     * coalescing was on, coalesced ones included.
+     */
+    public long getUncachedLookupCount() {
+        return singleFlight.getCallCount();
+    }
+    
+    public int getBatchChunkSize() {
+        return batchChunkSize;
+    }
+    
+    /**
+     * @param batchChunkSize - number of names per search in getUserAttributesBatch.
+     * Default 200. Keep it below the AD MaxPageSize (1000 by default).
+     */
+    public void setBatchChunkSize(int batchChunkSize) {
+        if(batchChunkSize < 1){
+            throw new IllegalArgumentException("batchChunkSize must be at least 1");
+        }
+        this.batchChunkSize = batchChunkSize;
+    }
+    
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+    
+    /**
+     * Limits how many asynchronous lookups may be running or waiting at the
+     * same time. Further calls fail right away with ServiceUnavailableException
+     * so a slow DC can not tie up an unbounded number of threads. Default 32.
+     * 
+     * @param maxConcurrentRequests 
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if(maxConcurrentRequests < 1){
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        }
+        this.requestPermits = new Semaphore(maxConcurrentRequests);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+    
+    /**
+     * Sets the executor used to run asynchronous lookups and batch searches.
+     * The executor is not shut down by {@link #closeLdapConnection()}.
+     * 
+     * @param executor 
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        if (this.executor != null && this.ownsExecutor) {
+            this.executor.shutdown();
+        }
+        this.executor = executor;
+        this.ownsExecutor = false;
     }
     
     private String getDomainBase() {
        return this.domainBase;
     }
+    
+    /**
+     * NamingEnumeration over search results that were already read from the
+     * connection.
+     */
+    private static class ResultEnumeration implements NamingEnumeration<SearchResult> {
+        
+        private final Iterator<SearchResult> it;
+        
+        ResultEnumeration(List<SearchResult> results){
+            this.it = results.iterator();
+        }
+        
+        @Override
+        public SearchResult next() throws NamingException {
+            return nextElement();
+        }
+
+        @Override
+        public boolean hasMore() throws NamingException {
+            return it.hasNext();
+        }
+
+        @Override
+        public void close() throws NamingException {
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return it.hasNext();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            if(!it.hasNext()){
+                throw new NoSuchElementException();
+            }
+            return it.next();
+        }
+    }
 }
@@ -0,0 +1,135 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The attributes of one user laid out as defined by an ADAttributeMapping.
+ * Values are kept in a single array and are never null, missing attributes
+ * are empty Strings. Records are immutable and can be shared between threads.
+ * @author DCConway
+ */
+public final class ADUserRecord {
+
+    private final ADAttributeMapping mapping;
+    private final String[] values;
+    private Map<String,String> mapView;
+
+    ADUserRecord(ADAttributeMapping mapping, String[] values){
+        this.mapping = mapping;
+        this.values = values;
+    }
+
+    /**
+     * @param index - position of the attribute in the mapping.
+     * @return
+     */
+    public String get(int index){
+        return values[index];
+    }
+
+    /**
+     * @param key - e.g. "userName" or "mail".
+     * @return the value or null if the mapping has no such key.
+     */
+    public String get(String key){
+        int index = mapping.indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    public ADAttributeMapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * @return an unmodifiable Map view of the record, it does not copy the values.
+     */
+    public Map<String,String> asMap(){
+        Map<String,String> view = mapView;
+        if(view == null){
+            view = new MapView();
+            mapView = view;
+        }
+        return view;
+    }
+
+    /**
+     * @return a modifiable copy in the format returned by getUserAttributesMap.
+     */
+    public HashMap<String,String> toMap(){
+        HashMap<String,String> map = new HashMap<>(values.length * 2);
+        for(int i = 0; i < values.length; i++){
+            map.put(mapping.getKey(i), values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * @return the record behind a map returned by asMap, or null for any other map.
+     */
+    static ADUserRecord of(Map<String,String> map){
+        return map instanceof ADUserRecord.MapView ? ((MapView)map).record() : null;
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    private final class MapView extends AbstractMap<String,String> {
+
+        ADUserRecord record() {
+            return ADUserRecord.this;
+        }
+
+        @Override
+        public String get(Object key) {
+            int index = mapping.indexOf(key);
+            return index < 0 ? null : values[index];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return mapping.indexOf(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public Set<Map.Entry<String,String>> entrySet() {
+            return new AbstractSet<Map.Entry<String,String>>() {
+                @Override
+                public Iterator<Map.Entry<String,String>> iterator() {
+                    return new Iterator<Map.Entry<String,String>>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < values.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String,String> next() {
+                            if(index >= values.length){
+                                throw new NoSuchElementException();
+                            }
+                            int i = index++;
+                            return new AbstractMap.SimpleImmutableEntry<>(mapping.getKey(i), values[i]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return values.length;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Column widths worked out from the length of what is written to each column,
+ * in place of Sheet.autoSizeColumn which lays out every cell of the column
+ * again with AWT font metrics and only sees the rows still in memory when
+ * streaming.
+ *
+ * Lengths are counted in characters as cells are written. The width used is
+ * the longest value, or with a percentile below 1 the length that percentile
+ * of the values fit in, so a few odd values do not make the column too wide.
+ * Either way it is capped at maxChars.
+ * @author DCConway
+ */
+final class PoiColumnWidths {
+
+    /** Widest column Excel allows, in characters. */
+    static final int EXCEL_MAX_CHARS = 255;
+
+    private static final int PADDING_CHARS = 2;
+
+    private final double percentile;
+    private final int maxChars;
+    private final int[] minimum;
+    private final int[] max;
+    private final long[] count;
+    private final int[][] histograms;
+
+    /**
+     * @param columns - number of columns.
+     * @param percentile - share of the values the width should fit, 1 for all.
+     * @param maxChars - cap on the width in characters.
+     */
+    PoiColumnWidths(int columns, double percentile, int maxChars){
+        this.percentile = percentile;
+        this.maxChars = Math.min(maxChars, EXCEL_MAX_CHARS);
+        this.minimum = new int[columns];
+        this.max = new int[columns];
+        this.count = new long[columns];
+        // lengths are only kept per value when a percentile is asked for
+        this.histograms = percentile < 1 ? new int[columns][this.maxChars + 1] : null;
+    }
+
+    /**
+     * Counts the length of one value.
+     * @param column - column index.
+     * @param length - length in characters.
+     */
+    void record(int column, int length){
+        if(length > maxChars){
+            length = maxChars;
+        }
+        if(length > max[column]){
+            max[column] = length;
+        }
+        if(histograms != null){
+            histograms[column][length]++;
+            count[column]++;
+        }
+    }
+
+    /**
+     * Sets a length the column is at least as wide as, like its header or
+     * date format, without counting it as a value.
+     */
+    void minimum(int column, int length){
+        minimum[column] = Math.max(minimum[column], Math.min(length, maxChars));
+    }
+
+    /**
+     * @param column - column index.
+     * @return width in characters.
+     */
+    int chars(int column){
+        int chars = max[column];
+        if(histograms != null && count[column] > 0){
+            long wanted = (long) Math.ceil(percentile * count[column]);
+            long seen = 0;
+            int[] histogram = histograms[column];
+            for(int length = 0; length < histogram.length; length++){
+                seen += histogram[length];
+                if(seen >= wanted){
+                    chars = length;
+                    break;
+                }
+            }
+        }
+        return Math.max(chars, minimum[column]);
+    }
+
+    /**
+     * @param column - column index.
+     * @return width in the 1/256 of a character units of Sheet.setColumnWidth.
+     */
+    int width(int column){
+        return Math.min(chars(column) + PADDING_CHARS, EXCEL_MAX_CHARS) * 256;
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes an export as CSV or TSV instead of a workbook, for machine consumers
+ * and extracts too big for Excel. The rows go through the same PoiExportPlan
+ * as a workbook export, each column writes its value typed, so numbers and
+ * dates are formatted straight into a char buffer without a String per cell.
+ * The buffer is encoded with one CharsetEncoder into one byte buffer.
+ *
+ * Fields holding the delimiter, a quote or a line break are quoted and quotes
+ * doubled, lines end with CRLF, as RFC 4180 has it. TSV is written the same
+ * way with a tab as the delimiter. Dates are written as yyyy-MM-dd HH:mm:ss
+ * in the default time zone, numbers without grouping.
+ * @author DCConway
+ */
+final class PoiDelimitedWriter {
+
+    static final String CSV_CONTENT_TYPE = "text/csv";
+    static final String TSV_CONTENT_TYPE = "text/tab-separated-values";
+    static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+    private static final int BUFFER_CHARS = 16 * 1024;
+    /** Longest number written from digits, Long.MIN_VALUE. */
+    private static final int MAX_NUMBER_CHARS = 20;
+
+    private final OutputStream out;
+    private final char delimiter;
+    private final CharsetEncoder encoder;
+    private final char[] chars = new char[BUFFER_CHARS];
+    private final CharBuffer charView = CharBuffer.wrap(chars);
+    private final ByteBuffer bytes;
+    private final Calendar calendar = Calendar.getInstance();
+    private int count;
+    private boolean rowStarted;
+
+    PoiDelimitedWriter(OutputStream out, char delimiter, PoiExportOptions options){
+        this.out = out;
+        this.delimiter = delimiter;
+        this.encoder = options.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_CHARS * encoder.maxBytesPerChar()));
+    }
+
+    /**
+     * Writes the rows of an export to sink.
+     * @throws InvocationTargetException when a getter throws a checked exception.
+     */
+    static void export(String filename, List<String> headers, Iterator<?> data, PoiExportPlan plan, PoiExportSink sink, PoiExportOptions options)
+        throws InvocationTargetException, IOException{
+        OutputStream out = sink.open(filename, contentType(options));
+        boolean written = false;
+        try{
+            GZIPOutputStream gzip = options.isGzip() ? new GZIPOutputStream(out, BUFFER_CHARS) : null;
+            char delimiter = options.getFormat() == PoiExportOptions.Format.TSV ? '\t' : ',';
+            PoiDelimitedWriter writer = new PoiDelimitedWriter(gzip != null ? gzip : out, delimiter, options);
+            for(String header : headers){
+                writer.text(header);
+            }
+            writer.endRow();
+            AtomicLong rowCounter = options.getRowCounter();
+            while(data.hasNext()){
+                Object row = data.next();
+                for(int j = 0; j < plan.size(); j++){
+                    PoiExportPlan.Column column = plan.column(j);
+                    if(column == null){
+                        writer.empty();
+                    }else{
+                        column.write(writer, row);
+                    }
+                }
+                writer.endRow();
+                if(rowCounter != null){
+                    rowCounter.incrementAndGet();
+                }
+            }
+            writer.flush();
+            if(gzip != null){
+                // finish, not close, out is closed below
+                gzip.finish();
+            }
+            out.close();
+            written = true;
+        }finally{
+            if(!written){
+                PoiExportSinks.abort(out);
+            }
+        }
+    }
+
+    /**
+     * The content type of an export in the format of options.
+     */
+    static String contentType(PoiExportOptions options){
+        if(options.isGzip()){
+            return GZIP_CONTENT_TYPE;
+        }
+        return options.getFormat() == PoiExportOptions.Format.TSV ? TSV_CONTENT_TYPE : CSV_CONTENT_TYPE;
+    }
+
+    /**
+     * An empty field, for null.
+     */
+    void empty() throws IOException {
+        separate();
+    }
+
+    /**
+     * A text field, quoted if it has to be.
+     */
+    void text(String value) throws IOException {
+        separate();
+        if(value == null){
+            return;
+        }
+        int length = value.length();
+        boolean quote = false;
+        for(int i = 0; i < length; i++){
+            char c = value.charAt(i);
+            if(c == delimiter || c == '"' || c == '\r' || c == '\n'){
+                quote = true;
+                break;
+            }
+        }
+        if(!quote){
+            // copied in as it is, a buffer at a time
+            int from = 0;
+            while(from < length){
+                if(count == chars.length){
+                    flushChars();
+                }
+                int to = Math.min(length, from + chars.length - count);
+                value.getChars(from, to, chars, count);
+                count += to - from;
+                from = to;
+            }
+            return;
+        }
+        put('"');
+        for(int i = 0; i < length; i++){
+            char c = value.charAt(i);
+            if(c == '"'){
+                put('"');
+            }
+            put(c);
+        }
+        put('"');
+    }
+
+    void number(long value) throws IOException {
+        separate();
+        putNumber(value);
+    }
+
+    /**
+     * Whole numbers are written without a decimal point.
+     */
+    void number(double value) throws IOException {
+        separate();
+        if(value == Math.rint(value) && Math.abs(value) < 1e15){
+            putNumber((long) value);
+        }else{
+            putPlain(Double.toString(value));
+        }
+    }
+
+    /**
+     * BigDecimal keeps all its digits, other numbers are written as a double.
+     */
+    void number(Number value) throws IOException {
+        if(value == null){
+            empty();
+        }else if(value instanceof BigDecimal){
+            separate();
+            putPlain(((BigDecimal) value).toPlainString());
+        }else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+            number(value.longValue());
+        }else{
+            number(value.doubleValue());
+        }
+    }
+
+    void date(Date value) throws IOException {
+        if(value == null){
+            empty();
+            return;
+        }
+        calendar.setTime(value);
+        date(calendar);
+    }
+
+    void date(Calendar value) throws IOException {
+        separate();
+        if(value == null){
+            return;
+        }
+        if(chars.length - count < 19){
+            flushChars();
+        }
+        putDigits(value.get(Calendar.YEAR), 4);
+        chars[count++] = '-';
+        putDigits(value.get(Calendar.MONTH) + 1, 2);
+        chars[count++] = '-';
+        putDigits(value.get(Calendar.DAY_OF_MONTH), 2);
+        chars[count++] = ' ';
+        putDigits(value.get(Calendar.HOUR_OF_DAY), 2);
+        chars[count++] = ':';
+        putDigits(value.get(Calendar.MINUTE), 2);
+        chars[count++] = ':';
+        putDigits(value.get(Calendar.SECOND), 2);
+    }
+
+    void bool(boolean value) throws IOException {
+        separate();
+        putPlain(value ? "true" : "false");
+    }
+
+    /**
+     * Boolean as a boolean, numbers and dates typed and anything else as
+     * toString().
+     */
+    void object(Object value) throws IOException {
+        if(value instanceof Boolean){
+            bool((Boolean) value);
+        }else if(value instanceof Number){
+            number((Number) value);
+        }else if(value instanceof Date){
+            date((Date) value);
+        }else if(value instanceof Calendar){
+            date((Calendar) value);
+        }else{
+            text(value == null ? null : value.toString());
+        }
+    }
+
+    void endRow() throws IOException {
+        put('\r');
+        put('\n');
+        rowStarted = false;
+    }
+
+    /**
+     * Encodes and writes out what is in the buffer. The stream itself is not
+     * flushed.
+     */
+    void flush() throws IOException {
+        flushChars();
+        charView.clear().limit(0);
+        encode(charView, true);
+        while(encoder.flush(bytes).isOverflow()){
+            drain();
+        }
+        drain();
+    }
+
+    private void separate() throws IOException {
+        if(rowStarted){
+            put(delimiter);
+        }
+        rowStarted = true;
+    }
+
+    private void put(char c) throws IOException {
+        if(count == chars.length){
+            flushChars();
+        }
+        chars[count++] = c;
+    }
+
+    /**
+     * Text known not to need quotes.
+     */
+    private void putPlain(String value) throws IOException {
+        if(chars.length - count < value.length()){
+            flushChars();
+        }
+        value.getChars(0, value.length(), chars, count);
+        count += value.length();
+    }
+
+    private void putNumber(long value) throws IOException {
+        if(value == Long.MIN_VALUE){
+            putPlain("-9223372036854775808");
+            return;
+        }
+        if(chars.length - count < MAX_NUMBER_CHARS){
+            flushChars();
+        }
+        if(value < 0){
+            chars[count++] = '-';
+            value = -value;
+        }
+        // digits go in from the end
+        int digits = 1;
+        for(long rest = value / 10; rest != 0; rest /= 10){
+            digits++;
+        }
+        int at = count + digits;
+        do{
+            chars[--at] = (char) ('0' + value % 10);
+            value /= 10;
+        }while(value != 0);
+        count += digits;
+    }
+
+    /**
+     * value with leading zeros to width digits.
+     */
+    private void putDigits(int value, int width){
+        for(int at = count + width - 1; at >= count; at--){
+            chars[at] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        count += width;
+    }
+
+    private void flushChars() throws IOException {
+        charView.clear().limit(count);
+        encode(charView, false);
+        // a high surrogate at the end waits for its low surrogate
+        int left = charView.remaining();
+        System.arraycopy(chars, charView.position(), chars, 0, left);
+        count = left;
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while(true){
+            CoderResult result = encoder.encode(in, bytes, endOfInput);
+            if(!result.isOverflow()){
+                break;
+            }
+            drain();
+        }
+        drain();
+    }
+
+    private void drain() throws IOException {
+        if(bytes.position() > 0){
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
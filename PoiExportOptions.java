@@ -0,0 +1,294 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings for the PoiExporter methods.
+ *
+ * By default the whole workbook is built in memory (XSSF). With streaming on
+ * an SXSSF workbook is used instead: only the last rowAccessWindow rows are
+ * kept in memory, older rows are flushed to a temp file, so heap use stays
+ * the same however many rows are exported. The temp files are deleted when
+ * the export finishes, also when it fails.
+ *
+ * Date and number columns get the date and number format, a single column
+ * can be given its own with setColumnFormat, e.g. CURRENCY_FORMAT for an
+ * amount.
+ *
+ * The format picks what is written: an Excel workbook, or CSV or TSV for
+ * machine consumers and extracts too big for a workbook, optionally gzipped.
+ * The workbook settings do not apply to CSV and TSV.
+ *
+ * Usage:
+ * <pre>
+ * PoiExportOptions options = new PoiExportOptions();
+ * options.setStreaming(true);
+ * PoiExporter.exportUsingList("users.xlsx", headers, rows, context, options);
+ * </pre>
+ * @author DCConway
+ */
+public class PoiExportOptions {
+
+    public enum Format { XLSX, CSV, TSV }
+
+    public static final int DEFAULT_ROW_ACCESS_WINDOW = 100;
+    /** Rows on an Excel sheet less the header row. */
+    public static final int MAX_ROWS_PER_SHEET = 1048575;
+    public static final String DATE_FORMAT = "m/dd/yyyy";
+    public static final String DATE_TIME_FORMAT = "m/dd/yyyy h:mm";
+    public static final String NUMBER_FORMAT = "#,##0.##";
+    public static final String CURRENCY_FORMAT = "\"$\"#,##0.00";
+
+    private boolean streaming;
+    private int rowAccessWindow = DEFAULT_ROW_ACCESS_WINDOW;
+    private boolean compressTempFiles = true;
+    private String dateFormat = DATE_FORMAT;
+    private String numberFormat;
+    private boolean headerBold;
+    private double widthPercentile = 1;
+    private int maxColumnWidth = 100;
+    private int rowsPerSheet = MAX_ROWS_PER_SHEET;
+    private int parallelism = 1;
+    private Format format = Format.XLSX;
+    private boolean gzip;
+    private Charset charset = StandardCharsets.UTF_8;
+    private AtomicLong rowCounter;
+    private final Map<String,String> columnFormats = new HashMap<>();
+
+    public PoiExportOptions() {
+    }
+
+    /**
+     * Copies all settings of other.
+     * @param other - options to copy.
+     */
+    public PoiExportOptions(PoiExportOptions other) {
+        this.streaming = other.streaming;
+        this.rowAccessWindow = other.rowAccessWindow;
+        this.compressTempFiles = other.compressTempFiles;
+        this.dateFormat = other.dateFormat;
+        this.numberFormat = other.numberFormat;
+        this.headerBold = other.headerBold;
+        this.widthPercentile = other.widthPercentile;
+        this.maxColumnWidth = other.maxColumnWidth;
+        this.rowsPerSheet = other.rowsPerSheet;
+        this.parallelism = other.parallelism;
+        this.format = other.format;
+        this.gzip = other.gzip;
+        this.charset = other.charset;
+        this.rowCounter = other.rowCounter;
+        this.columnFormats.putAll(other.columnFormats);
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param streaming - write rows through a temp file instead of keeping the
+     * whole workbook in memory. Default false.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getRowAccessWindow() {
+        return rowAccessWindow;
+    }
+
+    /**
+     * @param rowAccessWindow - rows kept in memory when streaming. Default 100.
+     */
+    public void setRowAccessWindow(int rowAccessWindow) {
+        if(rowAccessWindow < 1){
+            throw new IllegalArgumentException("rowAccessWindow must be at least 1");
+        }
+        this.rowAccessWindow = rowAccessWindow;
+    }
+
+    public boolean isCompressTempFiles() {
+        return compressTempFiles;
+    }
+
+    /**
+     * @param compressTempFiles - gzip the temp file when streaming, it is
+     * about a tenth of the size for a little more CPU. Default true.
+     */
+    public void setCompressTempFiles(boolean compressTempFiles) {
+        this.compressTempFiles = compressTempFiles;
+    }
+
+    public String getDateFormat() {
+        return dateFormat;
+    }
+
+    /**
+     * @param dateFormat - Excel format for Date and Calendar columns without
+     * a column format. Default m/dd/yyyy.
+     */
+    public void setDateFormat(String dateFormat) {
+        this.dateFormat = dateFormat;
+    }
+
+    public String getNumberFormat() {
+        return numberFormat;
+    }
+
+    /**
+     * @param numberFormat - Excel format for number columns without a column
+     * format. Default null, General.
+     */
+    public void setNumberFormat(String numberFormat) {
+        this.numberFormat = numberFormat;
+    }
+
+    public boolean isHeaderBold() {
+        return headerBold;
+    }
+
+    /**
+     * @param headerBold - bold font in the header row. Default false.
+     */
+    public void setHeaderBold(boolean headerBold) {
+        this.headerBold = headerBold;
+    }
+
+    public double getWidthPercentile() {
+        return widthPercentile;
+    }
+
+    /**
+     * @param widthPercentile - share of a column's values its width should
+     * fit, e.g. 0.95 to leave out the few longest. Default 1, all of them.
+     */
+    public void setWidthPercentile(double widthPercentile) {
+        if(widthPercentile <= 0 || widthPercentile > 1){
+            throw new IllegalArgumentException("widthPercentile must be more than 0 and at most 1");
+        }
+        this.widthPercentile = widthPercentile;
+    }
+
+    public int getMaxColumnWidth() {
+        return maxColumnWidth;
+    }
+
+    /**
+     * @param maxColumnWidth - widest a column is sized to, in characters.
+     * Columns holding long text are wrapped at a fixed width instead. Default
+     * 100, at most 255.
+     */
+    public void setMaxColumnWidth(int maxColumnWidth) {
+        if(maxColumnWidth < 1 || maxColumnWidth > 255){
+            throw new IllegalArgumentException("maxColumnWidth must be from 1 to 255");
+        }
+        this.maxColumnWidth = maxColumnWidth;
+    }
+
+    public int getRowsPerSheet() {
+        return rowsPerSheet;
+    }
+
+    /**
+     * @param rowsPerSheet - rows on a sheet before the export continues on
+     * the next one, each sheet gets the header row. Default and at most
+     * MAX_ROWS_PER_SHEET.
+     */
+    public void setRowsPerSheet(int rowsPerSheet) {
+        if(rowsPerSheet < 1 || rowsPerSheet > MAX_ROWS_PER_SHEET){
+            throw new IllegalArgumentException("rowsPerSheet must be from 1 to " + MAX_ROWS_PER_SHEET);
+        }
+        this.rowsPerSheet = rowsPerSheet;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism - sheets written at the same time. Applies to
+     * streaming exports of a list taking more than one sheet, rows pulled
+     * from an Iterator, Stream or ResultSet are written in order. Default 1.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1){
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format - XLSX for a workbook, CSV or TSV for delimited text.
+     * Default XLSX.
+     */
+    public void setFormat(Format format) {
+        if(format == null){
+            throw new IllegalArgumentException("format must not be null");
+        }
+        this.format = format;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @param gzip - gzip CSV and TSV output, sent as application/gzip. A
+     * workbook is already zipped. Default false.
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param charset - encoding of CSV and TSV output. Default UTF-8.
+     */
+    public void setCharset(Charset charset) {
+        if(charset == null){
+            throw new IllegalArgumentException("charset must not be null");
+        }
+        this.charset = charset;
+    }
+
+    public AtomicLong getRowCounter() {
+        return rowCounter;
+    }
+
+    /**
+     * @param rowCounter - incremented for every row written, to follow the
+     * progress of an export from another thread. Default null.
+     */
+    public void setRowCounter(AtomicLong rowCounter) {
+        this.rowCounter = rowCounter;
+    }
+
+    /**
+     * Sets the Excel format of one column, e.g. CURRENCY_FORMAT.
+     * @param column - field name for bean exports or header for map exports.
+     * @param format - Excel number format, null to remove.
+     */
+    public void setColumnFormat(String column, String format) {
+        if(format == null){
+            columnFormats.remove(column);
+        }else{
+            columnFormats.put(column, format);
+        }
+    }
+
+    /**
+     * @param column - field name for bean exports or header for map exports.
+     * @return the format set for the column, null if none.
+     */
+    public String getColumnFormat(String column) {
+        return columnFormats.get(column);
+    }
+}
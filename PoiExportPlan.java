@@ -0,0 +1,748 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * The columns of a bean export worked out once per class and field list and
+ * cached, so the row loop does no reflection lookups. There are also plans
+ * reading map entries by key and the columns of a JDBC ResultSet, so every
+ * export goes through the same row loop.
+ *
+ * Each column name is resolved to a field of the class or one of its super
+ * classes, or failing that to a public getX()/isX() method. The accessor is a
+ * MethodHandle adapted to the column type, and the Column doing the writing
+ * is picked by that type, so a long field is read as a long and written as a
+ * number without going through Object. Columns write to a cell or, for CSV
+ * and TSV exports, to a PoiDelimitedWriter.
+ * @author DCConway
+ */
+final class PoiExportPlan {
+
+    /**
+     * What a column holds, used to pick its cell style.
+     */
+    enum ColumnType {
+        TEXT, DATE, NUMBER, BOOLEAN
+    }
+
+    /** Length of FALSE. */
+    private static final int BOOLEAN_LENGTH = 5;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // ClassValue so a cached plan does not keep a web app's classes loaded
+    private static final ClassValue<ConcurrentMap<List<String>,PoiExportPlan>> PLANS = new ClassValue<ConcurrentMap<List<String>,PoiExportPlan>>(){
+        @Override
+        protected ConcurrentMap<List<String>,PoiExportPlan> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final ClassValue<List<String>> INSTANCE_FIELDS = new ClassValue<List<String>>(){
+        @Override
+        protected List<String> computeValue(Class<?> type) {
+            List<String> names = new ArrayList<>();
+            for(Field f : type.getDeclaredFields()){
+                if(!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic()){
+                    names.add(f.getName());
+                }
+            }
+            return Collections.unmodifiableList(names);
+        }
+    };
+
+    private final Column[] columns;
+
+    private PoiExportPlan(Column[] columns){
+        this.columns = columns;
+    }
+
+    /**
+     * The plan for the named fields of theClass, in the order given.
+     * @param theClass - class of the beans exported.
+     * @param fieldsUsed - field or property names, one per column.
+     * @return the cached plan.
+     * @throws IllegalAccessException when a field or getter can not be made accessible.
+     */
+    static PoiExportPlan forFields(Class<?> theClass, List<String> fieldsUsed) throws IllegalAccessException{
+        ConcurrentMap<List<String>,PoiExportPlan> plans = PLANS.get(theClass);
+        PoiExportPlan plan = plans.get(fieldsUsed);
+        if(plan == null){
+            List<String> key = Collections.unmodifiableList(new ArrayList<>(fieldsUsed));
+            Column[] columns = new Column[key.size()];
+            for(int i = 0; i < columns.length; i++){
+                columns[i] = column(key.get(i), accessor(theClass, key.get(i)));
+            }
+            plan = new PoiExportPlan(columns);
+            PoiExportPlan existing = plans.putIfAbsent(key, plan);
+            if(existing != null){
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * The plan for every instance field declared by theClass, in declaration
+     * order. Static and compiler generated fields are left out.
+     * @param theClass - class of the beans exported.
+     * @return the cached plan.
+     * @throws IllegalAccessException when a field can not be made accessible.
+     */
+    static PoiExportPlan forDeclaredFields(Class<?> theClass) throws IllegalAccessException{
+        return forFields(theClass, declaredFields(theClass));
+    }
+
+    /**
+     * The plan for map rows, one column per key with the value written as
+     * text.
+     * @param keys - map keys, one per column.
+     * @return a new plan.
+     */
+    static PoiExportPlan forMapKeys(List<String> keys){
+        Column[] columns = new Column[keys.size()];
+        for(int i = 0; i < columns.length; i++){
+            columns[i] = new MapColumn(keys.get(i));
+        }
+        return new PoiExportPlan(columns);
+    }
+
+    /**
+     * The plan for the rows of a ResultSet, the row passed to Column.write is
+     * the ResultSet itself positioned on the row.
+     * @param meta - meta data of the ResultSet.
+     * @param columnsUsed - column labels, one per export column, null for all
+     * columns in query order.
+     * @return a new plan.
+     * @throws SQLException when the meta data can not be read.
+     */
+    static PoiExportPlan forResultSet(ResultSetMetaData meta, List<String> columnsUsed) throws SQLException{
+        int count = meta.getColumnCount();
+        Column[] columns;
+        if(columnsUsed == null){
+            columns = new Column[count];
+            for(int i = 0; i < count; i++){
+                columns[i] = resultSetColumn(meta, i + 1);
+            }
+        }else{
+            columns = new Column[columnsUsed.size()];
+            for(int i = 0; i < columns.length; i++){
+                for(int c = 1; c <= count; c++){
+                    if(meta.getColumnLabel(c).equalsIgnoreCase(columnsUsed.get(i))){
+                        columns[i] = resultSetColumn(meta, c);
+                        break;
+                    }
+                }
+            }
+        }
+        return new PoiExportPlan(columns);
+    }
+
+    /**
+     * @return number of columns.
+     */
+    int size(){
+        return columns.length;
+    }
+
+    /**
+     * @param index - column index.
+     * @return the column, null when the class has no field or getter by that
+     * name or the ResultSet no column with that label.
+     */
+    Column column(int index){
+        return columns[index];
+    }
+
+    /**
+     * Finds the field named name on theClass or a super class, or a public
+     * getter for it.
+     * @return getter handle, null when there is none.
+     */
+    private static MethodHandle accessor(Class<?> theClass, String name) throws IllegalAccessException{
+        Field f = field(theClass, name);
+        if(f != null){
+            f.setAccessible(true);
+            return LOOKUP.unreflectGetter(f);
+        }
+        if(name.isEmpty()){
+            return null;
+        }
+        String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for(String prefix : new String[]{"get", "is"}){
+            try{
+                Method m = theClass.getMethod(prefix + property);
+                if(!Modifier.isStatic(m.getModifiers()) && m.getReturnType() != void.class){
+                    m.setAccessible(true);
+                    return LOOKUP.unreflect(m);
+                }
+            }catch(NoSuchMethodException e){
+                // try the next prefix
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the instance field named name on theClass or a super class, the
+     * same lookup for export and import.
+     * @return the field, null when there is none.
+     */
+    static Field field(Class<?> theClass, String name){
+        for(Class<?> c = theClass; c != null && c != Object.class; c = c.getSuperclass()){
+            try{
+                Field f = c.getDeclaredField(name);
+                if(!Modifier.isStatic(f.getModifiers())){
+                    return f;
+                }
+            }catch(NoSuchFieldException e){
+                // try the super class
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return names of the instance fields declared by theClass, in
+     * declaration order, cached.
+     */
+    static List<String> declaredFields(Class<?> theClass){
+        return INSTANCE_FIELDS.get(theClass);
+    }
+
+    private static Column column(String name, MethodHandle getter){
+        if(getter == null){
+            return null;
+        }
+        Class<?> type = getter.type().returnType();
+        if(type == String.class){
+            return new TextColumn(name, adapt(getter, String.class));
+        }
+        if(Date.class.isAssignableFrom(type)){
+            return new DateColumn(name, adapt(getter, Date.class));
+        }
+        if(Calendar.class.isAssignableFrom(type)){
+            return new CalendarColumn(name, adapt(getter, Calendar.class));
+        }
+        if(type == long.class || type == int.class || type == short.class || type == byte.class){
+            return new LongColumn(name, adapt(getter, long.class));
+        }
+        if(type == double.class || type == float.class){
+            return new DoubleColumn(name, adapt(getter, double.class));
+        }
+        if(type == boolean.class){
+            return new BooleanColumn(name, adapt(getter, boolean.class));
+        }
+        if(Number.class.isAssignableFrom(type)){
+            return new NumberColumn(name, adapt(getter, Number.class));
+        }
+        return new ObjectColumn(name, adapt(getter, Object.class));
+    }
+
+    private static Column resultSetColumn(ResultSetMetaData meta, int index) throws SQLException{
+        String name = meta.getColumnLabel(index);
+        switch(meta.getColumnType(index)){
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return new ResultSetColumn(name, ColumnType.TEXT, index);
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return new ResultSetColumn(name, ColumnType.DATE, index);
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return new ResultSetColumn(name, ColumnType.NUMBER, index);
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return new ResultSetDoubleColumn(name, index);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new ResultSetColumn(name, ColumnType.BOOLEAN, index);
+            default:
+                return new ResultSetObjectColumn(name, index);
+        }
+    }
+
+    /**
+     * Changes the getter to (Object)returnType so it can be called with
+     * invokeExact.
+     */
+    private static MethodHandle adapt(MethodHandle getter, Class<?> returnType){
+        return getter.asType(MethodType.methodType(returnType, Object.class));
+    }
+
+    /**
+     * Reads one property of a bean into a cell.
+     */
+    abstract static class Column {
+
+        private final String name;
+        private final ColumnType type;
+
+        Column(String name, ColumnType type){
+            this.name = name;
+            this.type = type;
+        }
+
+        String getName(){
+            return name;
+        }
+
+        ColumnType getType(){
+            return type;
+        }
+
+        /**
+         * Writes the value of this column for bean into cell, the cell is left
+         * blank for null.
+         * @return width of the value in characters, estimated for numbers and
+         * 0 for dates, which are as wide as their format.
+         * @throws InvocationTargetException when a getter throws a checked exception.
+         */
+        final int write(Cell cell, Object bean) throws InvocationTargetException{
+            try{
+                return doWrite(cell, bean);
+            }catch(RuntimeException | Error e){
+                throw e;
+            }catch(Throwable t){
+                throw new InvocationTargetException(t, "Reading " + name);
+            }
+        }
+
+        abstract int doWrite(Cell cell, Object bean) throws Throwable;
+
+        /**
+         * Writes the value of this column for bean as the next field of out,
+         * an empty field for null.
+         * @throws InvocationTargetException when a getter throws a checked exception.
+         */
+        final void write(PoiDelimitedWriter out, Object bean) throws InvocationTargetException, IOException{
+            try{
+                doWrite(out, bean);
+            }catch(RuntimeException | Error | IOException e){
+                throw e;
+            }catch(Throwable t){
+                throw new InvocationTargetException(t, "Reading " + name);
+            }
+        }
+
+        abstract void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable;
+    }
+
+    private static final class TextColumn extends Column {
+
+        private final MethodHandle getter;
+
+        TextColumn(String name, MethodHandle getter){
+            super(name, ColumnType.TEXT);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            String value = (String) getter.invokeExact(bean);
+            if(value == null){
+                return 0;
+            }
+            cell.setCellValue(value);
+            return value.length();
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.text((String) getter.invokeExact(bean));
+        }
+    }
+
+    private static final class DateColumn extends Column {
+
+        private final MethodHandle getter;
+
+        DateColumn(String name, MethodHandle getter){
+            super(name, ColumnType.DATE);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            Date value = (Date) getter.invokeExact(bean);
+            if(value != null){
+                cell.setCellValue(value);
+            }
+            return 0;
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.date((Date) getter.invokeExact(bean));
+        }
+    }
+
+    private static final class CalendarColumn extends Column {
+
+        private final MethodHandle getter;
+
+        CalendarColumn(String name, MethodHandle getter){
+            super(name, ColumnType.DATE);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            Calendar value = (Calendar) getter.invokeExact(bean);
+            if(value != null){
+                cell.setCellValue(value);
+            }
+            return 0;
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.date((Calendar) getter.invokeExact(bean));
+        }
+    }
+
+    private static final class LongColumn extends Column {
+
+        private final MethodHandle getter;
+
+        LongColumn(String name, MethodHandle getter){
+            super(name, ColumnType.NUMBER);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            long value = (long) getter.invokeExact(bean);
+            cell.setCellValue(value);
+            return length(value);
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.number((long) getter.invokeExact(bean));
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+
+        private final MethodHandle getter;
+
+        DoubleColumn(String name, MethodHandle getter){
+            super(name, ColumnType.NUMBER);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            double value = (double) getter.invokeExact(bean);
+            cell.setCellValue(value);
+            return length(value);
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.number((double) getter.invokeExact(bean));
+        }
+    }
+
+    private static final class BooleanColumn extends Column {
+
+        private final MethodHandle getter;
+
+        BooleanColumn(String name, MethodHandle getter){
+            super(name, ColumnType.BOOLEAN);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            boolean value = (boolean) getter.invokeExact(bean);
+            cell.setCellValue(value);
+            return BOOLEAN_LENGTH;
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.bool((boolean) getter.invokeExact(bean));
+        }
+    }
+
+    /**
+     * Boxed numbers, BigDecimal and BigInteger. Excel only has doubles so
+     * anything past 15 significant digits is rounded.
+     */
+    private static final class NumberColumn extends Column {
+
+        private final MethodHandle getter;
+
+        NumberColumn(String name, MethodHandle getter){
+            super(name, ColumnType.NUMBER);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            Number value = (Number) getter.invokeExact(bean);
+            if(value == null){
+                return 0;
+            }
+            double number = value.doubleValue();
+            cell.setCellValue(number);
+            return length(number);
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.number((Number) getter.invokeExact(bean));
+        }
+    }
+
+    /**
+     * Anything else, Boolean as a boolean and the rest as toString().
+     */
+    private static final class ObjectColumn extends Column {
+
+        private final MethodHandle getter;
+
+        ObjectColumn(String name, MethodHandle getter){
+            super(name, ColumnType.TEXT);
+            this.getter = getter;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object bean) throws Throwable {
+            Object value = (Object) getter.invokeExact(bean);
+            return writeObject(cell, value);
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object bean) throws Throwable {
+            out.object((Object) getter.invokeExact(bean));
+        }
+    }
+
+    /**
+     * Characters in the integer part of value with a sign and thousands
+     * separators, worked out without formatting the number.
+     */
+    static int length(long value){
+        int digits = 1;
+        long rest = value;
+        while(rest >= 10 || rest <= -10){
+            rest /= 10;
+            digits++;
+        }
+        return digits + (digits - 1) / 3 + (value < 0 ? 1 : 0);
+    }
+
+    /**
+     * As length(long) plus room for two decimals.
+     */
+    static int length(double value){
+        if(Double.isNaN(value) || Double.isInfinite(value)){
+            return 3;
+        }
+        if(Math.abs(value) >= 1e15){
+            // shown as 1.23457E+15
+            return 11;
+        }
+        return length((long) value) + (value == Math.rint(value) ? 0 : 3);
+    }
+
+    /**
+     * Writes Boolean as a boolean and anything else as toString(), the cell
+     * is left blank for null.
+     * @return length of the text written.
+     */
+    private static int writeObject(Cell cell, Object value){
+        if(value == null){
+            return 0;
+        }
+        if(value instanceof Boolean){
+            cell.setCellValue(((Boolean) value).booleanValue());
+            return BOOLEAN_LENGTH;
+        }
+        String text = value.toString();
+        cell.setCellValue(text);
+        return text.length();
+    }
+
+    /**
+     * Reads the value for key from a Map row.
+     */
+    private static final class MapColumn extends Column {
+
+        MapColumn(String key){
+            super(key, ColumnType.TEXT);
+        }
+
+        @Override
+        int doWrite(Cell cell, Object row) {
+            return writeObject(cell, ((Map<?,?>) row).get(getName()));
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object row) throws IOException {
+            out.object(((Map<?,?>) row).get(getName()));
+        }
+    }
+
+    /**
+     * Text, date, whole number and boolean columns of a ResultSet, read with
+     * the getter for the type so numbers are not boxed.
+     */
+    private static final class ResultSetColumn extends Column {
+
+        private final int index;
+
+        ResultSetColumn(String name, ColumnType type, int index){
+            super(name, type);
+            this.index = index;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object row) throws SQLException {
+            ResultSet rs = (ResultSet) row;
+            switch(getType()){
+                case TEXT:
+                    String text = rs.getString(index);
+                    if(text == null){
+                        return 0;
+                    }
+                    cell.setCellValue(text);
+                    return text.length();
+                case DATE:
+                    Timestamp date = rs.getTimestamp(index);
+                    if(date != null){
+                        cell.setCellValue(date);
+                    }
+                    return 0;
+                case NUMBER:
+                    long number = rs.getLong(index);
+                    if(rs.wasNull()){
+                        return 0;
+                    }
+                    cell.setCellValue(number);
+                    return length(number);
+                default:
+                    boolean flag = rs.getBoolean(index);
+                    if(rs.wasNull()){
+                        return 0;
+                    }
+                    cell.setCellValue(flag);
+                    return BOOLEAN_LENGTH;
+            }
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object row) throws SQLException, IOException {
+            ResultSet rs = (ResultSet) row;
+            switch(getType()){
+                case TEXT:
+                    out.text(rs.getString(index));
+                    break;
+                case DATE:
+                    out.date(rs.getTimestamp(index));
+                    break;
+                case NUMBER:
+                    long number = rs.getLong(index);
+                    if(rs.wasNull()){
+                        out.empty();
+                    }else{
+                        out.number(number);
+                    }
+                    break;
+                default:
+                    boolean flag = rs.getBoolean(index);
+                    if(rs.wasNull()){
+                        out.empty();
+                    }else{
+                        out.bool(flag);
+                    }
+            }
+        }
+    }
+
+    private static final class ResultSetDoubleColumn extends Column {
+
+        private final int index;
+
+        ResultSetDoubleColumn(String name, int index){
+            super(name, ColumnType.NUMBER);
+            this.index = index;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object row) throws SQLException {
+            ResultSet rs = (ResultSet) row;
+            double value = rs.getDouble(index);
+            if(rs.wasNull()){
+                return 0;
+            }
+            cell.setCellValue(value);
+            return length(value);
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object row) throws SQLException, IOException {
+            ResultSet rs = (ResultSet) row;
+            double value = rs.getDouble(index);
+            if(rs.wasNull()){
+                out.empty();
+            }else{
+                out.number(value);
+            }
+        }
+    }
+
+    private static final class ResultSetObjectColumn extends Column {
+
+        private final int index;
+
+        ResultSetObjectColumn(String name, int index){
+            super(name, ColumnType.TEXT);
+            this.index = index;
+        }
+
+        @Override
+        int doWrite(Cell cell, Object row) throws SQLException {
+            return writeObject(cell, ((ResultSet) row).getObject(index));
+        }
+
+        @Override
+        void doWrite(PoiDelimitedWriter out, Object row) throws SQLException, IOException {
+            out.object(((ResultSet) row).getObject(index));
+        }
+    }
+}
+
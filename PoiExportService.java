@@ -0,0 +1,511 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs exports in the background. Submitting an export returns a job ID at
+ * once, a pool of worker threads writes the workbook to a temp file in the
+ * spool directory and a later request downloads it. The file is sent with
+ * FileChannel.transferTo, so the bytes are not copied through the heap when
+ * the target is a socket or file channel.
+ *
+ * Jobs with a higher priority are started first, jobs of the same priority in
+ * the order they were submitted. The queue and the jobs each user may have
+ * waiting or running are limited. Finished jobs and their files are removed
+ * resultTtl after they finish, unless a download is still running.
+ *
+ * Usage:
+ * <pre>
+ * String id = service.submit(user, 0, "users.xlsx", options, new PoiExportService.Export(){
+ *     public void write(PoiExportSink sink, PoiExportOptions options) throws Exception {
+ *         PoiExporter.exportUsingList("users.xlsx", headers, rows, sink, options);
+ *     }
+ * });
+ * ...
+ * PoiExportService.Job job = service.getJob(id, user);
+ * if(job.getState() == PoiExportService.State.DONE){
+ *     service.download(id, user, response);
+ * }
+ * </pre>
+ * @author DCConway
+ */
+public class PoiExportService implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(PoiExportService.class.getName());
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    /**
+     * The export a job runs, typically one of the PoiExporter sink methods.
+     */
+    public interface Export {
+
+        /**
+         * @param sink - writes to the job's spool file, pass it on to PoiExporter.
+         * @param options - the options given to submit, with a row counter
+         * set for the job's progress.
+         * @throws Exception - the job fails with it.
+         */
+        void write(PoiExportSink sink, PoiExportOptions options) throws Exception;
+    }
+
+    /**
+     * State and progress of a submitted export.
+     */
+    public static final class Job {
+
+        private final String id;
+        private final String user;
+        private final String filename;
+        private final long submitted = System.currentTimeMillis();
+        private final AtomicLong rowsWritten = new AtomicLong();
+        private volatile State state = State.QUEUED;
+        private volatile long finished;
+        private volatile long size = -1;
+        private volatile String contentType = PoiExportSinks.XLSX_CONTENT_TYPE;
+        private volatile Throwable error;
+        private volatile Path file;
+        // downloads running, the file is not deleted while there are any
+        private int downloads;
+        private boolean removed;
+
+        Job(String id, String user, String filename){
+            this.id = id;
+            this.user = user;
+            this.filename = filename;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return rows written so far.
+         */
+        public long getRowsWritten() {
+            return rowsWritten.get();
+        }
+
+        /**
+         * @return size of the finished file in bytes, -1 until it is done.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return what the export failed with, null unless FAILED.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * @return when the job finished, 0 while it is queued or running.
+         */
+        public long getFinished() {
+            return finished;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService cleaner;
+    private final Path spoolDir;
+    private final int maxQueued;
+    private final int maxJobsPerUser;
+    private final long resultTtl;
+    private final Map<String,Job> jobs = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<String,Integer> activeJobs = new HashMap<>();
+    private int pending;
+    private long sequence;
+
+    /**
+     * @param workers - exports running at the same time.
+     * @param maxQueued - exports waiting for a worker, more are rejected.
+     * @param maxJobsPerUser - exports one user may have waiting or running.
+     * @param spoolDir - directory for the finished files.
+     * @param resultTtl - how long a finished file is kept.
+     * @param unit - unit of resultTtl.
+     */
+    public PoiExportService(int workers, int maxQueued, int maxJobsPerUser, Path spoolDir, long resultTtl, TimeUnit unit){
+        if(workers < 1 || maxQueued < 0 || maxJobsPerUser < 1 || resultTtl <= 0){
+            throw new IllegalArgumentException("workers and maxJobsPerUser must be at least 1, maxQueued at least 0 and resultTtl more than 0");
+        }
+        this.spoolDir = spoolDir;
+        this.maxQueued = maxQueued;
+        this.maxJobsPerUser = maxJobsPerUser;
+        this.resultTtl = unit.toMillis(resultTtl);
+        // tasks go on the queue as they are, not wrapped in a FutureTask, so it can order them
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PoiExportService-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PoiExportService-cleanup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(Math.min(this.resultTtl, TimeUnit.MINUTES.toMillis(1)), 1000);
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                removeExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues an export.
+     * @param user - owner of the job, only they can see and download it.
+     * @param priority - jobs with a higher priority start first.
+     * @param filename - name of the file for the download.
+     * @param options - export options, copied.
+     * @param export - writes the export.
+     * @return the job ID.
+     * @throws RejectedExecutionException when the queue is full, the user has
+     * maxJobsPerUser jobs waiting or running, or the service is closed.
+     */
+    public String submit(String user, int priority, String filename, PoiExportOptions options, Export export){
+        Job job = new Job(UUID.randomUUID().toString(), user, filename);
+        PoiExportOptions jobOptions = new PoiExportOptions(options);
+        jobOptions.setRowCounter(job.rowsWritten);
+        Task task;
+        synchronized(this){
+            if(executor.isShutdown()){
+                throw new RejectedExecutionException("The export service is closed");
+            }
+            if(pending >= executor.getMaximumPoolSize() + maxQueued){
+                throw new RejectedExecutionException("Too many exports are waiting");
+            }
+            Integer active = activeJobs.get(user);
+            int count = active == null ? 0 : active;
+            if(count >= maxJobsPerUser){
+                throw new RejectedExecutionException(user + " already has " + count + " exports running");
+            }
+            activeJobs.put(user, count + 1);
+            pending++;
+            task = new Task(job, priority, sequence++, jobOptions, export);
+            jobs.put(job.id, job);
+        }
+        try{
+            executor.execute(task);
+        }catch(RejectedExecutionException ex){
+            // closed after the check above, undo the counts taken for the job
+            synchronized(this){
+                jobs.remove(job.id);
+                finish(job, State.CANCELLED, ex);
+            }
+            throw ex;
+        }
+        return job.id;
+    }
+
+    /**
+     * @param id - job ID from submit.
+     * @param user - the user who submitted it.
+     * @return the job, null if there is none or it is someone else's.
+     */
+    public Job getJob(String id, String user){
+        Job job = id == null ? null : jobs.get(id);
+        return job != null && job.user.equals(user) ? job : null;
+    }
+
+    /**
+     * Cancels a job that has not started yet. A running export is left to
+     * finish, it cannot be stopped part way through a workbook.
+     * @return true if the job was cancelled.
+     */
+    public boolean cancel(String id, String user){
+        Job job = getJob(id, user);
+        if(job == null){
+            return false;
+        }
+        synchronized(this){
+            if(job.state != State.QUEUED){
+                return false;
+            }
+            finish(job, State.CANCELLED, null);
+        }
+        // the worker would skip it anyway, this frees the queue slot now
+        for(Iterator<Runnable> it = executor.getQueue().iterator(); it.hasNext();){
+            Runnable r = it.next();
+            if(r instanceof Task && ((Task) r).job == job){
+                executor.remove(r);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a finished job and its file.
+     * @return true if the job was removed.
+     */
+    public boolean remove(String id, String user){
+        Job job = getJob(id, user);
+        if(job == null || job.finished == 0){
+            return false;
+        }
+        discard(job);
+        return true;
+    }
+
+    /**
+     * Writes the finished file of a job to target.
+     * @param target - channel to write to, it is not closed.
+     * @return bytes written, -1 if the job is not done.
+     * @throws IOException
+     */
+    public long transferTo(String id, String user, WritableByteChannel target) throws IOException {
+        Job job = acquire(id, user);
+        if(job == null){
+            return -1;
+        }
+        try{
+            return transfer(job, target);
+        }finally{
+            release(job);
+        }
+    }
+
+    /**
+     * Sends the finished file of a job as the response, with its content
+     * type, filename and length.
+     * @param response - response not yet committed.
+     * @return false if the job is not done, nothing is sent then.
+     * @throws IOException
+     */
+    public boolean download(String id, String user, HttpServletResponse response) throws IOException {
+        Job job = acquire(id, user);
+        if(job == null){
+            return false;
+        }
+        try{
+            response.setContentType(job.contentType);
+            response.setHeader("Content-Disposition", PoiExportSinks.contentDisposition(job.filename));
+            response.setContentLengthLong(job.size);
+            OutputStream out = response.getOutputStream();
+            transfer(job, Channels.newChannel(out));
+            // the container closes the response stream
+            out.flush();
+            return true;
+        }finally{
+            release(job);
+        }
+    }
+
+    /**
+     * Stops the workers and deletes all files. Running exports are
+     * interrupted, waiting ones are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized(this){
+            executor.shutdownNow();
+        }
+        cleaner.shutdownNow();
+        for(Job job : jobs.values()){
+            delete(job.file);
+        }
+        jobs.clear();
+    }
+
+    private long transfer(Job job, WritableByteChannel target) throws IOException {
+        try(FileChannel channel = FileChannel.open(job.file, StandardOpenOption.READ)){
+            long size = channel.size();
+            long position = 0;
+            while(position < size){
+                position += channel.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return the job if it is done, counted as downloading so its file is kept.
+     */
+    private synchronized Job acquire(String id, String user){
+        Job job = getJob(id, user);
+        if(job == null || job.state != State.DONE || job.removed){
+            return null;
+        }
+        job.downloads++;
+        return job;
+    }
+
+    private void release(Job job){
+        boolean delete;
+        synchronized(this){
+            job.downloads--;
+            delete = job.removed && job.downloads == 0;
+        }
+        if(delete){
+            delete(job.file);
+        }
+    }
+
+    /**
+     * Removes the job, its file goes now or after the last download.
+     */
+    private void discard(Job job){
+        boolean delete;
+        synchronized(this){
+            jobs.remove(job.id);
+            job.removed = true;
+            delete = job.downloads == 0;
+        }
+        if(delete){
+            delete(job.file);
+        }
+    }
+
+    private void removeExpired(){
+        long expired = System.currentTimeMillis() - resultTtl;
+        for(Job job : jobs.values()){
+            if(job.finished != 0 && job.finished < expired){
+                discard(job);
+            }
+        }
+    }
+
+    /**
+     * Ends a job, call holding the lock.
+     */
+    private void finish(Job job, State state, Throwable error){
+        job.error = error;
+        job.finished = System.currentTimeMillis();
+        job.state = state;
+        pending--;
+        int active = activeJobs.get(job.user) - 1;
+        if(active == 0){
+            activeJobs.remove(job.user);
+        }else{
+            activeJobs.put(job.user, active);
+        }
+    }
+
+    private static void delete(Path file){
+        if(file == null){
+            return;
+        }
+        try{
+            Files.deleteIfExists(file);
+        }catch(IOException ex){
+            LOG.log(Level.WARNING, "Could not delete export file " + file, ex);
+        }
+    }
+
+    /**
+     * Runs one job. Ordered by priority, then by when it was submitted.
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+
+        private final Job job;
+        private final int priority;
+        private final long sequence;
+        private final PoiExportOptions options;
+        private final Export export;
+
+        Task(Job job, int priority, long sequence, PoiExportOptions options, Export export){
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.options = options;
+            this.export = export;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if(priority != other.priority){
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            synchronized(PoiExportService.this){
+                if(job.state != State.QUEUED){
+                    // cancelled while it waited
+                    return;
+                }
+                job.state = State.RUNNING;
+            }
+            Path file = null;
+            try{
+                file = Files.createTempFile(spoolDir, "export-", ".tmp");
+                job.file = file;
+                final Path spool = file;
+                export.write(new PoiExportSink(){
+                    @Override
+                    public OutputStream open(String filename, String contentType) throws IOException {
+                        job.contentType = contentType;
+                        return PoiExportSinks.file(spool).open(filename, contentType);
+                    }
+                }, options);
+                job.size = Files.size(file);
+                synchronized(PoiExportService.this){
+                    finish(job, State.DONE, null);
+                }
+            }catch(Throwable ex){
+                delete(file);
+                LOG.log(Level.WARNING, "Export " + job.id + " failed", ex);
+                synchronized(PoiExportService.this){
+                    finish(job, State.FAILED, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where PoiExporter writes a finished export: the servlet response, a file,
+ * a stream or a channel. PoiExportSinks has the implementations.
+ * @author DCConway
+ */
+public interface PoiExportSink {
+
+    /**
+     * Called once per export before anything is written. The export is done
+     * when the returned stream is closed, the exporter always closes it.
+     * @param filename - name of the file for the client, e.g. for the
+     * Content-Disposition header.
+     * @param contentType - MIME type of the content.
+     * @return stream to write the content to.
+     * @throws IOException
+     */
+    OutputStream open(String filename, String contentType) throws IOException;
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The PoiExportSink implementations. All of them buffer, the exporter writes
+ * the zip a few bytes at a time.
+ *
+ * Usage:
+ * <pre>
+ * PoiExporter.exportUsingList("users.xlsx", headers, rows, PoiExportSinks.file(path), options);
+ * PoiExporter.exportUsingList("users.xlsx", headers, rows, PoiExportSinks.servlet(response), options);
+ * </pre>
+ * @author DCConway
+ */
+public final class PoiExportSinks {
+
+    public static final String XLSX_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    /** Responses up to this size are sent with a Content-Length. */
+    public static final int DEFAULT_LENGTH_BUFFER = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOG = Logger.getLogger(PoiExportSinks.class.getName());
+
+    private PoiExportSinks(){}
+
+    /**
+     * The JSF response, the request is marked complete when the export is
+     * written. The response is reset first, clearing anything the page wrote.
+     * @param context - current FacesContext, null for FacesContext.getCurrentInstance().
+     * @return the sink.
+     */
+    public static PoiExportSink faces(FacesContext context){
+        return faces(context, true);
+    }
+
+    static PoiExportSink faces(final FacesContext context, final boolean reset){
+        return new PoiExportSink(){
+            @Override
+            public OutputStream open(String filename, String contentType) throws IOException {
+                FacesContext fc = context != null ? context : FacesContext.getCurrentInstance();
+                HttpServletResponse response = (HttpServletResponse) fc.getExternalContext().getResponse();
+                return new ResponseOutputStream(response, fc, filename, contentType, reset, DEFAULT_LENGTH_BUFFER);
+            }
+        };
+    }
+
+    /**
+     * A servlet response. Exports up to DEFAULT_LENGTH_BUFFER bytes are held
+     * back and sent with a Content-Length, larger ones are sent chunked.
+     * @param response - response not yet committed.
+     * @return the sink.
+     */
+    public static PoiExportSink servlet(HttpServletResponse response){
+        return servlet(response, DEFAULT_LENGTH_BUFFER);
+    }
+
+    /**
+     * @param response - response not yet committed.
+     * @param lengthBuffer - largest export sent with a Content-Length, 0 to
+     * always send chunked.
+     * @return the sink.
+     */
+    public static PoiExportSink servlet(final HttpServletResponse response, final int lengthBuffer){
+        return new PoiExportSink(){
+            @Override
+            public OutputStream open(String filename, String contentType) throws IOException {
+                return new ResponseOutputStream(response, null, filename, contentType, false, lengthBuffer);
+            }
+        };
+    }
+
+    /**
+     * A stream owned by the caller, it is flushed but not closed.
+     * @param out - stream to write to.
+     * @return the sink.
+     */
+    public static PoiExportSink stream(final OutputStream out){
+        return new PoiExportSink(){
+            @Override
+            public OutputStream open(String filename, String contentType) {
+                return new BufferedOutputStream(new NonClosingOutputStream(out), BUFFER_SIZE);
+            }
+        };
+    }
+
+    /**
+     * A file, created or replaced.
+     * @param path - file to write.
+     * @return the sink.
+     */
+    public static PoiExportSink file(final Path path){
+        return new PoiExportSink(){
+            @Override
+            public OutputStream open(String filename, String contentType) throws IOException {
+                return new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE);
+            }
+        };
+    }
+
+    /**
+     * A channel owned by the caller, it is not closed.
+     * @param channel - channel to write to.
+     * @return the sink.
+     */
+    public static PoiExportSink channel(final WritableByteChannel channel){
+        return new PoiExportSink(){
+            @Override
+            public OutputStream open(String filename, String contentType) {
+                return new BufferedOutputStream(new NonClosingOutputStream(Channels.newOutputStream(channel)), BUFFER_SIZE);
+            }
+        };
+    }
+
+    /**
+     * Closes the stream of an export that failed. A response that is not yet
+     * committed is left untouched so an error page can still be sent, one
+     * that is committed is left unfinished so the client does not take the
+     * part sent for the whole file.
+     * @param out - stream from PoiExportSink.open.
+     */
+    static void abort(OutputStream out){
+        try{
+            if(out instanceof ResponseOutputStream){
+                ((ResponseOutputStream) out).abort();
+            }else{
+                out.close();
+            }
+        }catch(IOException ex){
+            // the export already failed, that is the error to report
+        }
+    }
+
+    /**
+     * Content-Disposition header for filename. Quotes and line breaks are
+     * replaced, they would end the header early.
+     */
+    static String contentDisposition(String filename){
+        return "inline; filename=\"" + filename.replace('"', '\'').replace('\r', ' ').replace('\n', ' ') + "\"";
+    }
+
+    /**
+     * Flushes on close instead of closing.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Holds the first lengthBuffer bytes back. If the export ends within them
+     * the Content-Length is set before they are sent, otherwise the response
+     * is committed without one and the rest goes straight through.
+     */
+    private static final class ResponseOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+        private final FacesContext context;
+        private byte[] buffer;
+        private int count;
+        private OutputStream out;
+        private boolean closed;
+
+        ResponseOutputStream(HttpServletResponse response, FacesContext context, String filename, String contentType, boolean reset, int lengthBuffer){
+            this.response = response;
+            this.context = context;
+            this.buffer = new byte[lengthBuffer];
+            if(reset){
+                response.reset();
+            }
+            response.setContentType(contentType);
+            response.setHeader("Content-Disposition", contentDisposition(filename));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(out == null && count < buffer.length){
+                buffer[count++] = (byte) b;
+                return;
+            }
+            commit();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(out == null && count + len <= buffer.length){
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            commit();
+            out.write(b, off, len);
+        }
+
+        private void commit() throws IOException {
+            if(out == null){
+                out = new BufferedOutputStream(response.getOutputStream(), BUFFER_SIZE);
+                out.write(buffer, 0, count);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed){
+                return;
+            }
+            if(out == null){
+                response.setContentLength(count);
+                out = response.getOutputStream();
+                out.write(buffer, 0, count);
+                buffer = null;
+            }
+            // the container closes the response stream
+            out.flush();
+            // only now, so abort still runs when sending fails
+            closed = true;
+            if(context != null){
+                context.responseComplete();
+            }
+        }
+
+        /**
+         * Drops what is buffered. A committed response is not flushed or
+         * completed: the export's exception goes on to the container, which
+         * then drops the connection before the end of the body, so the client
+         * sees a failed download instead of a truncated file with status 200.
+         */
+        void abort() {
+            if(closed){
+                return;
+            }
+            closed = true;
+            buffer = null;
+            if(out != null){
+                LOG.warning("Export failed after the response was committed, the download is truncated");
+                out = null;
+            }
+        }
+    }
+}
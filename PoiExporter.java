@@ -1,26 +1,38 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
-import javax.faces.context.ExternalContext;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 import javax.faces.context.FacesContext;
-import javax.servlet.http.HttpServletResponse;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 /**
  * Class contains static methods for exporting data using apache poi
+ * Each export method has an overload taking PoiExportOptions, use it with
+ * streaming on for large exports so the workbook is not held in memory.
+ * The rows can also come from an Iterator, Stream or JDBC ResultSet, they
+ * are then pulled one at a time as they are written.
+ * Exports with more rows than fit on a sheet continue on more sheets, see
+ * PoiExportOptions.setRowsPerSheet and setParallelism.
+ * The methods taking a FacesContext write to the JSF response, the others
+ * take a PoiExportSink so they also work outside a request, e.g. to a file
+ * or a channel.
+ * With PoiExportOptions.setFormat the same methods write CSV or TSV instead.
  * @author DCConway
  */
 public class PoiExporter {
@@ -37,6 +49,8 @@ public class PoiExporter {
      * parameter which is also a Class<?>. Class member fields used in creating the 
      * spreadsheet must have a value at the time of class construction or the value 
      * will not show up in the spreadsheet.
+     * A name in fieldsUsed can also be a field of a super class or a property
+     * with a public getter.
      * @param filename - Name of the spreadsheet to be created.
      * @param headers - List of Column headers for the spreadsheet.
      * @param data - Collection of type <?>.
@@ -53,73 +67,109 @@ public class PoiExporter {
      */
     public static void exportSpecificDataToExcel(String filename,ArrayList<String> headers, ArrayList<?> data,Class<?> theClass,ArrayList<String> fieldsUsed,FacesContext context) 
         throws NoSuchMethodException, ClassNotFoundException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, FileNotFoundException, IOException{
-        
-        // create workbook
-        Workbook wb = new XSSFWorkbook();
-        // creation helper
-        CreationHelper helper = wb.getCreationHelper();
-        CellStyle wrapStyle = wb.createCellStyle();
-        wrapStyle.setWrapText(true);
-        // create sheet
-        Sheet sheet1 = wb.createSheet("Export");
-        // create header row and cells
-        Row headerRow = sheet1.createRow(0);
-        for(int i = 0; i < headers.size(); i++){
-            Cell cell = headerRow.createCell(i);
-            cell.setCellValue(headers.get(i));
-        }
-        int largeCell = -1;
-        // fields
-        Field[] fields = theClass.getDeclaredFields();
-        // loop over the data list
-        for(int i=0; i < data.size(); i++){
-            Row row = sheet1.createRow(i+1);
-            row.setRowStyle(wrapStyle);
-            for(int j = 0; j < fieldsUsed.size(); j++){
-                for(Field f : fields){
-                    if(f.getName().equals(fieldsUsed.get(j))){
-                        f.setAccessible(true);
-                        Cell cell = row.createCell(j);
-                        if(f.getType().getName().equals("java.util.Date")){
-                            CellStyle cellStyle = wb.createCellStyle();
-                            cellStyle.setDataFormat(helper.createDataFormat().getFormat("m/dd/yyyy"));
-                            cell.setCellValue((Date)f.get(data.get(i)));
-                            cell.setCellStyle(cellStyle);
-                        }else{
-                            if(f.get(data.get(i)) != null && ((String)f.get(data.get(i))).length() > 100){
-                                largeCell = j;
-                                sheet1.setColumnWidth(j, 18000);
-                                cell.setCellValue((String)f.get(data.get(i)));
-                                cell.setCellStyle(wrapStyle);
-                            }else{
-                                cell.setCellValue((String)f.get(data.get(i)));
-                            }
-                        }
-                    }
-                }
-            }
-
-        }
-        // set the columns to auto size
-        Sheet sheet = wb.getSheetAt(0);
-        for(int i = 0; i < fieldsUsed.size(); i++){
-            if(i == largeCell){
-                continue;
-            }
-            sheet.autoSizeColumn(i);
+        exportSpecificDataToExcel(filename, headers, data, theClass, fieldsUsed, context, new PoiExportOptions());
+    }
+    
+    /**
+     * Same as exportSpecificDataToExcel above with the workbook created as
+     * set in options.
+     * @param filename - Name of the spreadsheet to be created.
+     * @param headers - List of Column headers for the spreadsheet.
+     * @param data - Collection of type <?>.
+     * @param theClass - Class<?>
+     * @param fieldsUsed - List of Class<?> member fields to be used.
+     * @param context - FacesContext.getCurrentInstance.
+     * @param options - streaming and row window settings.
+     * @throws NoSuchMethodException
+     * @throws ClassNotFoundException
+     * @throws IllegalAccessException
+     * @throws IllegalArgumentException
+     * @throws InvocationTargetException
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public static void exportSpecificDataToExcel(String filename,ArrayList<String> headers, ArrayList<?> data,Class<?> theClass,ArrayList<String> fieldsUsed,FacesContext context,PoiExportOptions options) 
+        throws NoSuchMethodException, ClassNotFoundException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, FileNotFoundException, IOException{
+        exportSpecificDataToExcel(filename, headers, data, theClass, fieldsUsed, PoiExportSinks.faces(context, true), options);
+    }
+    
+    /**
+     * Same as exportSpecificDataToExcel above written to sink instead of the
+     * JSF response, for use outside of a request, e.g. to a file.
+     * @param filename - Name of the spreadsheet to be created.
+     * @param headers - List of Column headers for the spreadsheet.
+     * @param data - List of the beans.
+     * @param theClass - Class<?>
+     * @param fieldsUsed - List of Class<?> member fields to be used.
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportSpecificDataToExcel(String filename,List<String> headers, List<?> data,Class<?> theClass,List<String> fieldsUsed,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        export(filename, headers, data, PoiExportPlan.forFields(theClass, fieldsUsed), 100, sink, options);
+    }
+    
+    /**
+     * Same as exportSpecificDataToExcel above with the rows pulled from an
+     * Iterator as they are written, so they do not have to be loaded into a
+     * list first. With streaming on in options only the row window is held
+     * in memory. For a Spliterator pass Spliterators.iterator(spliterator).
+     * @param filename - Name of the spreadsheet to be created.
+     * @param headers - List of Column headers for the spreadsheet.
+     * @param data - Iterator over the beans.
+     * @param theClass - Class<?>
+     * @param fieldsUsed - List of Class<?> member fields to be used.
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportSpecificDataToExcel(String filename,List<String> headers, Iterator<?> data,Class<?> theClass,List<String> fieldsUsed,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        export(filename, headers, data, PoiExportPlan.forFields(theClass, fieldsUsed), 100, sink, options);
+    }
+    
+    /**
+     * Same as exportSpecificDataToExcel above with the rows pulled from a
+     * Stream, the stream is closed when the export is done.
+     * @param filename - Name of the spreadsheet to be created.
+     * @param headers - List of Column headers for the spreadsheet.
+     * @param data - Stream of the beans.
+     * @param theClass - Class<?>
+     * @param fieldsUsed - List of Class<?> member fields to be used.
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportSpecificDataToExcel(String filename,List<String> headers, Stream<?> data,Class<?> theClass,List<String> fieldsUsed,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        try(Stream<?> rows = data){
+            exportSpecificDataToExcel(filename, headers, rows.iterator(), theClass, fieldsUsed, sink, options);
         }
-        // write to stream
-        ExternalContext ec = FacesContext.getCurrentInstance().getExternalContext();
-        HttpServletResponse response = (HttpServletResponse) ec.getResponse();
-        OutputStream out = response.getOutputStream();
-        response.reset();
-        response.setHeader("Content-Type", "application/excel");
-        response.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
-        
-        wb.write(out);
-        wb.close();
-        FacesContext.getCurrentInstance().responseComplete();
-            
+    }
+    
+    /**
+     * Same as exportSpecificDataToExcel above with the rows read from a JDBC
+     * ResultSet, one row at a time as they are written. Numbers and dates
+     * keep their type. The ResultSet is left open for the caller to close.
+     * @param filename - Name of the spreadsheet to be created.
+     * @param headers - List of Column headers for the spreadsheet.
+     * @param data - ResultSet before its first row.
+     * @param columnsUsed - labels of the ResultSet columns to be used.
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws SQLException
+     * @throws IOException 
+     */
+    public static void exportSpecificDataToExcel(String filename,List<String> headers, ResultSet data,List<String> columnsUsed,PoiExportSink sink,PoiExportOptions options)
+        throws SQLException, IOException{
+        exportResultSet(filename, headers, data, columnsUsed, 100, sink, options);
     }
     
     /**
@@ -133,59 +183,70 @@ public class PoiExporter {
      * @param context - FacesContext.getCurrentInstance.
      */
     public static void exportUsingList(String filename,ArrayList<String> headers, ArrayList<HashMap<String,String>> data,FacesContext context) throws IOException{
-        
-        // create workbook
-        Workbook wb = new XSSFWorkbook();
-        CellStyle wrapStyle = wb.createCellStyle();
-        wrapStyle.setWrapText(true);
-        // create sheet
-        Sheet sheet1 = wb.createSheet("Export");
-        // create header row and cells
-        Row headerRow = sheet1.createRow(0);
-        for(int i = 0; i < headers.size(); i++){
-            Cell cell = headerRow.createCell(i);
-            cell.setCellValue(headers.get(i));
+        exportUsingList(filename, headers, data, context, new PoiExportOptions());
+    }
+    
+    /**
+     * Same as exportUsingList above with the workbook created as set in options.
+     * @param filename - name of the excel file to be created.
+     * @param headers - List<String> of column header names.
+     * @param data - ArrayList<HashMap<String,String>> of the data to be inserted into the columns
+     * @param context - FacesContext.getCurrentInstance.
+     * @param options - streaming and row window settings.
+     */
+    public static void exportUsingList(String filename,ArrayList<String> headers, ArrayList<HashMap<String,String>> data,FacesContext context,PoiExportOptions options) throws IOException{
+        exportUsingList(filename, headers, data, PoiExportSinks.faces(context, false), options);
+    }
+    
+    /**
+     * Same as exportUsingList above written to sink instead of the JSF
+     * response, for use outside of a request, e.g. to a file.
+     * @param filename - name of the excel file to be created.
+     * @param headers - List<String> of column header names.
+     * @param data - List of the maps to be inserted into the columns
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     */
+    public static void exportUsingList(String filename,List<String> headers, List<? extends Map<String,String>> data,PoiExportSink sink,PoiExportOptions options) throws IOException{
+        try{
+            export(filename, headers, data, PoiExportPlan.forMapKeys(headers), 100, sink, options);
+        }catch(InvocationTargetException ex){
+            // map columns do not call anything that throws checked exceptions
+            throw new IllegalStateException(ex.getCause());
         }
-        
-        // for each hashmap in the list
-        int largeCell = -1;
-        for(int i = 0; i < data.size(); i++){
-            // create a row
-            Row row = sheet1.createRow(i+1);
-            row.setRowStyle(wrapStyle);
-            // loop on the headers list, pull the value by the key and create a cell
-            for(int j = 0; j < headers.size(); j++){
-                Cell cell = row.createCell(j);
-                HashMap<String,String> map = data.get(i);
-                if(map.get(headers.get(j)) != null && map.get(headers.get(j)).length() > 100){
-                    largeCell = j;
-                    sheet1.setColumnWidth(j, 18000);
-                    cell.setCellValue(map.get(headers.get(j)));
-                    cell.setCellStyle(wrapStyle);
-                }else{
-                    cell.setCellValue(map.get(headers.get(j)));
-                }
-            }
+    }
+    
+    /**
+     * Same as exportUsingList above with the rows pulled from an Iterator as
+     * they are written. For a Spliterator pass Spliterators.iterator(spliterator).
+     * @param filename - name of the excel file to be created.
+     * @param headers - List<String> of column header names.
+     * @param data - Iterator over the maps to be inserted into the columns
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     */
+    public static void exportUsingList(String filename,List<String> headers, Iterator<? extends Map<String,String>> data,PoiExportSink sink,PoiExportOptions options) throws IOException{
+        try{
+            export(filename, headers, data, PoiExportPlan.forMapKeys(headers), 100, sink, options);
+        }catch(InvocationTargetException ex){
+            // map columns do not call anything that throws checked exceptions
+            throw new IllegalStateException(ex.getCause());
         }
-        
-        Sheet sheet = wb.getSheetAt(0);
-        for(int i = 0; i < data.size(); i++){
-            if(i == largeCell){
-                continue;
-            }
-            sheet.autoSizeColumn(i);
+    }
+    
+    /**
+     * Same as exportUsingList above with the rows pulled from a Stream, the
+     * stream is closed when the export is done.
+     * @param filename - name of the excel file to be created.
+     * @param headers - List<String> of column header names.
+     * @param data - Stream of the maps to be inserted into the columns
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     */
+    public static void exportUsingList(String filename,List<String> headers, Stream<? extends Map<String,String>> data,PoiExportSink sink,PoiExportOptions options) throws IOException{
+        try(Stream<? extends Map<String,String>> rows = data){
+            exportUsingList(filename, headers, rows.iterator(), sink, options);
         }
-        
-        // write to stream
-        ExternalContext ec = FacesContext.getCurrentInstance().getExternalContext();
-        HttpServletResponse response = (HttpServletResponse) ec.getResponse();
-        OutputStream out = response.getOutputStream();
-        response.setHeader("Content-Type", "application/excel");
-        response.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
-
-        wb.write(out);
-        wb.close();
-        FacesContext.getCurrentInstance().responseComplete();
     }
     
     /**
@@ -201,6 +262,7 @@ public class PoiExporter {
      * Class member fields used in creating the 
      * spreadsheet must have a value at the time of class construction or the value 
      * will not show up in the spreadsheet.
+     * Static fields are not exported.
      * @param filename
      * @param headers
      * @param data
@@ -216,73 +278,298 @@ public class PoiExporter {
      */
     public static void exportToExcel(String filename,ArrayList<String> headers, ArrayList<?> data,Class<?> theClass,FacesContext context) 
         throws NoSuchMethodException, ClassNotFoundException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, FileNotFoundException, IOException{
+        exportToExcel(filename, headers, data, theClass, context, new PoiExportOptions());
+    }
+    
+    /**
+     * Same as exportToExcel above with the workbook created as set in options.
+     * @param filename
+     * @param headers
+     * @param data
+     * @param theClass
+     * @param context
+     * @param options - streaming and row window settings.
+     * @throws NoSuchMethodException
+     * @throws ClassNotFoundException
+     * @throws IllegalAccessException
+     * @throws IllegalArgumentException
+     * @throws InvocationTargetException
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public static void exportToExcel(String filename,ArrayList<String> headers, ArrayList<?> data,Class<?> theClass,FacesContext context,PoiExportOptions options) 
+        throws NoSuchMethodException, ClassNotFoundException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, FileNotFoundException, IOException{
+        exportToExcel(filename, headers, data, theClass, PoiExportSinks.faces(context, false), options);
+    }
+    
+    /**
+     * Same as exportToExcel above written to sink instead of the JSF
+     * response, for use outside of a request, e.g. to a file.
+     * @param filename
+     * @param headers
+     * @param data - List of the beans.
+     * @param theClass
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportToExcel(String filename,List<String> headers, List<?> data,Class<?> theClass,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        export(filename, headers, data, PoiExportPlan.forDeclaredFields(theClass), 50, sink, options);
+    }
+    
+    /**
+     * Same as exportToExcel above with the rows pulled from an Iterator as
+     * they are written. For a Spliterator pass Spliterators.iterator(spliterator).
+     * @param filename
+     * @param headers
+     * @param data - Iterator over the beans.
+     * @param theClass
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportToExcel(String filename,List<String> headers, Iterator<?> data,Class<?> theClass,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        export(filename, headers, data, PoiExportPlan.forDeclaredFields(theClass), 50, sink, options);
+    }
+    
+    /**
+     * Same as exportToExcel above with the rows pulled from a Stream, the
+     * stream is closed when the export is done.
+     * @param filename
+     * @param headers
+     * @param data - Stream of the beans.
+     * @param theClass
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     * @throws IOException 
+     */
+    public static void exportToExcel(String filename,List<String> headers, Stream<?> data,Class<?> theClass,PoiExportSink sink,PoiExportOptions options)
+        throws IllegalAccessException, InvocationTargetException, IOException{
+        try(Stream<?> rows = data){
+            exportToExcel(filename, headers, rows.iterator(), theClass, sink, options);
+        }
+    }
+    
+    /**
+     * Same as exportToExcel above with every column of a JDBC ResultSet, read
+     * one row at a time as they are written. The ResultSet is left open for
+     * the caller to close.
+     * @param filename
+     * @param headers - one per ResultSet column.
+     * @param data - ResultSet before its first row.
+     * @param sink - where the export is written, see PoiExportSinks.
+     * @param options - streaming and row window settings.
+     * @throws SQLException
+     * @throws IOException 
+     */
+    public static void exportToExcel(String filename,List<String> headers, ResultSet data,PoiExportSink sink,PoiExportOptions options)
+        throws SQLException, IOException{
+        exportResultSet(filename, headers, data, null, 50, sink, options);
+    }
+    
+    private static void exportResultSet(String filename, List<String> headers, ResultSet data, List<String> columnsUsed, int largeText, PoiExportSink sink, PoiExportOptions options)
+        throws SQLException, IOException{
+        PoiExportPlan plan = PoiExportPlan.forResultSet(data.getMetaData(), columnsUsed);
+        try{
+            export(filename, headers, rows(data), plan, largeText, sink, options);
+        }catch(InvocationTargetException ex){
+            Throwable cause = ex.getCause();
+            throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+        }catch(IllegalStateException ex){
+            if(ex.getCause() instanceof SQLException){
+                throw (SQLException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Writes the rows to a new workbook and the workbook to sink.
+     * Every export ends up here, the plan says how to get the cells out of a
+     * row. A new sheet is started every rowsPerSheet rows. CSV and TSV
+     * exports go to PoiDelimitedWriter instead.
+     * @param largeText - text longer than this gets the column wrapped at a
+     * fixed width instead of sized to fit.
+     * @param sink - where the workbook is written.
+     */
+    private static void export(String filename, List<String> headers, Iterator<?> data, PoiExportPlan plan, int largeText, PoiExportSink sink, PoiExportOptions options)
+        throws InvocationTargetException, IOException{
+        if(options.getFormat() != PoiExportOptions.Format.XLSX){
+            PoiDelimitedWriter.export(filename, headers, data, plan, sink, options);
+            return;
+        }
         
         // create workbook
-        Workbook wb = new XSSFWorkbook();
-        // creation helper
-        CreationHelper helper = wb.getCreationHelper();
-        CellStyle wrapStyle = wb.createCellStyle();
-        wrapStyle.setWrapText(true);
-        // create sheet
-        Sheet sheet1 = wb.createSheet("Export");
-        // create header row and cells
-        Row headerRow = sheet1.createRow(0);
-        for(int i = 0; i < headers.size(); i++){
-            Cell cell = headerRow.createCell(i);
-            cell.setCellValue(headers.get(i));
+        Workbook wb = createWorkbook(options);
+        try{
+            PoiSheetWriter.Layout layout = new PoiSheetWriter.Layout(wb, headers, plan, largeText, options);
+            // pull the rows one at a time
+            int sheetIndex = 0;
+            PoiSheetWriter sheet = new PoiSheetWriter(wb, sheetIndex, layout);
+            while(data.hasNext()){
+                if(sheet.isFull()){
+                    sheet.finish();
+                    sheet = new PoiSheetWriter(wb, ++sheetIndex, layout);
+                }
+                sheet.write(data.next());
+            }
+            sheet.finish();
+            send(wb, filename, sink);
+        }finally{
+            dispose(wb);
         }
-        int largeCell = 0;
-        // fields
-        Field[] fields = theClass.getDeclaredFields();
-        for(int i=0; i < data.size(); i++){
-            Row row = sheet1.createRow(i+1);
-            row.setRowStyle(wrapStyle);
-            for(int j = 0; j < fields.length; j++){
-                fields[j].setAccessible(true);
-                Cell cell = row.createCell(j);
-                if(fields[j].getType().getName().equals("java.util.Date")){
-                    CellStyle cellStyle = wb.createCellStyle();
-                    cellStyle.setDataFormat(helper.createDataFormat().getFormat("m/dd/yyyy"));
-                    cell.setCellValue((Date)fields[j].get(data.get(i)));
-                    cell.setCellStyle(cellStyle);
-                }else if(fields[j].getType().getName().equals("java.lang.String")){
-                        if(fields[j].get(data.get(i)) != null && ((String)fields[j].get(data.get(i))).length() > 50){
-                            largeCell = j;
-                            System.out.println("content length > 50");
-                            sheet1.setColumnWidth(j, 18000);
-                            cell.setCellValue((String)fields[j].get(data.get(i)));
-                            cell.setCellStyle(wrapStyle);
-                        }else{
-                            cell.setCellValue((String)fields[j].get(data.get(i)));
+    }
+    
+    /**
+     * As export above for rows in a list. When the rows take more than one
+     * sheet and options allow it the sheets are written in parallel, each by
+     * its own task on a fork join pool, and then put together into the one
+     * workbook. Only streaming workbooks are written in parallel, each of
+     * their sheets goes to its own temp file while a plain workbook shares
+     * one string table between its sheets.
+     */
+    private static void export(String filename, List<String> headers, final List<?> data, PoiExportPlan plan, int largeText, PoiExportSink sink, PoiExportOptions options)
+        throws InvocationTargetException, IOException{
+        final int rowsPerSheet = options.getRowsPerSheet();
+        if(options.getFormat() != PoiExportOptions.Format.XLSX || options.getParallelism() < 2 || !options.isStreaming() || data.size() <= rowsPerSheet){
+            export(filename, headers, data.iterator(), plan, largeText, sink, options);
+            return;
+        }
+        
+        // create workbook
+        Workbook wb = createWorkbook(options);
+        try{
+            PoiSheetWriter.Layout layout = new PoiSheetWriter.Layout(wb, headers, plan, largeText, options);
+            // sheets are created up front, the tasks only add rows to their own sheet
+            int sheets = (data.size() + rowsPerSheet - 1) / rowsPerSheet;
+            List<Callable<Void>> tasks = new ArrayList<>(sheets);
+            for(int s = 0; s < sheets; s++){
+                final PoiSheetWriter sheet = new PoiSheetWriter(wb, s, layout);
+                final int from = s * rowsPerSheet;
+                final int to = Math.min(data.size(), from + rowsPerSheet);
+                tasks.add(new Callable<Void>(){
+                    @Override
+                    public Void call() throws InvocationTargetException {
+                        for(int i = from; i < to; i++){
+                            sheet.write(data.get(i));
                         }
-                }else if(fields[j].getType().getName().equals("java.lang.long")){
-                    cell.setCellValue((long)fields[j].get(data.get(i)));
-                }else if(fields[j].getType().getName().equals("java.lang.integer")){
-                    cell.setCellValue((int)fields[j].get(data.get(i)));
-                }else if(fields[j].getType().getName().equals("java.math.BigDecimal")){
-                    cell.setCellValue(((BigDecimal)fields[j].get(data.get(i))).floatValue());
-                }else if(fields[j].getType().getName().equals("java.math.BigInteger")){
-                    cell.setCellValue(((BigInteger)fields[j].get(data.get(i))).intValue());
+                        sheet.finish();
+                        return null;
+                    }
+                });
+            }
+            ForkJoinPool pool = new ForkJoinPool(options.getParallelism());
+            try{
+                for(Future<Void> task : pool.invokeAll(tasks)){
+                    task.get();
+                }
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing " + filename);
+            }catch(ExecutionException ex){
+                Throwable cause = ex.getCause();
+                if(cause instanceof InvocationTargetException){
+                    throw (InvocationTargetException) cause;
+                }
+                if(cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }
+                if(cause instanceof Error){
+                    throw (Error) cause;
                 }
+                throw new IllegalStateException(cause);
+            }finally{
+                pool.shutdownNow();
             }
+            send(wb, filename, sink);
+        }finally{
+            dispose(wb);
         }
-        // set the columns to auto size
-        Sheet sheet = wb.getSheetAt(0);
-        for(int i = 0; i < fields.length; i++){
-            if(i == largeCell){
-                continue;
+    }
+    
+    /**
+     * Writes the workbook to sink. If that fails the sink is told so, a
+     * response not yet committed can then still show an error page.
+     */
+    private static void send(Workbook wb, String filename, PoiExportSink sink) throws IOException{
+        OutputStream out = sink.open(filename, PoiExportSinks.XLSX_CONTENT_TYPE);
+        boolean written = false;
+        try{
+            wb.write(out);
+            // closing the response sends it, a failure there is aborted too
+            out.close();
+            written = true;
+        }finally{
+            if(!written){
+                PoiExportSinks.abort(out);
             }
-            sheet.autoSizeColumn(i);
         }
-        // write to stream
-        ExternalContext ec = FacesContext.getCurrentInstance().getExternalContext();
-        HttpServletResponse response = (HttpServletResponse) ec.getResponse();
-        OutputStream out = response.getOutputStream();
-        response.setHeader("Content-Type", "application/excel");
-        response.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
+    }
+    
+    /**
+     * Steps through a ResultSet as an Iterator, each next() moves the
+     * ResultSet to the next row and returns it.
+     */
+    private static Iterator<ResultSet> rows(final ResultSet rs){
+        return new Iterator<ResultSet>(){
+            private boolean fetched;
+            private boolean hasRow;
+
+            @Override
+            public boolean hasNext() {
+                if(!fetched){
+                    try{
+                        hasRow = rs.next();
+                    }catch(SQLException ex){
+                        throw new IllegalStateException("Reading the ResultSet failed", ex);
+                    }
+                    fetched = true;
+                }
+                return hasRow;
+            }
 
-        wb.write(out);
-        wb.close();
-        FacesContext.getCurrentInstance().responseComplete();
+            @Override
+            public ResultSet next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                fetched = false;
+                return rs;
+            }
+        };
+    }
+
+    /**
+     * Creates the workbook for an export, SXSSF when streaming is on so only
+     * the row window stays in memory.
+     */
+    private static Workbook createWorkbook(PoiExportOptions options){
+        if(options.isStreaming()){
+            SXSSFWorkbook wb = new SXSSFWorkbook(options.getRowAccessWindow());
+            wb.setCompressTempFiles(options.isCompressTempFiles());
+            return wb;
+        }
+        return new XSSFWorkbook();
+    }
+    
+    /**
+     * Closes the workbook and deletes the temp files of a streaming workbook.
+     */
+    private static void dispose(Workbook wb) throws IOException{
+        try{
+            if(wb instanceof SXSSFWorkbook){
+                ((SXSSFWorkbook)wb).dispose();
+            }
+        }finally{
+            wb.close();
+        }
     }
 }
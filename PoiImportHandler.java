@@ -0,0 +1,18 @@
+import java.util.List;
+
+/**
+ * Takes the rows of an import in batches, see PoiImporter. With parallelism
+ * above 1 the sheets are read at the same time and rows is called from more
+ * than one thread.
+ * @author DCConway
+ */
+public interface PoiImportHandler<T> {
+
+    /**
+     * Called for each batch of rows, in order within a sheet.
+     * @param sheetName - name of the sheet the rows are from.
+     * @param rows - up to batchSize rows, the list is the handler's to keep.
+     * @throws Exception - the import stops and fails with it.
+     */
+    void rows(String sheetName, List<T> rows) throws Exception;
+}
@@ -0,0 +1,397 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The inverse of PoiExportPlan: the properties of a bean set from the cells
+ * of an imported row, worked out once per class and field list and cached.
+ *
+ * Names are resolved like for an export, to a field of the class or one of
+ * its super classes (the same PoiExportPlan.field lookup) or failing that to
+ * a public setX() method. Final fields are skipped. The setter is a
+ * MethodHandle adapted to the property type and the Property doing the
+ * converting is picked by that type, so a number cell goes into a long field
+ * as a long without boxing. A number that does not fit an int, short or byte
+ * property fails instead of wrapping around.
+ * @author DCConway
+ */
+final class PoiImportPlan {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // ClassValue so a cached plan does not keep a web app's classes loaded
+    private static final ClassValue<ConcurrentMap<List<String>,PoiImportPlan>> PLANS = new ClassValue<ConcurrentMap<List<String>,PoiImportPlan>>(){
+        @Override
+        protected ConcurrentMap<List<String>,PoiImportPlan> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final MethodHandle constructor;
+    private final Property[] properties;
+
+    private PoiImportPlan(MethodHandle constructor, Property[] properties){
+        this.constructor = constructor;
+        this.properties = properties;
+    }
+
+    /**
+     * The plan for the named fields of theClass, in the order given.
+     * @param theClass - class of the beans imported, with a no argument
+     * constructor.
+     * @param fieldsUsed - field or property names, one per column.
+     * @return the cached plan.
+     * @throws IllegalAccessException when the constructor, a field or a
+     * setter can not be made accessible.
+     */
+    static PoiImportPlan forFields(Class<?> theClass, List<String> fieldsUsed) throws IllegalAccessException{
+        ConcurrentMap<List<String>,PoiImportPlan> plans = PLANS.get(theClass);
+        PoiImportPlan plan = plans.get(fieldsUsed);
+        if(plan == null){
+            List<String> key = Collections.unmodifiableList(new ArrayList<>(fieldsUsed));
+            Property[] properties = new Property[key.size()];
+            for(int i = 0; i < properties.length; i++){
+                properties[i] = property(key.get(i), setter(theClass, key.get(i)));
+            }
+            plan = new PoiImportPlan(constructor(theClass), properties);
+            PoiImportPlan existing = plans.putIfAbsent(key, plan);
+            if(existing != null){
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return number of properties.
+     */
+    int size(){
+        return properties.length;
+    }
+
+    /**
+     * @param index - property index.
+     * @return the property, null when the class has no field or setter by
+     * that name or its type can not be set from a cell.
+     */
+    Property property(int index){
+        return properties[index];
+    }
+
+    /**
+     * @return a new bean.
+     * @throws InvocationTargetException when the constructor throws a checked exception.
+     */
+    Object newInstance() throws InvocationTargetException{
+        try{
+            return (Object) constructor.invokeExact();
+        }catch(RuntimeException | Error e){
+            throw e;
+        }catch(Throwable t){
+            throw new InvocationTargetException(t, "Creating the bean");
+        }
+    }
+
+    /**
+     * Sets one property of a bean from a cell.
+     */
+    abstract static class Property {
+
+        private final String name;
+
+        Property(String name){
+            this.name = name;
+        }
+
+        String getName(){
+            return name;
+        }
+
+        /**
+         * Sets the property of bean from the cell in column of the current
+         * row of reader. The caller skips blank cells.
+         * @throws InvocationTargetException when a setter throws a checked exception.
+         */
+        final void set(Object bean, PoiSheetReader reader, int column) throws InvocationTargetException{
+            try{
+                doSet(bean, reader, column);
+            }catch(RuntimeException | Error e){
+                throw e;
+            }catch(Throwable t){
+                throw new InvocationTargetException(t, "Setting " + name);
+            }
+        }
+
+        abstract void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable;
+    }
+
+    private static final class TextProperty extends Property {
+
+        private final MethodHandle setter;
+
+        TextProperty(String name, MethodHandle setter){
+            super(name);
+            this.setter = setter;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            setter.invokeExact(bean, reader.text(column));
+        }
+    }
+
+    /**
+     * Date and its subclasses with a (long) constructor, like Timestamp. The
+     * setter takes the time in milliseconds and makes the Date.
+     */
+    private static final class DateProperty extends Property {
+
+        private final MethodHandle setter;
+
+        DateProperty(String name, MethodHandle setter){
+            super(name);
+            this.setter = setter;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            setter.invokeExact(bean, reader.date(column).getTime());
+        }
+    }
+
+    private static final class CalendarProperty extends Property {
+
+        private final MethodHandle setter;
+
+        CalendarProperty(String name, MethodHandle setter){
+            super(name);
+            this.setter = setter;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            Calendar value = Calendar.getInstance();
+            value.setTime(reader.date(column));
+            setter.invokeExact(bean, value);
+        }
+    }
+
+    /**
+     * long, int, short and byte, the setter narrows from long after the
+     * value is checked against the range of the type.
+     */
+    private static final class LongProperty extends Property {
+
+        private final MethodHandle setter;
+        private final long min;
+        private final long max;
+
+        LongProperty(String name, MethodHandle setter, long min, long max){
+            super(name);
+            this.setter = setter;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            setter.invokeExact(bean, inRange(reader.wholeNumber(column), min, max));
+        }
+    }
+
+    private static final class DoubleProperty extends Property {
+
+        private final MethodHandle setter;
+
+        DoubleProperty(String name, MethodHandle setter){
+            super(name);
+            this.setter = setter;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            setter.invokeExact(bean, reader.number(column));
+        }
+    }
+
+    private static final class BooleanProperty extends Property {
+
+        private final MethodHandle setter;
+
+        BooleanProperty(String name, MethodHandle setter){
+            super(name);
+            this.setter = setter;
+        }
+
+        @Override
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            setter.invokeExact(bean, reader.bool(column));
+        }
+    }
+
+    /**
+     * Boxed primitives, BigDecimal, BigInteger and enums, converted by the
+     * property type.
+     */
+    private static final class ValueProperty extends Property {
+
+        private final MethodHandle setter;
+        private final Class<?> type;
+
+        ValueProperty(String name, MethodHandle setter, Class<?> type){
+            super(name);
+            this.setter = setter;
+            this.type = type;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void doSet(Object bean, PoiSheetReader reader, int column) throws Throwable {
+            Object value;
+            if(type == Long.class){
+                value = reader.wholeNumber(column);
+            }else if(type == Integer.class){
+                value = (int) inRange(reader.wholeNumber(column), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }else if(type == Short.class){
+                value = (short) inRange(reader.wholeNumber(column), Short.MIN_VALUE, Short.MAX_VALUE);
+            }else if(type == Byte.class){
+                value = (byte) inRange(reader.wholeNumber(column), Byte.MIN_VALUE, Byte.MAX_VALUE);
+            }else if(type == Double.class){
+                value = reader.number(column);
+            }else if(type == Float.class){
+                value = (float) reader.number(column);
+            }else if(type == Boolean.class){
+                value = reader.bool(column);
+            }else if(type == BigDecimal.class){
+                value = reader.decimal(column);
+            }else if(type == BigInteger.class){
+                value = reader.decimal(column).toBigInteger();
+            }else{
+                value = Enum.valueOf((Class<? extends Enum>) type, reader.text(column).trim());
+            }
+            setter.invokeExact(bean, value);
+        }
+    }
+
+    /**
+     * Finds a non final field named name on theClass or a super class, or a
+     * public setter for it.
+     * @return setter handle, null when there is none.
+     */
+    private static MethodHandle setter(Class<?> theClass, String name) throws IllegalAccessException{
+        Field f = PoiExportPlan.field(theClass, name);
+        if(f != null && !Modifier.isFinal(f.getModifiers())){
+            f.setAccessible(true);
+            return LOOKUP.unreflectSetter(f);
+        }
+        if(name.isEmpty()){
+            return null;
+        }
+        String setterName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for(Method m : theClass.getMethods()){
+            if(m.getName().equals(setterName) && m.getParameterTypes().length == 1 && !Modifier.isStatic(m.getModifiers())){
+                m.setAccessible(true);
+                return LOOKUP.unreflect(m);
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle constructor(Class<?> theClass) throws IllegalAccessException{
+        try{
+            Constructor<?> c = theClass.getDeclaredConstructor();
+            c.setAccessible(true);
+            return LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        }catch(NoSuchMethodException ex){
+            throw new IllegalArgumentException(theClass.getName() + " has no constructor without arguments", ex);
+        }
+    }
+
+    private static Property property(String name, MethodHandle setter) throws IllegalAccessException{
+        if(setter == null){
+            return null;
+        }
+        Class<?> type = setter.type().parameterType(1);
+        if(type.isAssignableFrom(String.class)){
+            // String, CharSequence or Object
+            return new TextProperty(name, adapt(setter, Object.class, String.class));
+        }
+        if(Date.class.isAssignableFrom(type)){
+            try{
+                MethodHandle date = LOOKUP.findConstructor(type, MethodType.methodType(void.class, long.class));
+                return new DateProperty(name, MethodHandles.filterArguments(adapt(setter, Object.class, type), 1, date));
+            }catch(NoSuchMethodException ex){
+                return null;
+            }
+        }
+        if(type == Calendar.class){
+            return new CalendarProperty(name, adapt(setter, Object.class, Calendar.class));
+        }
+        if(type == long.class){
+            return new LongProperty(name, narrow(setter, long.class), Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        if(type == int.class){
+            return new LongProperty(name, narrow(setter, long.class), Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+        if(type == short.class){
+            return new LongProperty(name, narrow(setter, long.class), Short.MIN_VALUE, Short.MAX_VALUE);
+        }
+        if(type == byte.class){
+            return new LongProperty(name, narrow(setter, long.class), Byte.MIN_VALUE, Byte.MAX_VALUE);
+        }
+        if(type == double.class || type == float.class){
+            return new DoubleProperty(name, narrow(setter, double.class));
+        }
+        if(type == boolean.class){
+            return new BooleanProperty(name, adapt(setter, Object.class, boolean.class));
+        }
+        if(type == Long.class || type == Integer.class || type == Short.class || type == Byte.class
+                || type == Double.class || type == Float.class || type == Boolean.class
+                || type == BigDecimal.class || type == BigInteger.class || type.isEnum()){
+            return new ValueProperty(name, adapt(setter, Object.class, Object.class), type);
+        }
+        return null;
+    }
+
+    /**
+     * @return value if it is between min and max.
+     * @throws IllegalArgumentException when it is not, a cast would wrap it around.
+     */
+    private static long inRange(long value, long min, long max){
+        if(value < min || value > max){
+            throw new IllegalArgumentException(value + " is out of range " + min + " to " + max);
+        }
+        return value;
+    }
+
+    /**
+     * Changes the setter to (Object, valueType)void so it can be called with
+     * invokeExact.
+     */
+    private static MethodHandle adapt(MethodHandle setter, Class<?> beanType, Class<?> valueType){
+        return setter.asType(MethodType.methodType(void.class, beanType, valueType));
+    }
+
+    /**
+     * As adapt, narrowing the value, e.g. long to int, like a cast. Whole
+     * numbers are range checked before, see inRange.
+     */
+    private static MethodHandle narrow(MethodHandle setter, Class<?> valueType){
+        MethodHandle bean = setter.asType(setter.type().changeParameterType(0, Object.class).changeReturnType(void.class));
+        return MethodHandles.explicitCastArguments(bean, MethodType.methodType(void.class, Object.class, valueType));
+    }
+}
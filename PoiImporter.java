@@ -0,0 +1,482 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+
+/**
+ * Reads .xlsx files, the inverse of PoiExporter: the first row of each sheet
+ * holds the headers and every row after it becomes a bean or a map.
+ *
+ * The sheets are read straight from their XML one row at a time, so memory
+ * use does not grow with the number of rows, where XSSFWorkbook needs about
+ * ten times the file size. Only the shared strings table, if the file has
+ * one, is read whole, and only once a cell refers to it.
+ *
+ * Rows come as a lazy Stream, which must be closed, or in batches to a
+ * PoiImportHandler. Batches can be read from several sheets at the same
+ * time.
+ *
+ * Usage:
+ * <pre>
+ * try(Stream&lt;User&gt; users = PoiImporter.streamBeans(path, headers, User.class, fieldsUsed)){
+ *     users.forEach(...);
+ * }
+ * </pre>
+ * Beans are set through the same field and property lookup as an export,
+ * a column whose header is not in headers is skipped. Numbers, dates and
+ * booleans are converted to the field type, a cell that can not be converted
+ * fails the import with an IllegalArgumentException naming the cell. The
+ * file has to be on disk, save an upload to a temp file first.
+ * @author DCConway
+ */
+public class PoiImporter {
+
+    private PoiImporter(){}
+
+    /**
+     * The rows of every sheet as beans.
+     * @param file - the .xlsx file.
+     * @param headers - column headers, matched ignoring case.
+     * @param theClass - class of the beans, with a no argument constructor.
+     * @param fieldsUsed - field or property set from the column of the
+     * header at the same position.
+     * @return lazy stream of the beans, close it when done.
+     * @throws IOException
+     * @throws IllegalAccessException
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Stream<T> streamBeans(Path file, List<String> headers, Class<T> theClass, List<String> fieldsUsed) throws IOException, IllegalAccessException{
+        return (Stream<T>) stream(file, beanMapping(headers, PoiImportPlan.forFields(theClass, fieldsUsed)));
+    }
+
+    /**
+     * Same as streamBeans above with a column per declared field of theClass,
+     * the headers are the field names.
+     * @param file - the .xlsx file.
+     * @param theClass - class of the beans, with a no argument constructor.
+     * @return lazy stream of the beans, close it when done.
+     * @throws IOException
+     * @throws IllegalAccessException
+     */
+    public static <T> Stream<T> streamBeans(Path file, Class<T> theClass) throws IOException, IllegalAccessException{
+        List<String> fields = PoiExportPlan.declaredFields(theClass);
+        return streamBeans(file, fields, theClass, fields);
+    }
+
+    /**
+     * The rows of every sheet as maps keyed by header, the values the text
+     * Excel shows, blank cells left out.
+     * @param file - the .xlsx file.
+     * @return lazy stream of the maps, close it when done.
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static Stream<HashMap<String,String>> streamMaps(Path file) throws IOException{
+        return (Stream<HashMap<String,String>>) (Stream<?>) stream(file, mapMapping());
+    }
+
+    /**
+     * Same as streamBeans above with the beans handed to handler in batches.
+     * @param file - the .xlsx file.
+     * @param headers - column headers, matched ignoring case.
+     * @param theClass - class of the beans, with a no argument constructor.
+     * @param fieldsUsed - field or property set from the column of the
+     * header at the same position.
+     * @param handler - takes the batches, thread safe with parallelism above 1.
+     * @param batchSize - rows per batch.
+     * @param parallelism - sheets read at the same time.
+     * @throws IOException
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException when a setter or the handler throws a
+     * checked exception.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void importBeans(Path file, List<String> headers, Class<T> theClass, List<String> fieldsUsed, PoiImportHandler<T> handler, int batchSize, int parallelism)
+        throws IOException, IllegalAccessException, InvocationTargetException{
+        importRows(file, beanMapping(headers, PoiImportPlan.forFields(theClass, fieldsUsed)), (PoiImportHandler<Object>) handler, batchSize, parallelism);
+    }
+
+    /**
+     * Same as importBeans above with a column per declared field of theClass,
+     * the headers are the field names.
+     */
+    public static <T> void importBeans(Path file, Class<T> theClass, PoiImportHandler<T> handler, int batchSize, int parallelism)
+        throws IOException, IllegalAccessException, InvocationTargetException{
+        List<String> fields = PoiExportPlan.declaredFields(theClass);
+        importBeans(file, fields, theClass, fields, handler, batchSize, parallelism);
+    }
+
+    /**
+     * Same as streamMaps above with the maps handed to handler in batches.
+     * @param file - the .xlsx file.
+     * @param handler - takes the batches, thread safe with parallelism above 1.
+     * @param batchSize - rows per batch.
+     * @param parallelism - sheets read at the same time.
+     * @throws IOException
+     * @throws InvocationTargetException when the handler throws a checked exception.
+     */
+    @SuppressWarnings("unchecked")
+    public static void importMaps(Path file, PoiImportHandler<HashMap<String,String>> handler, int batchSize, int parallelism)
+        throws IOException, InvocationTargetException{
+        importRows(file, mapMapping(), (PoiImportHandler<Object>) (PoiImportHandler<?>) handler, batchSize, parallelism);
+    }
+
+    /**
+     * Turns the rows of one sheet into beans or maps.
+     */
+    private interface RowMapper {
+        Object map(PoiSheetReader row) throws InvocationTargetException;
+    }
+
+    /**
+     * Makes the RowMapper of a sheet from its header row.
+     */
+    private interface Mapping {
+        RowMapper forHeader(PoiSheetReader header);
+    }
+
+    private static Mapping beanMapping(final List<String> headers, final PoiImportPlan plan){
+        return new Mapping(){
+            @Override
+            public RowMapper forHeader(PoiSheetReader header) {
+                // the property of each column, by its header
+                final PoiImportPlan.Property[] properties = new PoiImportPlan.Property[header.columns()];
+                for(int c = 0; c < properties.length; c++){
+                    if(header.isBlank(c)){
+                        continue;
+                    }
+                    String text = header.text(c).trim();
+                    for(int i = 0; i < headers.size() && i < plan.size(); i++){
+                        if(headers.get(i).equalsIgnoreCase(text)){
+                            properties[c] = plan.property(i);
+                            break;
+                        }
+                    }
+                }
+                return new RowMapper(){
+                    @Override
+                    public Object map(PoiSheetReader row) throws InvocationTargetException {
+                        Object bean = plan.newInstance();
+                        int columns = Math.min(properties.length, row.columns());
+                        for(int c = 0; c < columns; c++){
+                            if(properties[c] == null || row.isBlank(c)){
+                                continue;
+                            }
+                            try{
+                                properties[c].set(bean, row, c);
+                            }catch(IllegalArgumentException ex){
+                                throw new IllegalArgumentException(row.cellName(c) + ": " + ex.getMessage(), ex);
+                            }
+                        }
+                        return bean;
+                    }
+                };
+            }
+        };
+    }
+
+    private static Mapping mapMapping(){
+        return new Mapping(){
+            @Override
+            public RowMapper forHeader(PoiSheetReader header) {
+                final String[] keys = new String[header.columns()];
+                for(int c = 0; c < keys.length; c++){
+                    if(!header.isBlank(c)){
+                        keys[c] = header.text(c).trim();
+                    }
+                }
+                return new RowMapper(){
+                    @Override
+                    public Object map(PoiSheetReader row) {
+                        HashMap<String,String> map = new HashMap<>();
+                        int columns = Math.min(keys.length, row.columns());
+                        for(int c = 0; c < columns; c++){
+                            if(keys[c] != null && !row.isBlank(c)){
+                                map.put(keys[c], row.text(c));
+                            }
+                        }
+                        return map;
+                    }
+                };
+            }
+        };
+    }
+
+    private static Stream<Object> stream(Path file, Mapping mapping) throws IOException{
+        final ImportIterator rows = new ImportIterator(Workbook.open(file), mapping);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(new Runnable(){
+                    @Override
+                    public void run() {
+                        rows.close();
+                    }
+                });
+    }
+
+    /**
+     * Reads the sheets and hands the rows to handler. With parallelism above
+     * 1 each sheet is read by its own task on a fork join pool.
+     */
+    private static void importRows(Path file, final Mapping mapping, final PoiImportHandler<Object> handler, final int batchSize, int parallelism)
+        throws IOException, InvocationTargetException{
+        if(batchSize < 1 || parallelism < 1){
+            throw new IllegalArgumentException("batchSize and parallelism must be at least 1");
+        }
+        Workbook workbook = Workbook.open(file);
+        List<PoiSheetReader> readers = new ArrayList<>();
+        try{
+            for(PoiSheetReader reader = workbook.nextSheet(); reader != null; reader = workbook.nextSheet()){
+                readers.add(reader);
+            }
+            if(parallelism < 2 || readers.size() < 2){
+                for(PoiSheetReader reader : readers){
+                    readSheet(reader, mapping, handler, batchSize);
+                }
+                return;
+            }
+            List<Callable<Void>> tasks = new ArrayList<>(readers.size());
+            for(final PoiSheetReader reader : readers){
+                tasks.add(new Callable<Void>(){
+                    @Override
+                    public Void call() throws IOException, InvocationTargetException {
+                        readSheet(reader, mapping, handler, batchSize);
+                        return null;
+                    }
+                });
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try{
+                for(Future<Void> task : pool.invokeAll(tasks)){
+                    task.get();
+                }
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading " + file);
+            }catch(ExecutionException ex){
+                Throwable cause = ex.getCause();
+                if(cause instanceof IOException){
+                    throw (IOException) cause;
+                }
+                if(cause instanceof InvocationTargetException){
+                    throw (InvocationTargetException) cause;
+                }
+                if(cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }
+                if(cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }finally{
+                pool.shutdownNow();
+            }
+        }finally{
+            for(PoiSheetReader reader : readers){
+                reader.close();
+            }
+            workbook.close();
+        }
+    }
+
+    private static void readSheet(PoiSheetReader reader, Mapping mapping, PoiImportHandler<Object> handler, int batchSize)
+        throws IOException, InvocationTargetException{
+        SheetRows rows = new SheetRows(reader, mapping);
+        List<Object> batch = new ArrayList<>(batchSize);
+        for(Object row = rows.next(); row != null; row = rows.next()){
+            batch.add(row);
+            if(batch.size() == batchSize){
+                handle(handler, reader.getSheetName(), batch);
+                // a new list, the handler may keep the last one
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if(!batch.isEmpty()){
+            handle(handler, reader.getSheetName(), batch);
+        }
+    }
+
+    private static void handle(PoiImportHandler<Object> handler, String sheetName, List<Object> batch) throws InvocationTargetException{
+        try{
+            handler.rows(sheetName, batch);
+        }catch(RuntimeException ex){
+            throw ex;
+        }catch(Exception ex){
+            throw new InvocationTargetException(ex, "Handling rows of " + sheetName);
+        }
+    }
+
+    /**
+     * The mapped rows of one sheet, the first row that is not blank is the
+     * header row.
+     */
+    private static final class SheetRows {
+
+        private final PoiSheetReader reader;
+        private final Mapping mapping;
+        private RowMapper mapper;
+
+        SheetRows(PoiSheetReader reader, Mapping mapping){
+            this.reader = reader;
+            this.mapping = mapping;
+        }
+
+        /**
+         * @return the next row, null after the last.
+         */
+        Object next() throws IOException, InvocationTargetException{
+            while(reader.next()){
+                if(reader.isBlankRow()){
+                    continue;
+                }
+                if(mapper == null){
+                    mapper = mapping.forHeader(reader);
+                    continue;
+                }
+                return mapper.map(reader);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The open package and its sheets, in workbook order.
+     */
+    private static final class Workbook implements Closeable {
+
+        private final OPCPackage pkg;
+        private final PoiSheetReader.Shared shared;
+        private final XSSFReader.SheetIterator sheets;
+
+        private Workbook(OPCPackage pkg, PoiSheetReader.Shared shared, XSSFReader.SheetIterator sheets){
+            this.pkg = pkg;
+            this.shared = shared;
+            this.sheets = sheets;
+        }
+
+        static Workbook open(Path file) throws IOException{
+            OPCPackage pkg;
+            try{
+                pkg = OPCPackage.open(file.toFile(), PackageAccess.READ);
+            }catch(OpenXML4JException ex){
+                throw new IOException(file + " is not an .xlsx file", ex);
+            }
+            try{
+                XSSFReader reader = new XSSFReader(pkg);
+                return new Workbook(pkg, new PoiSheetReader.Shared(pkg, reader), (XSSFReader.SheetIterator) reader.getSheetsData());
+            }catch(OpenXML4JException ex){
+                pkg.revert();
+                throw new IOException(file + " is not an .xlsx file", ex);
+            }catch(IOException | RuntimeException ex){
+                pkg.revert();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return reader of the next sheet, null after the last.
+         */
+        PoiSheetReader nextSheet() throws IOException{
+            if(!sheets.hasNext()){
+                return null;
+            }
+            InputStream in = sheets.next();
+            return new PoiSheetReader(sheets.getSheetName(), in, shared);
+        }
+
+        @Override
+        public void close() {
+            // opened read only, nothing to save
+            pkg.revert();
+        }
+    }
+
+    /**
+     * The rows of all sheets one after the other, a sheet is opened when the
+     * one before it is done.
+     */
+    private static final class ImportIterator implements Iterator<Object> {
+
+        private final Workbook workbook;
+        private final Mapping mapping;
+        private PoiSheetReader reader;
+        private SheetRows sheet;
+        private Object next;
+        private boolean done;
+
+        ImportIterator(Workbook workbook, Mapping mapping){
+            this.workbook = workbook;
+            this.mapping = mapping;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try{
+                while(next == null && !done){
+                    if(sheet == null){
+                        reader = workbook.nextSheet();
+                        if(reader == null){
+                            done = true;
+                            break;
+                        }
+                        sheet = new SheetRows(reader, mapping);
+                    }
+                    next = sheet.next();
+                    if(next == null){
+                        reader.close();
+                        reader = null;
+                        sheet = null;
+                    }
+                }
+                return next != null;
+            }catch(IOException ex){
+                throw new IllegalStateException("Reading the import failed", ex);
+            }catch(InvocationTargetException ex){
+                throw new IllegalStateException("Reading the import failed", ex.getCause());
+            }
+        }
+
+        @Override
+        public Object next() {
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            Object row = next;
+            next = null;
+            return row;
+        }
+
+        void close(){
+            try{
+                if(reader != null){
+                    reader.close();
+                }
+            }catch(IOException ex){
+                // nothing more is read, the package is closed below
+            }finally{
+                reader = null;
+                sheet = null;
+                done = true;
+                workbook.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the rows of one sheet of an .xlsx straight from its XML, one row at
+ * a time, without building the sheet in memory like XSSFWorkbook does. Only
+ * the cells of the current row are held, in arrays reused from row to row.
+ *
+ * The XML is pulled with StAX rather than pushed by SAX so rows can be
+ * handed out on demand, e.g. to a Stream, without a thread in between.
+ * Cell values are kept as the text in the file and converted when asked
+ * for, as text the way Excel shows it or as a number, date or boolean.
+ *
+ * Readers of different sheets can run on different threads, everything they
+ * share is in Shared.
+ * @author DCConway
+ */
+final class PoiSheetReader implements Closeable {
+
+    private static final XMLInputFactory XML_INPUT = xmlInputFactory();
+
+    /**
+     * A StAX factory with DTDs and external entities off, a sheet is only
+     * data and must not make the reader fetch or expand anything.
+     */
+    private static XMLInputFactory xmlInputFactory(){
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        setProperty(factory, XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        setProperty(factory, XMLInputFactory.IS_VALIDATING, false);
+        setProperty(factory, XMLInputFactory.SUPPORT_DTD, false);
+        setProperty(factory, XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static void setProperty(XMLInputFactory factory, String name, boolean value){
+        try{
+            factory.setProperty(name, value);
+        }catch(IllegalArgumentException ex){
+            // not supported by this StAX implementation
+        }
+    }
+
+    /**
+     * What every sheet of an import shares: the cell formats and the shared
+     * strings table.
+     */
+    static final class Shared {
+
+        private final OPCPackage pkg;
+        private final short[] formatIndexes;
+        private final String[] formatStrings;
+        private final boolean[] dateFormats;
+        private final boolean date1904;
+        // guarded by this, read when a sheet first needs it
+        private SharedStrings strings;
+
+        /**
+         * Reads the cell formats, the shared strings are only read when a
+         * cell refers to them. Exports written with streaming on have inline
+         * strings and never do.
+         */
+        Shared(OPCPackage pkg, XSSFReader reader) throws IOException, InvalidFormatException{
+            this.pkg = pkg;
+            StylesTable styles = reader.getStylesTable();
+            int count = styles == null ? 0 : styles.getNumCellStyles();
+            formatIndexes = new short[count];
+            formatStrings = new String[count];
+            dateFormats = new boolean[count];
+            for(int i = 0; i < count; i++){
+                XSSFCellStyle style = styles.getStyleAt(i);
+                formatIndexes[i] = style.getDataFormat();
+                formatStrings[i] = style.getDataFormatString();
+                dateFormats[i] = DateUtil.isADateFormat(formatIndexes[i], formatStrings[i]);
+            }
+            try(InputStream in = reader.getWorkbookData()){
+                date1904 = isDate1904(in);
+            }
+        }
+
+        synchronized SharedStrings strings() throws IOException{
+            if(strings == null){
+                try{
+                    strings = new ReadOnlySharedStringsTable(pkg);
+                }catch(SAXException ex){
+                    throw new IOException("Reading the shared strings failed", ex);
+                }
+            }
+            return strings;
+        }
+
+        /**
+         * @return true when workbook.xml says dates count from 1904.
+         */
+        private static boolean isDate1904(InputStream in) throws IOException{
+            try{
+                XMLStreamReader xml = XML_INPUT.createXMLStreamReader(in);
+                try{
+                    while(xml.hasNext()){
+                        if(xml.next() == XMLStreamConstants.START_ELEMENT){
+                            String name = xml.getLocalName();
+                            if("workbookPr".equals(name)){
+                                String value = xml.getAttributeValue(null, "date1904");
+                                return "1".equals(value) || "true".equals(value);
+                            }
+                            if("sheets".equals(name)){
+                                return false;
+                            }
+                        }
+                    }
+                    return false;
+                }finally{
+                    xml.close();
+                }
+            }catch(XMLStreamException ex){
+                throw new IOException("Reading the workbook failed", ex);
+            }
+        }
+    }
+
+    private final String sheetName;
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final Shared shared;
+    private final DataFormatter formatter = new DataFormatter();
+    private PoiExportPlan.ColumnType[] types = new PoiExportPlan.ColumnType[16];
+    private String[] values = new String[16];
+    private int[] styles = new int[16];
+    private int columns;
+    private int rowNumber;
+
+    /**
+     * @param sheetName - name of the sheet, for error messages.
+     * @param in - the sheet XML, closed with the reader.
+     * @param shared - shared by all sheets of the import.
+     */
+    PoiSheetReader(String sheetName, InputStream in, Shared shared) throws IOException{
+        this.sheetName = sheetName;
+        this.in = in;
+        this.shared = shared;
+        try{
+            this.xml = XML_INPUT.createXMLStreamReader(in);
+        }catch(XMLStreamException ex){
+            in.close();
+            throw new IOException("Reading sheet " + sheetName + " failed", ex);
+        }
+    }
+
+    String getSheetName(){
+        return sheetName;
+    }
+
+    /**
+     * Moves to the next row in the file. Rows without cells are left out of
+     * the file, so row numbers can skip.
+     * @return false after the last row.
+     */
+    boolean next() throws IOException{
+        Arrays.fill(values, 0, columns, null);
+        columns = 0;
+        try{
+            while(xml.hasNext()){
+                int event = xml.next();
+                if(event == XMLStreamConstants.START_ELEMENT){
+                    String name = xml.getLocalName();
+                    if("c".equals(name)){
+                        readCell();
+                    }else if("row".equals(name)){
+                        String r = xml.getAttributeValue(null, "r");
+                        rowNumber = r == null ? rowNumber + 1 : Integer.parseInt(r);
+                    }
+                }else if(event == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName())){
+                    return true;
+                }
+            }
+            return false;
+        }catch(XMLStreamException ex){
+            throw new IOException("Reading sheet " + sheetName + " failed at row " + rowNumber, ex);
+        }
+    }
+
+    /**
+     * @return 1 past the last column of the row with a cell.
+     */
+    int columns(){
+        return columns;
+    }
+
+    /**
+     * @return true when the cell is missing or holds empty text.
+     */
+    boolean isBlank(int column){
+        return column >= columns || values[column] == null || values[column].isEmpty();
+    }
+
+    /**
+     * @return true when every cell of the row is blank.
+     */
+    boolean isBlankRow(){
+        for(int i = 0; i < columns; i++){
+            if(!isBlank(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the cell as Excel shows it, numbers and dates in their format.
+     */
+    String text(int column){
+        String value = values[column];
+        switch(types[column]){
+            case NUMBER:
+            case DATE:
+                int style = styles[column];
+                if(style < shared.formatIndexes.length){
+                    return formatter.formatRawCellContents(Double.parseDouble(value), shared.formatIndexes[style], shared.formatStrings[style], shared.date1904);
+                }
+                return formatter.formatRawCellContents(Double.parseDouble(value), 0, "General");
+            case BOOLEAN:
+                return "1".equals(value) ? "TRUE" : "FALSE";
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @return the cell as a number, text is parsed.
+     * @throws NumberFormatException when the text is not a number.
+     */
+    double number(int column){
+        if(types[column] == PoiExportPlan.ColumnType.BOOLEAN){
+            return "1".equals(values[column]) ? 1 : 0;
+        }
+        return Double.parseDouble(values[column].trim());
+    }
+
+    /**
+     * @return the cell as a whole number, exact past the 15 digits of a double
+     * when the text is whole.
+     * @throws NumberFormatException when the text is not a number.
+     * @throws IllegalArgumentException when the number has a fraction or does
+     * not fit a long.
+     */
+    long wholeNumber(int column){
+        String value = values[column].trim();
+        try{
+            return Long.parseLong(value);
+        }catch(NumberFormatException ex){
+            double number = number(column);
+            // 2^63 is the first double past Long.MAX_VALUE, a cast would clamp it
+            if(number != Math.rint(number) || number < -0x1p63 || number >= 0x1p63){
+                throw new IllegalArgumentException("Not a whole number: " + value);
+            }
+            return (long) number;
+        }
+    }
+
+    /**
+     * @return the cell as a BigDecimal with the digits as stored.
+     * @throws NumberFormatException when the text is not a number.
+     */
+    BigDecimal decimal(int column){
+        if(types[column] == PoiExportPlan.ColumnType.BOOLEAN){
+            return "1".equals(values[column]) ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+        return new BigDecimal(values[column].trim());
+    }
+
+    /**
+     * @return the date of a date or number cell, in the default time zone.
+     * @throws IllegalArgumentException when the cell is text or a boolean.
+     */
+    Date date(int column){
+        PoiExportPlan.ColumnType type = types[column];
+        if(type != PoiExportPlan.ColumnType.DATE && type != PoiExportPlan.ColumnType.NUMBER){
+            throw new IllegalArgumentException("Not a date: " + values[column]);
+        }
+        return DateUtil.getJavaDate(Double.parseDouble(values[column]), shared.date1904);
+    }
+
+    /**
+     * @return the cell as a boolean, text true, yes and 1 and numbers other
+     * than 0 are true.
+     */
+    boolean bool(int column){
+        String value = values[column];
+        switch(types[column]){
+            case BOOLEAN:
+                return "1".equals(value);
+            case NUMBER:
+            case DATE:
+                return Double.parseDouble(value) != 0;
+            default:
+                value = value.trim();
+                return "true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value) || "1".equals(value);
+        }
+    }
+
+    /**
+     * @return reference of a cell of the row, e.g. Export!C12, for error messages.
+     */
+    String cellName(int column){
+        return sheetName + "!" + CellReference.convertNumToColString(column) + rowNumber;
+    }
+
+    @Override
+    public void close() throws IOException{
+        try{
+            xml.close();
+        }catch(XMLStreamException ex){
+            // the stream is closed below either way
+        }finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the c element the parser is on.
+     */
+    private void readCell() throws XMLStreamException, IOException{
+        String ref = xml.getAttributeValue(null, "r");
+        String t = xml.getAttributeValue(null, "t");
+        String s = xml.getAttributeValue(null, "s");
+        int column = ref == null ? columns : columnIndex(ref);
+        String value = null;
+        while(xml.hasNext()){
+            int event = xml.next();
+            if(event == XMLStreamConstants.START_ELEMENT){
+                String name = xml.getLocalName();
+                if("v".equals(name)){
+                    value = xml.getElementText();
+                }else if("is".equals(name)){
+                    value = inlineString();
+                }else{
+                    // formula, the value is what counts
+                    skipElement();
+                }
+            }else if(event == XMLStreamConstants.END_ELEMENT){
+                break;
+            }
+        }
+        if(value == null){
+            // styled but empty
+            return;
+        }
+        PoiExportPlan.ColumnType type;
+        int style = s == null ? 0 : Integer.parseInt(s);
+        if(t == null || "n".equals(t)){
+            if(value.isEmpty()){
+                return;
+            }
+            boolean date = style < shared.dateFormats.length && shared.dateFormats[style];
+            type = date ? PoiExportPlan.ColumnType.DATE : PoiExportPlan.ColumnType.NUMBER;
+        }else if("s".equals(t)){
+            value = shared.strings().getItemAt(Integer.parseInt(value.trim())).getString();
+            type = PoiExportPlan.ColumnType.TEXT;
+        }else if("b".equals(t)){
+            type = PoiExportPlan.ColumnType.BOOLEAN;
+        }else{
+            // inlineStr, str from a formula, e an error, d an ISO date
+            type = PoiExportPlan.ColumnType.TEXT;
+        }
+        if(column >= values.length){
+            int size = Math.max(column + 1, values.length * 2);
+            values = Arrays.copyOf(values, size);
+            types = Arrays.copyOf(types, size);
+            styles = Arrays.copyOf(styles, size);
+        }
+        values[column] = value;
+        types[column] = type;
+        styles[column] = style;
+        columns = Math.max(columns, column + 1);
+    }
+
+    /**
+     * Text of the is element the parser is on, the runs put together and the
+     * phonetic runs left out.
+     */
+    private String inlineString() throws XMLStreamException{
+        StringBuilder text = new StringBuilder();
+        while(xml.hasNext()){
+            int event = xml.next();
+            if(event == XMLStreamConstants.START_ELEMENT){
+                String name = xml.getLocalName();
+                if("t".equals(name)){
+                    text.append(xml.getElementText());
+                }else if("rPh".equals(name)){
+                    skipElement();
+                }
+            }else if(event == XMLStreamConstants.END_ELEMENT && "is".equals(xml.getLocalName())){
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Skips past the end of the element the parser is on.
+     */
+    private void skipElement() throws XMLStreamException{
+        int depth = 1;
+        while(depth > 0 && xml.hasNext()){
+            int event = xml.next();
+            if(event == XMLStreamConstants.START_ELEMENT){
+                depth++;
+            }else if(event == XMLStreamConstants.END_ELEMENT){
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Column index of a cell reference like AB12.
+     */
+    private static int columnIndex(String ref){
+        int column = 0;
+        for(int i = 0; i < ref.length(); i++){
+            char c = ref.charAt(i);
+            if(c < 'A' || c > 'Z'){
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+}
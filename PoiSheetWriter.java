@@ -0,0 +1,173 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Writes the rows of one export sheet: header row, cells by the plan, column
+ * widths at the end. An export larger than rowsPerSheet gets one writer per
+ * sheet, each with the same header row.
+ *
+ * Writers of different sheets of a streaming workbook can run on different
+ * threads, everything they share is in the Layout which is only read after
+ * it is made.
+ * @author DCConway
+ */
+final class PoiSheetWriter {
+
+    /** Width of a column holding long text, which is wrapped. */
+    private static final int WRAPPED_WIDTH = 18000;
+
+    /**
+     * What every sheet of an export shares: headers, plan and the cell
+     * styles, created once per workbook.
+     */
+    static final class Layout {
+
+        private final List<String> headers;
+        private final PoiExportPlan plan;
+        private final int largeText;
+        private final PoiExportOptions options;
+        private final CellStyle rowStyle;
+        private final CellStyle headerStyle;
+        private final CellStyle[] columnStyles;
+        private final CellStyle[] wrapStyles;
+        private final int[] minimumWidths;
+
+        /**
+         * @param largeText - text longer than this gets the column wrapped at a
+         * fixed width instead of sized to fit.
+         */
+        Layout(Workbook wb, List<String> headers, PoiExportPlan plan, int largeText, PoiExportOptions options){
+            this.headers = headers;
+            this.plan = plan;
+            this.largeText = largeText;
+            this.options = options;
+            // styles are shared, one per combination of format and wrap
+            PoiStyleRegistry styles = new PoiStyleRegistry(wb);
+            rowStyle = styles.style(null, true);
+            headerStyle = options.isHeaderBold() ? styles.style(null, false, true, HorizontalAlignment.GENERAL) : null;
+            // column styles and least widths, resolved once
+            columnStyles = new CellStyle[plan.size()];
+            wrapStyles = new CellStyle[plan.size()];
+            minimumWidths = new int[plan.size()];
+            for(int j = 0; j < plan.size(); j++){
+                PoiExportPlan.Column column = plan.column(j);
+                String format = columnFormat(column, options);
+                columnStyles[j] = format == null ? null : styles.style(format, false);
+                wrapStyles[j] = styles.style(format, true);
+                if(j < headers.size()){
+                    minimumWidths[j] = headers.get(j).length();
+                }
+                if(format != null && column.getType() == PoiExportPlan.ColumnType.DATE){
+                    minimumWidths[j] = Math.max(minimumWidths[j], format.length());
+                }
+            }
+        }
+    }
+
+    private final Sheet sheet;
+    private final Layout layout;
+    private final PoiColumnWidths widths;
+    private final boolean[] wrapped;
+    private int rowIndex = 1;
+
+    /**
+     * Creates the sheet and its header row.
+     * @param wb - the export workbook.
+     * @param index - 0 for the first sheet.
+     * @param layout - shared by all sheets of the export.
+     */
+    PoiSheetWriter(Workbook wb, int index, Layout layout){
+        this.sheet = wb.createSheet(index == 0 ? "Export" : "Export " + (index + 1));
+        this.layout = layout;
+        PoiExportPlan plan = layout.plan;
+        this.widths = new PoiColumnWidths(plan.size(), layout.options.getWidthPercentile(), layout.options.getMaxColumnWidth());
+        this.wrapped = new boolean[plan.size()];
+        for(int j = 0; j < plan.size(); j++){
+            widths.minimum(j, layout.minimumWidths[j]);
+        }
+        Row headerRow = sheet.createRow(0);
+        for(int i = 0; i < layout.headers.size(); i++){
+            Cell cell = headerRow.createCell(i);
+            cell.setCellValue(layout.headers.get(i));
+            if(layout.headerStyle != null){
+                cell.setCellStyle(layout.headerStyle);
+            }
+        }
+    }
+
+    /**
+     * @return true when the sheet has rowsPerSheet rows.
+     */
+    boolean isFull(){
+        return rowIndex > layout.options.getRowsPerSheet();
+    }
+
+    /**
+     * Writes item as the next row.
+     * @throws InvocationTargetException when a getter throws a checked exception.
+     */
+    void write(Object item) throws InvocationTargetException{
+        PoiExportPlan plan = layout.plan;
+        Row row = sheet.createRow(rowIndex++);
+        row.setRowStyle(layout.rowStyle);
+        for(int j = 0; j < plan.size(); j++){
+            PoiExportPlan.Column column = plan.column(j);
+            if(column == null){
+                // no field or column by that name, the column stays empty
+                continue;
+            }
+            Cell cell = row.createCell(j);
+            int length = column.write(cell, item);
+            widths.record(j, length);
+            if(length > layout.largeText){
+                wrapped[j] = true;
+                cell.setCellStyle(layout.wrapStyles[j]);
+            }else if(layout.columnStyles[j] != null){
+                cell.setCellStyle(layout.columnStyles[j]);
+            }
+        }
+        AtomicLong rowCounter = layout.options.getRowCounter();
+        if(rowCounter != null){
+            rowCounter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sets the column widths, call after the last row.
+     */
+    void finish(){
+        for(int j = 0; j < layout.plan.size(); j++){
+            sheet.setColumnWidth(j, wrapped[j] ? WRAPPED_WIDTH : widths.width(j));
+        }
+    }
+
+    /**
+     * The format of a column, the one set for it in options or else the
+     * default for its type.
+     * @return format, null for General.
+     */
+    static String columnFormat(PoiExportPlan.Column column, PoiExportOptions options){
+        if(column == null){
+            return null;
+        }
+        String format = options.getColumnFormat(column.getName());
+        if(format != null){
+            return format;
+        }
+        switch(column.getType()){
+            case DATE:
+                return options.getDateFormat();
+            case NUMBER:
+                return options.getNumberFormat();
+            default:
+                return null;
+        }
+    }
+}
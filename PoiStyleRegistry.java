@@ -0,0 +1,78 @@
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * The cell styles of one export workbook. A style is created the first time a
+ * combination of format, wrap, font and alignment is asked for and handed out
+ * again after that, so a workbook ends up with a handful of styles however
+ * many cells use them. Excel allows 64000 styles per workbook.
+ *
+ * Not thread safe, one registry per workbook.
+ * @author DCConway
+ */
+final class PoiStyleRegistry {
+
+    private final Workbook wb;
+    private final DataFormat dataFormat;
+    private final Map<String,CellStyle> styles = new HashMap<>();
+    private Font boldFont;
+
+    PoiStyleRegistry(Workbook wb){
+        this.wb = wb;
+        this.dataFormat = wb.createDataFormat();
+    }
+
+    /**
+     * @param format - Excel number format, e.g. m/dd/yyyy, null for General.
+     * @param wrap - wrap text.
+     * @param bold - bold font.
+     * @param alignment - horizontal alignment.
+     * @return the shared style.
+     */
+    CellStyle style(String format, boolean wrap, boolean bold, HorizontalAlignment alignment){
+        String key = format + '\u0000' + wrap + '\u0000' + bold + '\u0000' + alignment;
+        CellStyle style = styles.get(key);
+        if(style == null){
+            style = wb.createCellStyle();
+            if(format != null){
+                style.setDataFormat(dataFormat.getFormat(format));
+            }
+            style.setWrapText(wrap);
+            if(bold){
+                style.setFont(boldFont());
+            }
+            style.setAlignment(alignment);
+            styles.put(key, style);
+        }
+        return style;
+    }
+
+    /**
+     * @param format - Excel number format, null for General.
+     * @param wrap - wrap text.
+     * @return the shared style with the default font and alignment.
+     */
+    CellStyle style(String format, boolean wrap){
+        return style(format, wrap, false, HorizontalAlignment.GENERAL);
+    }
+
+    /**
+     * @return number of styles created.
+     */
+    int size(){
+        return styles.size();
+    }
+
+    private Font boldFont(){
+        if(boldFont == null){
+            boldFont = wb.createFont();
+            boldFont.setBold(true);
+        }
+        return boldFont;
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups against an in-memory directory of 100k users over a real LDAP
+ * connection on localhost, so the numbers cover filter building, the pool,
+ * JNDI, the wire protocol and attribute mapping, but not the network.
+ *
+ * Throughput and sampled latency (percentiles) are reported, run with the
+ * GC profiler for the allocation rate, see BenchmarkRunner.
+ * @author DCConway
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ADUserLookupBenchmark {
+
+    private static final int BATCH_SIZE = 200;
+    private static final int PAGE_SIZE = 500;
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"16"})
+    public int poolSize;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private DirectoryFixture directory;
+    private Object lookup;
+
+    @Setup(Level.Trial)
+    public void startDirectory() throws Exception {
+        directory = DirectoryFixture.start(users, poolSize, cached);
+        lookup = directory.getLookup();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDirectory() throws Exception {
+        directory.close();
+    }
+
+    /**
+     * Per thread random source so threads do not contend on it.
+     */
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private final SplittableRandom random = new SplittableRandom(42);
+
+        String userName(int users){
+            return DirectoryFixture.userName(random.nextInt(users));
+        }
+
+        List<String> userNames(int users, int count){
+            List<String> names = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                names.add(userName(users));
+            }
+            return names;
+        }
+
+        String department(){
+            return DirectoryFixture.department(random.nextInt(DirectoryFixture.DEPARTMENTS));
+        }
+    }
+
+    @Benchmark
+    public HashMap<String,String> getUserAttributesMap(Picker picker) throws Throwable {
+        return DirectoryFixture.getUserAttributesMap(lookup, picker.userName(users));
+    }
+
+    @Benchmark
+    public Object getUserAttributesBatch(Picker picker) throws Throwable {
+        return DirectoryFixture.getUserAttributesBatch(lookup, picker.userNames(users, BATCH_SIZE));
+    }
+
+    /**
+     * Streams one department, 2% of the users, in pages.
+     */
+    @Benchmark
+    public long streamUserRecords(Picker picker) throws Throwable {
+        try (Stream<Object> records = DirectoryFixture.streamUserRecords(lookup, "(department=" + picker.department() + ")", PAGE_SIZE)) {
+            return records.count();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count with the GC profiler, which adds
+ * the allocation rate (gc.alloc.rate.norm is bytes per operation). Results
+ * are written to jmh-&lt;threads&gt;t.json next to the console output.
+ *
+ * Usage:
+ * <pre>
+ * java -jar target/benchmarks.jar [benchmark regex] [thread counts]
+ * java -jar target/benchmarks.jar ADUserLookupBenchmark 1,8,64
+ * </pre>
+ * Defaults to the LDAP benchmarks at 1, 4, 16 and 64 threads, then
+ * PoiExporterBenchmark on one thread only, written to jmh-export.json. Each
+ * of its operations is a whole export of up to 1M rows, so many threads
+ * would only measure the heap running out. For everything else JMH's own
+ * command line is available with
+ * java -cp target/benchmarks.jar org.openjdk.jmh.Main -h
+ * @author DCConway
+ */
+public final class BenchmarkRunner {
+
+    private static final String LDAP_BENCHMARKS = "benchmarks\\.(ADUserLookupBenchmark|QueryFilterBenchmark)\\..*";
+    private static final String EXPORT_BENCHMARKS = "benchmarks\\.PoiExporterBenchmark\\..*";
+
+    private BenchmarkRunner(){
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : LDAP_BENCHMARKS;
+        List<Integer> threadCounts = new ArrayList<>();
+        for(String count : (args.length > 1 ? args[1] : "1,4,16,64").split(",")){
+            threadCounts.add(Integer.valueOf(count.trim()));
+        }
+        for(int threads : threadCounts){
+            run(include, threads, "jmh-" + threads + "t.json");
+        }
+        if(args.length == 0){
+            run(EXPORT_BENCHMARKS, 1, "jmh-export.json");
+        }
+    }
+
+    private static void run(String include, int threads, String result) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,209 @@
+package benchmarks;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldif.LDIFException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.naming.Context;
+
+/**
+ * In-memory LDAP directory with AD-like users for the benchmarks.
+ *
+ * The lookup classes live in the default package, which can not be imported
+ * from a named package (and JMH does not accept benchmarks in the default
+ * package), so they are reached through the method handles below. A
+ * constant MethodHandle is inlined by the JIT like a direct call.
+ * @author DCConway
+ */
+public final class DirectoryFixture implements AutoCloseable {
+
+    static final String BASE = "dc=example,dc=com";
+    static final int DEPARTMENTS = 50;
+
+    static final MethodHandle GET_USER_ATTRIBUTES_MAP;
+    static final MethodHandle GET_USER_ATTRIBUTES_BATCH;
+    static final MethodHandle STREAM_USER_RECORDS;
+    static final MethodHandle CREATE_QUERY_FILTER;
+    static final MethodHandle CREATE_BATCH_FILTER;
+    private static final Class<?> LOOKUP_CLASS;
+
+    static {
+        try {
+            LOOKUP_CLASS = Class.forName("ADUserLookup");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_USER_ATTRIBUTES_MAP = handle(lookup, LOOKUP_CLASS.getMethod("getUserAttributesMap", String.class));
+            GET_USER_ATTRIBUTES_BATCH = handle(lookup, LOOKUP_CLASS.getMethod("getUserAttributesBatch", Collection.class, String.class));
+            STREAM_USER_RECORDS = handle(lookup, LOOKUP_CLASS.getMethod("streamUserRecords", String.class, int.class));
+            CREATE_QUERY_FILTER = handle(lookup, LOOKUP_CLASS.getDeclaredMethod("createQueryFilter", String.class, String.class));
+            CREATE_BATCH_FILTER = handle(lookup, LOOKUP_CLASS.getDeclaredMethod("createQueryFilter", Collection.class, String.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Handle with every default package type replaced by Object so the
+     * benchmarks can call it with invokeExact.
+     */
+    private static MethodHandle handle(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+        method.setAccessible(true);
+        MethodHandle handle = lookup.unreflect(method);
+        MethodType type = handle.type().changeParameterType(0, Object.class);
+        if(!type.returnType().isPrimitive() && type.returnType().getName().indexOf('.') < 0){
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private final InMemoryDirectoryServer server;
+    private final Object lookup;
+    private final int userCount;
+
+    private DirectoryFixture(InMemoryDirectoryServer server, Object lookup, int userCount){
+        this.server = server;
+        this.lookup = lookup;
+        this.userCount = userCount;
+    }
+
+    /**
+     * Starts a directory with the users user0 to user(n-1) spread over 50
+     * departments and connects an ADUserLookup to it.
+     *
+     * @param users - number of users to create.
+     * @param poolSize - LDAP connections of the lookup.
+     * @param cached - put an ADAttributeCache large enough for all users in front of the lookup.
+     * @return
+     * @throws Exception
+     */
+    public static DirectoryFixture start(int users, int poolSize, boolean cached) throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE);
+        config.setSchema(Schema.mergeSchemas(Schema.getDefaultStandardSchema(), loadSchema()));
+        config.addAdditionalBindCredentials("cn=admin", "password");
+        config.setEqualityIndexAttributes("sAMAccountName", "mail", "department");
+        config.setAccessLogHandler(null);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE, "objectClass: top", "objectClass: domain", "dc: example");
+        server.addEntries(users(users));
+        server.startListening();
+
+        Hashtable<String,String> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.PROVIDER_URL, "ldap://localhost:" + server.getListenPort());
+        env.put(Context.SECURITY_PRINCIPAL, "cn=admin");
+        env.put(Context.SECURITY_CREDENTIALS, "password");
+        Class<?> poolClass = Class.forName("ADConnectionPool");
+        Class<?> sourceClass = Class.forName("ADConnectionSource");
+        Object pool = poolClass.getConstructor(Hashtable.class, int.class).newInstance(env, poolSize);
+        Constructor<?> constructor = LOOKUP_CLASS.getConstructor(String.class, String[].class, sourceClass);
+        Object lookup = constructor.newInstance(BASE, null, pool);
+        if(cached){
+            Class<?> cacheClass = Class.forName("ADAttributeCache");
+            Object cache = cacheClass.getConstructor(int.class, long.class, long.class)
+                    .newInstance(users * 2, 3600000L, 3600000L);
+            LOOKUP_CLASS.getMethod("setAttributeCache", cacheClass).invoke(lookup, cache);
+        }
+        return new DirectoryFixture(server, lookup, users);
+    }
+
+    private static Schema loadSchema() throws Exception {
+        try (InputStream in = DirectoryFixture.class.getResourceAsStream("/ad-schema.ldif")) {
+            return Schema.getSchema(in);
+        }
+    }
+
+    private static List<Entry> users(int count) throws LDIFException {
+        List<Entry> entries = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            String name = userName(i);
+            entries.add(new Entry(
+                    "dn: cn=User " + i + ",dc=example,dc=com",
+                    "objectClass: top",
+                    "objectClass: person",
+                    "objectClass: organizationalPerson",
+                    "objectClass: user",
+                    "objectCategory: Person",
+                    "cn: User " + i,
+                    "sAMAccountName: " + name,
+                    "givenName: First" + i,
+                    "sn: Last" + i,
+                    "initials: " + (char)('A' + i % 26),
+                    "displayName: Last" + i + ", First" + i,
+                    "mail: " + name + "@example.com",
+                    "telephoneNumber: +1 555 " + (1000000 + i),
+                    "title: " + (i % 7 == 0 ? "CTR" : "EMP"),
+                    "department: " + department(i),
+                    "company: Example Corp",
+                    "streetAddress: " + (i % 900 + 100) + " Main Street",
+                    "l: Springfield",
+                    "st: IL",
+                    "postalCode: " + (62700 + i % 100),
+                    "c: US",
+                    "co: United States",
+                    "uSNChanged: " + (10000 + i)));
+        }
+        return entries;
+    }
+
+    static String userName(int i){
+        return "user" + i;
+    }
+
+    static String department(int i){
+        return "Dept" + (i % DEPARTMENTS);
+    }
+
+    public Object getLookup() {
+        return lookup;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            LOOKUP_CLASS.getMethod("closeLdapConnection").invoke(lookup);
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * @return typed call for the benchmarks, the handle returns the map itself.
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<String,String> getUserAttributesMap(Object lookup, String userName) throws Throwable {
+        return (HashMap<String,String>)GET_USER_ATTRIBUTES_MAP.invokeExact(lookup, userName);
+    }
+
+    static Object getUserAttributesBatch(Object lookup, Collection<String> names) throws Throwable {
+        return (Object)GET_USER_ATTRIBUTES_BATCH.invokeExact(lookup, names, "username");
+    }
+
+    @SuppressWarnings("unchecked")
+    static Stream<Object> streamUserRecords(Object lookup, String filter, int pageSize) throws Throwable {
+        return (Stream<Object>)STREAM_USER_RECORDS.invokeExact(lookup, filter, pageSize);
+    }
+
+    static String createQueryFilter(Object lookup, String value, String searchBy) throws Throwable {
+        return (String)CREATE_QUERY_FILTER.invokeExact(lookup, value, searchBy);
+    }
+
+    static String createQueryFilter(Object lookup, Collection<String> values, String searchBy) throws Throwable {
+        return (String)CREATE_BATCH_FILTER.invokeExact(lookup, values, searchBy);
+    }
+}
@@ -0,0 +1,235 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic rows for the PoiExporter benchmarks, as beans and as HashMaps,
+ * with a Date, String, BigDecimal and a notes column where every tenth row
+ * has long text.
+ *
+ * PoiExporter lives in the default package, so like DirectoryFixture this
+ * reaches it through method handles with the default package types
+ * (PoiExportSink, PoiExportOptions) replaced by Object.
+ * @author DCConway
+ */
+public final class ExportFixture {
+
+    static final List<String> HEADERS = Collections.unmodifiableList(Arrays.asList("Id", "Name", "Created", "Amount", "Notes"));
+    static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList("id", "name", "created", "amount", "notes"));
+
+    static final MethodHandle EXPORT_SPECIFIC_DATA;
+    static final MethodHandle EXPORT_USING_LIST;
+    static final MethodHandle EXPORT_TO_EXCEL;
+    static final MethodHandle STREAM_SINK;
+    private static final Class<?> OPTIONS_CLASS;
+    private static final Class<?> FORMAT_CLASS;
+
+    private static final long START = 1500000000000L;
+    private static final long FIVE_YEARS = 5L * 365 * 24 * 60 * 60 * 1000;
+    /** Distinct notes texts, shared between rows to keep the data set small. */
+    private static final int NOTES = 64;
+
+    static {
+        try {
+            Class<?> exporter = Class.forName("PoiExporter");
+            Class<?> sink = Class.forName("PoiExportSink");
+            OPTIONS_CLASS = Class.forName("PoiExportOptions");
+            FORMAT_CLASS = Class.forName("PoiExportOptions$Format");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            EXPORT_SPECIFIC_DATA = handle(lookup, exporter.getMethod("exportSpecificDataToExcel",
+                    String.class, List.class, List.class, Class.class, List.class, sink, OPTIONS_CLASS));
+            EXPORT_USING_LIST = handle(lookup, exporter.getMethod("exportUsingList",
+                    String.class, List.class, List.class, sink, OPTIONS_CLASS));
+            EXPORT_TO_EXCEL = handle(lookup, exporter.getMethod("exportToExcel",
+                    String.class, List.class, List.class, Class.class, sink, OPTIONS_CLASS));
+            STREAM_SINK = handle(lookup, Class.forName("PoiExportSinks").getMethod("stream", OutputStream.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Static method handle with every default package type replaced by
+     * Object so the benchmarks can call it with invokeExact.
+     */
+    private static MethodHandle handle(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+        MethodHandle handle = lookup.unreflect(method);
+        MethodType type = handle.type();
+        for(int i = 0; i < type.parameterCount(); i++){
+            if(isDefaultPackage(type.parameterType(i))){
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if(isDefaultPackage(type.returnType())){
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isDefaultPackage(Class<?> type){
+        return !type.isPrimitive() && type.getName().indexOf('.') < 0;
+    }
+
+    private ExportFixture(){
+    }
+
+    /**
+     * One exported row, the fields in column order for exportToExcel.
+     */
+    public static final class Row {
+        private final long id;
+        private final String name;
+        private final Date created;
+        private final BigDecimal amount;
+        private final String notes;
+
+        Row(long id, String name, Date created, BigDecimal amount, String notes){
+            this.id = id;
+            this.name = name;
+            this.created = created;
+            this.amount = amount;
+            this.notes = notes;
+        }
+    }
+
+    /**
+     * @param count - number of rows.
+     * @return beans with the same values for the same count.
+     */
+    static List<Row> beans(int count){
+        String[] notes = notes();
+        SplittableRandom random = new SplittableRandom(42);
+        List<Row> rows = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            rows.add(new Row(i, "Last" + i + ", First" + i,
+                    new Date(START + random.nextLong(FIVE_YEARS)),
+                    BigDecimal.valueOf(random.nextLong(100000000L), 2),
+                    notes[i % NOTES]));
+        }
+        return rows;
+    }
+
+    /**
+     * @param count - number of rows.
+     * @return the rows of beans(count) as text keyed by header.
+     */
+    static List<HashMap<String,String>> maps(int count){
+        SimpleDateFormat format = new SimpleDateFormat("M/dd/yyyy");
+        List<HashMap<String,String>> rows = new ArrayList<>(count);
+        for(Row bean : beans(count)){
+            HashMap<String,String> row = new HashMap<>();
+            row.put("Id", Long.toString(bean.id));
+            row.put("Name", bean.name);
+            row.put("Created", format.format(bean.created));
+            row.put("Amount", bean.amount.toPlainString());
+            row.put("Notes", bean.notes);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Short notes, and on every tenth row long enough to be wrapped.
+     */
+    private static String[] notes(){
+        String[] notes = new String[NOTES];
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < NOTES; i++){
+            text.setLength(0);
+            int words = i % 10 == 0 ? 60 : 3;
+            for(int w = 0; w < words; w++){
+                text.append(w == 0 ? "Note" : " word").append(i + w);
+            }
+            notes[i] = text.toString();
+        }
+        return notes;
+    }
+
+    /**
+     * @param streaming - SXSSF instead of XSSF.
+     * @param format - XLSX, CSV or TSV.
+     * @return a PoiExportOptions.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object options(boolean streaming, String format) throws ReflectiveOperationException {
+        Object options = OPTIONS_CLASS.getConstructor().newInstance();
+        OPTIONS_CLASS.getMethod("setStreaming", boolean.class).invoke(options, streaming);
+        OPTIONS_CLASS.getMethod("setFormat", FORMAT_CLASS).invoke(options, Enum.valueOf((Class<? extends Enum>) FORMAT_CLASS, format));
+        return options;
+    }
+
+    static Object sink(OutputStream out) throws Throwable {
+        return (Object)STREAM_SINK.invokeExact(out);
+    }
+
+    static void exportSpecificDataToExcel(List<?> rows, Object sink, Object options) throws Throwable {
+        EXPORT_SPECIFIC_DATA.invokeExact("export.xlsx", HEADERS, rows, (Class<?>) Row.class, FIELDS, sink, options);
+    }
+
+    static void exportUsingList(List<?> rows, Object sink, Object options) throws Throwable {
+        EXPORT_USING_LIST.invokeExact("export.xlsx", HEADERS, rows, sink, options);
+    }
+
+    static void exportToExcel(List<?> rows, Object sink, Object options) throws Throwable {
+        EXPORT_TO_EXCEL.invokeExact("export.xlsx", HEADERS, rows, (Class<?>) Row.class, sink, options);
+    }
+
+    /**
+     * Clears the peak heap usage, see peakHeap.
+     */
+    static void resetPeakHeap(){
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return sum of the peak usage of the heap pools since resetPeakHeap, in
+     * bytes. The pools peak at different times so this is an upper bound.
+     */
+    static long peakHeap(){
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * The in-memory sink, counts the bytes of the export and drops them.
+     */
+    static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
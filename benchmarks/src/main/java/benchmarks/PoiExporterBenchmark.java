@@ -0,0 +1,139 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The three PoiExporter entry points writing to an in-memory sink, no
+ * servlet container or JSF needed. One operation is one whole export, the
+ * rows and bytes counters give rows/s and bytes/s, bytes per row and the
+ * peak heap are printed after each iteration. BenchmarkRunner runs it with
+ * the GC profiler for the allocation rate, on one thread since every export
+ * is already a large batch. On its own:
+ * <pre>
+ * java -jar target/benchmarks.jar PoiExporterBenchmark 1
+ * </pre>
+ * A plain XSSF workbook of 1M rows does not fit the heap below, compare
+ * it on the smaller sizes with -p streaming=false. -p format=CSV runs the
+ * same exports as CSV.
+ * @author DCConway
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PoiExporterBenchmark {
+
+    @Param({"true"})
+    public boolean streaming;
+
+    @Param({"XLSX"})
+    public String format;
+
+    private Object options;
+
+    @Setup(Level.Trial)
+    public void createOptions() throws ReflectiveOperationException {
+        options = ExportFixture.options(streaming, format);
+    }
+
+    /**
+     * Bean rows, only made for the benchmarks that use them.
+     */
+    @State(Scope.Benchmark)
+    public static class BeanRows {
+
+        @Param({"10000", "100000", "1000000"})
+        public int rows;
+
+        List<ExportFixture.Row> data;
+
+        @Setup(Level.Trial)
+        public void create(){
+            data = ExportFixture.beans(rows);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MapRows {
+
+        @Param({"10000", "100000", "1000000"})
+        public int rows;
+
+        List<HashMap<String,String>> data;
+
+        @Setup(Level.Trial)
+        public void create(){
+            data = ExportFixture.maps(rows);
+        }
+    }
+
+    /**
+     * Rows and bytes exported, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long rows;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear(){
+            rows = 0;
+            bytes = 0;
+            ExportFixture.resetPeakHeap();
+        }
+
+        @TearDown(Level.Iteration)
+        public void print(){
+            if(rows > 0){
+                System.out.printf("%n%.1f bytes/row, peak heap %d MB%n",
+                        (double) bytes / rows, ExportFixture.peakHeap() >> 20);
+            }
+        }
+
+        void add(int exported, ExportFixture.CountingOutputStream out){
+            rows += exported;
+            bytes += out.count;
+        }
+    }
+
+    @Benchmark
+    public void exportSpecificDataToExcel(BeanRows rows, Counters counters) throws Throwable {
+        ExportFixture.CountingOutputStream out = new ExportFixture.CountingOutputStream();
+        ExportFixture.exportSpecificDataToExcel(rows.data, ExportFixture.sink(out), options);
+        counters.add(rows.data.size(), out);
+    }
+
+    @Benchmark
+    public void exportUsingList(MapRows rows, Counters counters) throws Throwable {
+        ExportFixture.CountingOutputStream out = new ExportFixture.CountingOutputStream();
+        ExportFixture.exportUsingList(rows.data, ExportFixture.sink(out), options);
+        counters.add(rows.data.size(), out);
+    }
+
+    @Benchmark
+    public void exportToExcel(BeanRows rows, Counters counters) throws Throwable {
+        ExportFixture.CountingOutputStream out = new ExportFixture.CountingOutputStream();
+        ExportFixture.exportToExcel(rows.data, ExportFixture.sink(out), options);
+        counters.add(rows.data.size(), out);
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filter building on its own, no directory needed. The batch filter escapes
+ * and joins 200 names like a getUserAttributesBatch chunk.
+ * @author DCConway
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryFilterBenchmark {
+
+    private Object lookup;
+    private String userName;
+    private List<String> userNames;
+
+    @Setup
+    public void setup() throws Exception {
+        lookup = Class.forName("ADUserLookup").getConstructor().newInstance();
+        userName = DirectoryFixture.userName(12345);
+        userNames = new ArrayList<>();
+        for(int i = 0; i < 200; i++){
+            userNames.add(DirectoryFixture.userName(i * 499));
+        }
+    }
+
+    @Benchmark
+    public String createQueryFilter() throws Throwable {
+        return DirectoryFixture.createQueryFilter(lookup, userName, "username");
+    }
+
+    @Benchmark
+    public String createBatchFilter() throws Throwable {
+        return DirectoryFixture.createQueryFilter(lookup, userNames, "username");
+    }
+}
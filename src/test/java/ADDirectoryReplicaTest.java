@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ADDirectoryReplica against FakeDirectory, which returns the users two per
+ * page and not in uSNChanged order.
+ * @author DCConway
+ */
+public class ADDirectoryReplicaTest {
+
+    private ADConnectionPool pool;
+    private ADDirectoryReplica replica;
+    private final List<ADUserRecord> changed = new ArrayList<>();
+
+    @Before
+    public void setUp() throws NamingException {
+        FakeDirectory.clear();
+        FakeDirectory.put("alice", "alice@example.com", 10);
+        FakeDirectory.put("bob", "bob@example.com", 20);
+        FakeDirectory.put("carol", "carol@example.com", 30);
+        Hashtable<String,Object> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, FakeDirectory.class.getName());
+        pool = new ADConnectionPool(env, 2);
+        replica = new ADDirectoryReplica(new ADUserLookup(FakeDirectory.BASE, null, pool), null);
+        replica.addListener(new ADDirectoryReplica.Listener() {
+            @Override
+            public void reloaded(ADDirectoryReplica replica) {
+            }
+
+            @Override
+            public void usersChanged(List<ADUserRecord> previous, List<ADUserRecord> current) {
+                changed.addAll(current);
+            }
+        });
+        replica.fullLoad();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void fullLoadKeepsTheHighestUsn() {
+        assertEquals(3, replica.size());
+        assertEquals(30, replica.getHighestUsn());
+        assertEquals("bob@example.com", replica.findByUserName("bob").get("mail"));
+    }
+
+    @Test
+    public void syncReadsChanges() throws NamingException {
+        FakeDirectory.put("bob", "robert@example.com", 40);
+        assertEquals(1, replica.sync());
+        assertEquals(40, replica.getHighestUsn());
+        assertEquals("robert@example.com", replica.findByUserName("bob").get("mail"));
+        assertEquals(1, changed.size());
+        assertEquals(0, replica.sync());
+    }
+
+    @Test
+    public void failedPageLeavesTheReplicaAsItWas() throws NamingException {
+        // the highest change is on the first page, the second page fails
+        FakeDirectory.put("bob", "robert@example.com", 50);
+        FakeDirectory.put("carol", "caroline@example.com", 40);
+        FakeDirectory.put("dave", "dave@example.com", 45);
+        FakeDirectory.failPage = 1;
+        try {
+            replica.sync();
+            fail("sync should fail with the page");
+        } catch (CommunicationException expected) {
+        }
+        assertEquals(30, replica.getHighestUsn());
+        assertEquals("bob@example.com", replica.findByUserName("bob").get("mail"));
+        assertEquals("carol@example.com", replica.findByUserName("carol").get("mail"));
+        assertNull(replica.findByUserName("dave"));
+        assertTrue(changed.isEmpty());
+
+        FakeDirectory.failPage = -1;
+        assertEquals(3, replica.sync());
+        assertEquals(50, replica.getHighestUsn());
+        assertEquals("robert@example.com", replica.findByUserName("bob").get("mail"));
+        assertEquals("caroline@example.com", replica.findByUserName("carol").get("mail"));
+        assertNotNull(replica.findByUserName("dave"));
+        assertEquals(3, changed.size());
+    }
+}
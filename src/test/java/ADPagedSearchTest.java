@@ -0,0 +1,94 @@
+import java.util.Hashtable;
+import java.util.List;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ADPagedSearch against FakeDirectory, five users over three pages.
+ * @author DCConway
+ */
+public class ADPagedSearchTest {
+
+    private ADConnectionPool pool;
+    private ADUserLookup lookup;
+
+    @Before
+    public void setUp() {
+        FakeDirectory.clear();
+        for(int i = 1; i <= 5; i++){
+            FakeDirectory.put("user" + i, "user" + i + "@example.com", i);
+        }
+        Hashtable<String,Object> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, FakeDirectory.class.getName());
+        pool = new ADConnectionPool(env, 1);
+        lookup = new ADUserLookup(FakeDirectory.BASE, null, pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void readsEveryPage() throws NamingException {
+        int count = 0;
+        try (ADPagedSearch search = lookup.searchUsersPaged("(samaccountname=*)", 500)) {
+            while(search.hasNext()){
+                search.next();
+                count++;
+            }
+            assertEquals(3, search.getPageCount());
+        }
+        assertEquals(5, count);
+        for(FakeDirectory.PageRequest request : FakeDirectory.requests()){
+            assertEquals(500, request.size);
+        }
+    }
+
+    @Test
+    public void closingEarlyAbandonsTheSearch() throws NamingException {
+        try (ADPagedSearch search = lookup.searchUsersPaged("(samaccountname=*)", 500)) {
+            assertTrue(search.hasNext());
+            search.next();
+        }
+        List<FakeDirectory.PageRequest> requests = FakeDirectory.requests();
+        assertEquals(2, requests.size());
+        FakeDirectory.PageRequest abandon = requests.get(1);
+        assertEquals(0, abandon.size);
+        assertEquals(1, abandon.page);
+        assertEquals(0, pool.getActiveCount());
+    }
+
+    @Test
+    public void closingOnTheLastPageSendsNothingMore() throws NamingException {
+        try (ADPagedSearch search = lookup.searchUsersPaged("(samaccountname=*)", 500)) {
+            for(int i = 0; i < 5; i++){
+                search.next();
+            }
+            assertFalse(search.hasNext());
+        }
+        assertEquals(3, FakeDirectory.requests().size());
+    }
+
+    @Test
+    public void readTimeoutCountsAgainstTheServer() throws NamingException {
+        FakeDirectory.failPage = 1;
+        FakeDirectory.timeout = true;
+        try (ADPagedSearch search = lookup.searchUsersPaged("(samaccountname=*)", 500)) {
+            while(search.hasNext()){
+                search.next();
+            }
+            fail("the second page should time out");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, pool.getConsecutiveFailures());
+        assertEquals(0, pool.getActiveCount());
+    }
+}
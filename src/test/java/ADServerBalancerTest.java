@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The circuit of ADServerBalancer over two FakeDirectory DCs, the first of
+ * which fails until a trial request succeeds.
+ * @author DCConway
+ */
+public class ADServerBalancerTest {
+
+    private static final long OPEN_MILLIS = 500;
+
+    private ADServerBalancer balancer;
+    private ADConnectionPool failing;
+    private ADConnectionPool healthy;
+
+    @Before
+    public void setUp() {
+        FakeDirectory.clear();
+        Hashtable<String,Object> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, FakeDirectory.class.getName());
+        balancer = new ADServerBalancer(env, Arrays.asList("ldap://dc1", "ldap://dc2"), 4, 0);
+        balancer.setOpenMillis(OPEN_MILLIS);
+        List<ADConnectionPool> servers = balancer.getServers();
+        failing = servers.get(0);
+        healthy = servers.get(1);
+        for(int i = 0; i < balancer.getFailureThreshold(); i++){
+            failing.recordFailure();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        balancer.close();
+    }
+
+    @Test
+    public void openCircuitKeepsTheDcOutOfRotation() throws NamingException {
+        assertFalse(balancer.isAvailable(failing));
+        try (ADConnectionPool.PooledConnection conn = balancer.borrow()) {
+            assertEquals(0, failing.getActiveCount());
+            assertEquals(1, healthy.getActiveCount());
+        }
+    }
+
+    @Test
+    public void halfOpenCircuitLetsOneTrialThrough() throws NamingException, InterruptedException {
+        Thread.sleep(OPEN_MILLIS + 100);
+        assertTrue(balancer.isAvailable(failing));
+        try (ADConnectionPool.PooledConnection trial = balancer.borrow()) {
+            assertEquals(1, failing.getActiveCount());
+            assertFalse(balancer.isAvailable(failing));
+            List<ADConnectionPool.PooledConnection> others = new ArrayList<>();
+            for(int i = 0; i < 3; i++){
+                others.add(balancer.borrow());
+            }
+            assertEquals(1, failing.getActiveCount());
+            assertEquals(3, healthy.getActiveCount());
+            for(ADConnectionPool.PooledConnection conn : others){
+                conn.close();
+            }
+            trial.recordSuccess(1000000);
+        }
+        assertTrue(balancer.isAvailable(failing));
+        assertEquals(0, failing.getConsecutiveFailures());
+    }
+
+    @Test
+    public void failedTrialOpensTheCircuitAgain() throws NamingException, InterruptedException {
+        Thread.sleep(OPEN_MILLIS + 100);
+        try (ADConnectionPool.PooledConnection trial = balancer.borrow()) {
+            assertEquals(1, failing.getActiveCount());
+            trial.recordFailure();
+        }
+        assertFalse(balancer.isAvailable(failing));
+        try (ADConnectionPool.PooledConnection conn = balancer.borrow()) {
+            assertEquals(0, failing.getActiveCount());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ADTypeaheadIndex over 50 users named Smith with a scan budget of 10, so
+ * a search for "smith" can not look at every entry.
+ * @author DCConway
+ */
+public class ADTypeaheadIndexTest {
+
+    private static final int USERS = 50;
+
+    private ADTypeaheadIndex index;
+    private final List<ADUserRecord> records = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for(int i = 0; i < USERS; i++){
+            records.add(user("user" + i, "Smith", "First" + i));
+        }
+        index = new ADTypeaheadIndex();
+        index.setMaxScan(10);
+        index.rebuild(records);
+    }
+
+    private static ADUserRecord user(String userName, String lastName, String firstName){
+        Map<String,String> attributes = new HashMap<>();
+        attributes.put("userName", userName);
+        attributes.put("lastName", lastName);
+        attributes.put("firstName", firstName);
+        attributes.put("displayName", lastName + ", " + firstName);
+        attributes.put("mail", userName + "@example.com");
+        return ADAttributeMapping.DEFAULT.project(attributes);
+    }
+
+    @Test
+    public void findsByPrefixOfAnyField() {
+        assertEquals("user7", index.search("first7", 5).get(0).get("userName"));
+        assertEquals("user7", index.search("user7@", 5).get(0).get("userName"));
+        assertTrue(index.search("nobody", 5).isEmpty());
+    }
+
+    @Test
+    public void changedUserIsFoundPastTheMainScanBudget() {
+        ADUserRecord before = records.get(USERS - 1);
+        ADUserRecord after = user("user" + (USERS - 1), "Smith", "Changed");
+        index.update(Collections.singletonList(before), Collections.singletonList(after));
+
+        List<ADUserRecord> matches = index.search("smith", USERS);
+        assertTrue(matches.contains(after));
+        assertFalse(matches.contains(before));
+        assertEquals(USERS, index.size());
+    }
+
+    @Test
+    public void hiddenEntriesDoNotUseUpTheBudget() {
+        // the first users in key order are changed to names outside the prefix
+        List<ADUserRecord> before = new ArrayList<>();
+        List<ADUserRecord> after = new ArrayList<>();
+        for(int i = 0; i < 10; i++){
+            before.add(records.get(i));
+            after.add(user("user" + i, "Jones", "First" + i));
+        }
+        index.update(before, after);
+
+        assertEquals(10, index.search("smith", USERS).size());
+        assertEquals(10, index.search("jones", USERS).size());
+    }
+}
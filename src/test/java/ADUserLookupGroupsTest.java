@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Nested group lookups against FakeDirectory, with the user in more groups
+ * than the directory returns without paging.
+ * @author DCConway
+ */
+public class ADUserLookupGroupsTest {
+
+    private ADConnectionPool pool;
+    private ADUserLookup lookup;
+    private final List<String> groups = new ArrayList<>();
+    private String otherGroup;
+
+    @Before
+    public void setUp() {
+        FakeDirectory.clear();
+        String bob = FakeDirectory.put("bob", "bob@example.com", 1);
+        String alice = FakeDirectory.put("alice", "alice@example.com", 2);
+        for(int i = 0; i < FakeDirectory.MAX_PAGE_SIZE + 2; i++){
+            groups.add(FakeDirectory.putGroup("group" + i, bob, alice));
+        }
+        otherGroup = FakeDirectory.putGroup("other", alice);
+        Hashtable<String,Object> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, FakeDirectory.class.getName());
+        pool = new ADConnectionPool(env, 2);
+        lookup = new ADUserLookup(FakeDirectory.BASE, null, pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void effectiveGroupsSpanSeveralPages() throws NamingException {
+        assertEquals(new HashSet<>(groups), lookup.getEffectiveGroups("bob"));
+        assertTrue(FakeDirectory.requests().size() > 1);
+    }
+
+    @Test
+    public void isMemberOfSeesGroupsOnLaterPages() throws NamingException {
+        assertTrue(lookup.isMemberOf("bob", groups.get(groups.size() - 1)));
+        assertFalse(lookup.isMemberOf("bob", otherGroup));
+        assertTrue(lookup.isMemberOf("alice", otherGroup));
+    }
+
+    @Test
+    public void unknownUserHasNoGroups() throws NamingException {
+        assertTrue(lookup.getEffectiveGroups("nobody").isEmpty());
+    }
+}
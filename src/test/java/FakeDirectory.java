@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * JNDI context factory for an in-memory directory, use its class name as
+ * Context.INITIAL_CONTEXT_FACTORY. It understands just the filters the
+ * lookup classes send:
+ * <ul>
+ * <li>users by samaccountname, * for all, and by uSNChanged&gt;=n,</li>
+ * <li>the groups a DN is a member of, LDAP_MATCHING_RULE_IN_CHAIN.</li>
+ * </ul>
+ * Entries come back in the order they were first added, PAGE_SIZE per page
+ * whatever page size the client asks for. Like AD a search without the
+ * paged results control fails with more than MAX_PAGE_SIZE results. The
+ * page numbered failPage fails, with a lost connection or, if timeout is
+ * set, the way JNDI reports a read timeout. Every paged request is recorded.
+ * @author DCConway
+ */
+public final class FakeDirectory implements InitialContextFactory {
+
+    static final String BASE = "dc=example,dc=com";
+    static final int PAGE_SIZE = 2;
+    static final int MAX_PAGE_SIZE = 3;
+
+    private static final Pattern USN_FILTER = Pattern.compile("uSNChanged>=(\\d+)");
+    private static final Pattern NAME_FILTER = Pattern.compile("samaccountname=([^)*]+)\\)", Pattern.CASE_INSENSITIVE);
+    private static final String IN_CHAIN = "member:1.2.840.113556.1.4.1941:=";
+    private static final Map<String,Attributes> ENTRIES = new LinkedHashMap<>();
+    private static final List<PageRequest> REQUESTS = new ArrayList<>();
+    static volatile int failPage = -1;
+    static volatile boolean timeout;
+
+    /**
+     * A paged search request as the server got it.
+     */
+    static final class PageRequest {
+        final int size;
+        final int page;
+
+        PageRequest(int size, int page){
+            this.size = size;
+            this.page = page;
+        }
+    }
+
+    static synchronized void clear(){
+        ENTRIES.clear();
+        REQUESTS.clear();
+        failPage = -1;
+        timeout = false;
+    }
+
+    /**
+     * Adds a user, or changes the mail and uSNChanged of one already added.
+     * @return the DN.
+     */
+    static synchronized String put(String userName, String mail, long usn){
+        String dn = "cn=" + userName + "," + BASE;
+        Attributes attrs = ENTRIES.get(dn);
+        if(attrs == null){
+            attrs = new BasicAttributes(true);
+            attrs.put("objectCategory", "person");
+            attrs.put("samaccountname", userName);
+            ENTRIES.put(dn, attrs);
+        }
+        attrs.put("mail", mail);
+        attrs.put("uSNChanged", Long.toString(usn));
+        return dn;
+    }
+
+    /**
+     * Adds a group with the given members. Nesting is not resolved, a group
+     * matches the members it was added with.
+     * @return the DN.
+     */
+    static synchronized String putGroup(String name, String... memberDns){
+        String dn = "cn=" + name + ",ou=groups," + BASE;
+        Attributes attrs = new BasicAttributes(true);
+        attrs.put("objectCategory", "group");
+        Attribute member = new BasicAttribute("member");
+        for(String memberDn : memberDns){
+            member.add(memberDn);
+        }
+        attrs.put(member);
+        ENTRIES.put(dn, attrs);
+        return dn;
+    }
+
+    static synchronized List<PageRequest> requests(){
+        return new ArrayList<>(REQUESTS);
+    }
+
+    private static synchronized List<SearchResult> search(String filter){
+        int chain = filter.indexOf(IN_CHAIN);
+        String memberDn = chain < 0 ? null : filter.substring(chain + IN_CHAIN.length(), filter.indexOf(')', chain));
+        Matcher usn = USN_FILTER.matcher(filter);
+        long fromUsn = usn.find() ? Long.parseLong(usn.group(1)) : 0;
+        Matcher name = NAME_FILTER.matcher(filter);
+        String userName = name.find() ? name.group(1) : null;
+        List<SearchResult> results = new ArrayList<>();
+        for(Map.Entry<String,Attributes> entry : ENTRIES.entrySet()){
+            Attributes attrs = (Attributes) entry.getValue().clone();
+            if(!matches(attrs, memberDn, fromUsn, userName)){
+                continue;
+            }
+            SearchResult result = new SearchResult(entry.getKey(), null, attrs);
+            result.setNameInNamespace(entry.getKey());
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static boolean matches(Attributes attrs, String memberDn, long fromUsn, String userName){
+        try {
+            boolean group = "group".equals(attrs.get("objectCategory").get());
+            if(memberDn != null){
+                return group && attrs.get("member").contains(memberDn);
+            }
+            if(group){
+                return false;
+            }
+            if(userName != null && !userName.equalsIgnoreCase((String) attrs.get("samaccountname").get())){
+                return false;
+            }
+            return Long.parseLong((String) attrs.get("uSNChanged").get()) >= fromUsn;
+        } catch (NamingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static synchronized void record(PageRequest request){
+        REQUESTS.add(request);
+    }
+
+    @Override
+    public Context getInitialContext(Hashtable<?,?> environment) {
+        return (Context) Proxy.newProxyInstance(FakeDirectory.class.getClassLoader(),
+                new Class<?>[]{LdapContext.class}, new Connection());
+    }
+
+    /**
+     * One connection, remembers the paging control of the last request.
+     */
+    private static final class Connection implements InvocationHandler {
+
+        private Control[] requestControls;
+        private Control[] responseControls;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch(method.getName()){
+                case "setRequestControls":
+                    requestControls = (Control[]) args[0];
+                    return null;
+                case "getResponseControls":
+                    return responseControls;
+                case "search":
+                    return search((String) args[1]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "FakeDirectory connection";
+                default:
+                    return null;
+            }
+        }
+
+        private NamingEnumeration<SearchResult> search(String filter) throws NamingException {
+            PagedResultsControl paging = paging();
+            List<SearchResult> results = FakeDirectory.search(filter);
+            if(paging == null){
+                responseControls = null;
+                if(results.size() > MAX_PAGE_SIZE){
+                    throw new SizeLimitExceededException("Sizelimit Exceeded");
+                }
+                return new ResultEnumeration(results.iterator());
+            }
+            PageRequest request = request(paging);
+            record(request);
+            if(request.page == failPage && timeout){
+                throw new NamingException("LDAP response read timed out, timeout used: 30000 ms.");
+            }
+            if(request.page == failPage){
+                throw new CommunicationException("Connection reset reading page " + request.page);
+            }
+            if(request.size == 0){
+                // abandoned, the server drops the search
+                responseControls = new Control[]{responseControl(new byte[0])};
+                return new ResultEnumeration(Collections.<SearchResult>emptyIterator());
+            }
+            int from = Math.min(request.page * PAGE_SIZE, results.size());
+            int to = Math.min(from + PAGE_SIZE, results.size());
+            responseControls = new Control[]{responseControl(to < results.size() ? new byte[]{(byte) (request.page + 1)} : new byte[0])};
+            return new ResultEnumeration(results.subList(from, to).iterator());
+        }
+
+        private PagedResultsControl paging(){
+            if(requestControls != null){
+                for(Control control : requestControls){
+                    if(control instanceof PagedResultsControl){
+                        return (PagedResultsControl) control;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The value is a BER sequence of the size and the cookie, the cookie
+         * is the number of the page asked for.
+         */
+        private static PageRequest request(PagedResultsControl control){
+            byte[] value = control.getEncodedValue();
+            int sizeLength = value[3];
+            int size = 0;
+            for(int i = 0; i < sizeLength; i++){
+                size = (size << 8) | (value[4 + i] & 0xff);
+            }
+            int cookieTag = 4 + sizeLength;
+            int page = value[cookieTag + 1] == 0 ? 0 : value[cookieTag + 2];
+            return new PageRequest(size, page);
+        }
+
+        private static Control responseControl(byte[] cookie) throws NamingException {
+            byte[] value = new byte[7 + cookie.length];
+            value[0] = 0x30;
+            value[1] = (byte) (5 + cookie.length);
+            value[2] = 0x02;
+            value[3] = 1;
+            value[4] = 0;
+            value[5] = 0x04;
+            value[6] = (byte) cookie.length;
+            System.arraycopy(cookie, 0, value, 7, cookie.length);
+            try {
+                return new PagedResultsResponseControl(PagedResultsResponseControl.OID, false, value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private static final class ResultEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Iterator<SearchResult> results;
+
+        ResultEnumeration(Iterator<SearchResult> results){
+            this.results = results;
+        }
+
+        @Override
+        public boolean hasMore() {
+            return results.hasNext();
+        }
+
+        @Override
+        public SearchResult next() {
+            if(!results.hasNext()){
+                throw new NoSuchElementException();
+            }
+            return results.next();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return hasMore();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+            return next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CSV and TSV output of PoiDelimitedWriter, written directly and through
+ * PoiExporter.
+ * @author DCConway
+ */
+public class PoiDelimitedWriterTest {
+
+    /** Size of the writer's char buffer. */
+    private static final int BUFFER_CHARS = 16 * 1024;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private PoiDelimitedWriter writer(char delimiter){
+        return new PoiDelimitedWriter(bytes, delimiter, new PoiExportOptions());
+    }
+
+    private String written(){
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void quotesFieldsWithDelimiterQuoteOrLineBreak() throws IOException {
+        PoiDelimitedWriter writer = writer(',');
+        writer.text("a,b");
+        writer.text("say \"hi\"");
+        writer.text("cr\rlf\ncrlf\r\n");
+        writer.text("plain");
+        writer.text("tab\tonly");
+        writer.text(null);
+        writer.text("");
+        writer.endRow();
+        writer.flush();
+        assertEquals("\"a,b\",\"say \"\"hi\"\"\",\"cr\rlf\ncrlf\r\n\",plain,tab\tonly,,\r\n", written());
+    }
+
+    @Test
+    public void surrogatePairAcrossTheBufferIsKeptWhole() throws IOException {
+        // the high surrogate is the last char of the first buffer
+        String value = filler(BUFFER_CHARS - 1) + "\uD83D\uDE00y";
+        PoiDelimitedWriter writer = writer(',');
+        writer.text(value);
+        writer.endRow();
+        writer.flush();
+        assertEquals(value + "\r\n", written());
+    }
+
+    @Test
+    public void surrogatePairAcrossTheBufferInQuotedField() throws IOException {
+        // opening quote, doubled quote and filler leave the high surrogate last in the buffer
+        String value = "\"" + filler(BUFFER_CHARS - 4) + "\uD83D\uDE00,";
+        PoiDelimitedWriter writer = writer(',');
+        writer.text(value);
+        writer.endRow();
+        writer.flush();
+        assertEquals("\"\"\"" + value.substring(1) + "\"\r\n", written());
+    }
+
+    @Test
+    public void formatsNumbersAndDates() throws IOException {
+        PoiDelimitedWriter writer = writer(',');
+        writer.number(Long.MIN_VALUE);
+        writer.number(Long.MAX_VALUE);
+        writer.number(0L);
+        writer.number(-42L);
+        writer.number(3.0);
+        writer.number(-1e14);
+        writer.number(-2.5);
+        writer.number(1e20);
+        writer.number(new BigDecimal("12345678901234567890.0100"));
+        writer.number(Integer.valueOf(7));
+        writer.number((Number) null);
+        writer.date(new GregorianCalendar(2020, Calendar.JANUARY, 2, 3, 4, 5).getTime());
+        writer.date((Date) null);
+        writer.bool(true);
+        writer.endRow();
+        writer.flush();
+        assertEquals("-9223372036854775808,9223372036854775807,0,-42,3,-100000000000000,-2.5,1.0E20,"
+                + "12345678901234567890.0100,7,,2020-01-02 03:04:05,,true\r\n", written());
+    }
+
+    @Test
+    public void manyNumbersFillSeveralBuffers() throws IOException {
+        PoiDelimitedWriter writer = writer(',');
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 2000; i++){
+            writer.number(Long.MIN_VALUE + i);
+            writer.number(-1234567.0);
+            writer.endRow();
+            expected.append(Long.MIN_VALUE + i).append(",-1234567\r\n");
+        }
+        writer.flush();
+        assertEquals(expected.toString(), written());
+    }
+
+    @Test
+    public void exportsBeansAsTsv() throws Exception {
+        Item item = new Item();
+        item.name = "tab\there";
+        item.count = Long.MIN_VALUE;
+        item.price = 12.0;
+        item.added = new GregorianCalendar(1999, Calendar.DECEMBER, 31, 23, 59, 58).getTime();
+        PoiExportOptions options = new PoiExportOptions();
+        options.setFormat(PoiExportOptions.Format.TSV);
+        assertEquals(PoiDelimitedWriter.TSV_CONTENT_TYPE, PoiDelimitedWriter.contentType(options));
+        PoiExporter.exportSpecificDataToExcel("items.tsv", Arrays.asList("Name", "Count", "Price", "Added"),
+                Collections.singletonList(item), Item.class, Arrays.asList("name", "count", "price", "added"),
+                PoiExportSinks.stream(bytes), options);
+        assertEquals("Name\tCount\tPrice\tAdded\r\n"
+                + "\"tab\there\"\t-9223372036854775808\t12\t1999-12-31 23:59:58\r\n", written());
+    }
+
+    @Test
+    public void exportsGzippedCsv() throws Exception {
+        List<Map<String,String>> rows = new ArrayList<>();
+        StringBuilder expected = new StringBuilder("Key,Value\r\n");
+        for(int i = 0; i < 5000; i++){
+            Map<String,String> row = new HashMap<>();
+            row.put("Key", "k" + i);
+            row.put("Value", i % 2 == 0 ? "even, " + i : "odd");
+            rows.add(row);
+            expected.append("k").append(i).append(',').append(i % 2 == 0 ? "\"even, " + i + "\"" : "odd").append("\r\n");
+        }
+        PoiExportOptions options = new PoiExportOptions();
+        options.setFormat(PoiExportOptions.Format.CSV);
+        options.setGzip(true);
+        assertEquals(PoiDelimitedWriter.GZIP_CONTENT_TYPE, PoiDelimitedWriter.contentType(options));
+        PoiExporter.exportUsingList("rows.csv.gz", Arrays.asList("Key", "Value"), rows, PoiExportSinks.stream(bytes), options);
+        assertEquals(expected.toString(), gunzip(bytes.toByteArray()));
+    }
+
+    private static String filler(int length){
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    private static String gunzip(byte[] gzipped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0){
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public static class Item {
+        String name;
+        long count;
+        double price;
+        Date added;
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PoiExportService with exports that write a few bytes, most of them held
+ * on a latch so the test decides when a worker is free.
+ * @author DCConway
+ */
+public class PoiExportServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PoiExportService service;
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        if(service != null){
+            service.close();
+        }
+    }
+
+    private PoiExportService service(int workers, int maxQueued, int maxJobsPerUser, long resultTtlMillis) throws IOException {
+        service = new PoiExportService(workers, maxQueued, maxJobsPerUser, folder.newFolder().toPath(), resultTtlMillis, TimeUnit.MILLISECONDS);
+        return service;
+    }
+
+    /**
+     * Records its name when it starts, then waits for release before writing.
+     */
+    private PoiExportService.Export export(final String name, final CountDownLatch release){
+        return new PoiExportService.Export() {
+            @Override
+            public void write(PoiExportSink sink, PoiExportOptions options) throws Exception {
+                started.add(name);
+                if(release != null){
+                    release.await();
+                }
+                try (OutputStream out = sink.open(name + ".csv", PoiDelimitedWriter.CSV_CONTENT_TYPE)) {
+                    out.write(name.getBytes("UTF-8"));
+                }
+            }
+        };
+    }
+
+    private static PoiExportService.Job await(PoiExportService service, String id, String user, PoiExportService.State state) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        PoiExportService.Job job = service.getJob(id, user);
+        while(job.getState() != state){
+            if(System.currentTimeMillis() > end){
+                fail(id + " is " + job.getState() + ", not " + state);
+            }
+            Thread.sleep(5);
+        }
+        return job;
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(started.size() < count){
+            if(System.currentTimeMillis() > end){
+                fail("only " + started + " started");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void higherPriorityStartsFirst() throws Exception {
+        service(1, 10, 10, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        String blocker = service.submit("u", 0, "blocker", new PoiExportOptions(), export("blocker", release));
+        awaitStarted(1);
+        String low = service.submit("u", 0, "low", new PoiExportOptions(), export("low", null));
+        String high1 = service.submit("u", 5, "high1", new PoiExportOptions(), export("high1", null));
+        String mid = service.submit("u", 1, "mid", new PoiExportOptions(), export("mid", null));
+        String high2 = service.submit("u", 5, "high2", new PoiExportOptions(), export("high2", null));
+        release.countDown();
+        for(String id : new String[]{blocker, low, high1, mid, high2}){
+            await(service, id, "u", PoiExportService.State.DONE);
+        }
+        assertEquals(Arrays.asList("blocker", "high1", "high2", "mid", "low"), started);
+    }
+
+    @Test
+    public void limitsJobsPerUserAndQueueLength() throws Exception {
+        service(1, 2, 2, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        String first = service.submit("a", 0, "a1", new PoiExportOptions(), export("a1", release));
+        service.submit("a", 0, "a2", new PoiExportOptions(), export("a2", release));
+        try {
+            service.submit("a", 0, "a3", new PoiExportOptions(), export("a3", null));
+            fail("a has two exports already");
+        } catch (RejectedExecutionException expected) {
+        }
+        service.submit("b", 0, "b1", new PoiExportOptions(), export("b1", release));
+        try {
+            // one running and two waiting fill the worker and the queue
+            service.submit("c", 0, "c1", new PoiExportOptions(), export("c1", null));
+            fail("the queue is full");
+        } catch (RejectedExecutionException expected) {
+        }
+        release.countDown();
+        await(service, first, "a", PoiExportService.State.DONE);
+        // the finished job frees its slot
+        assertNotNull(service.submit("a", 0, "a3", new PoiExportOptions(), export("a3", null)));
+    }
+
+    @Test
+    public void cancelDropsAQueuedJobOnly() throws Exception {
+        service(1, 10, 2, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        String running = service.submit("u", 0, "running", new PoiExportOptions(), export("running", release));
+        awaitStarted(1);
+        String queued = service.submit("u", 0, "queued", new PoiExportOptions(), export("queued", null));
+        assertFalse(service.cancel(queued, "someone else"));
+        assertFalse(service.cancel(running, "u"));
+        assertTrue(service.cancel(queued, "u"));
+        PoiExportService.Job job = service.getJob(queued, "u");
+        assertEquals(PoiExportService.State.CANCELLED, job.getState());
+        assertTrue(job.getFinished() > 0);
+        // the cancelled job no longer counts against the user
+        String next = service.submit("u", 0, "next", new PoiExportOptions(), export("next", null));
+        release.countDown();
+        await(service, running, "u", PoiExportService.State.DONE);
+        await(service, next, "u", PoiExportService.State.DONE);
+        assertEquals(Arrays.asList("running", "next"), started);
+    }
+
+    @Test
+    public void finishedJobsFreeTheirSlots() throws Exception {
+        service(1, 0, 1, 60000);
+        String done = service.submit("u", 0, "done", new PoiExportOptions(), export("done", null));
+        PoiExportService.Job job = await(service, done, "u", PoiExportService.State.DONE);
+        assertEquals(4, job.getSize());
+        assertEquals(PoiDelimitedWriter.CSV_CONTENT_TYPE, job.getContentType());
+
+        String failed = service.submit("u", 0, "failed", new PoiExportOptions(), new PoiExportService.Export() {
+            @Override
+            public void write(PoiExportSink sink, PoiExportOptions options) throws Exception {
+                sink.open("failed.xlsx", PoiExportSinks.XLSX_CONTENT_TYPE).write(1);
+                throw new IllegalStateException("broken");
+            }
+        });
+        job = await(service, failed, "u", PoiExportService.State.FAILED);
+        assertEquals("broken", job.getError().getMessage());
+        assertEquals(-1, service.transferTo(failed, "u", new CollectingChannel(null)));
+
+        String again = service.submit("u", 0, "again", new PoiExportOptions(), export("again", null));
+        await(service, again, "u", PoiExportService.State.DONE);
+        assertTrue(service.remove(done, "u"));
+        assertNull(service.getJob(done, "u"));
+        // only the file of the last job is left
+        assertEquals(1, spoolFiles().size());
+    }
+
+    @Test
+    public void expiredJobKeepsItsFileUntilTheDownloadEnds() throws Exception {
+        service(1, 0, 1, 50);
+        String id = service.submit("u", 0, "file", new PoiExportOptions(), export("file", null));
+        await(service, id, "u", PoiExportService.State.DONE);
+        assertEquals(1, spoolFiles().size());
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CollectingChannel target = new CollectingChannel(writing);
+        ExecutorService downloader = Executors.newSingleThreadExecutor();
+        try {
+            final String jobId = id;
+            Future<Long> download = downloader.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return service.transferTo(jobId, "u", target);
+                }
+            });
+            assertTrue(writing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            // the cleaner runs every second at most
+            long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while(service.getJob(id, "u") != null){
+                assertTrue("the job did not expire", System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+            assertEquals(1, spoolFiles().size());
+            target.release.countDown();
+            assertEquals(Long.valueOf(4), download.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals("file", new String(target.bytes(), "UTF-8"));
+            assertEquals(0, spoolFiles().size());
+        } finally {
+            downloader.shutdownNow();
+        }
+        assertEquals(-1, service.transferTo(id, "u", new CollectingChannel(null)));
+    }
+
+    @Test
+    public void closedServiceRejectsExports() throws Exception {
+        service(1, 0, 1, 60000);
+        service.close();
+        try {
+            service.submit("u", 0, "late", new PoiExportOptions(), export("late", null));
+            fail("the service is closed");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    private List<Path> spoolFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for(File dir : folder.getRoot().listFiles()){
+            for(File file : dir.listFiles()){
+                files.add(file.toPath());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Collects what is written. With a latch it signals it and then blocks
+     * on release before taking the first bytes.
+     */
+    private static final class CollectingChannel implements WritableByteChannel {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch writing;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        CollectingChannel(CountDownLatch writing){
+            this.writing = writing;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if(writing != null){
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = src.remaining();
+            while(src.hasRemaining()){
+                out.write(src.get());
+            }
+            return n;
+        }
+
+        byte[] bytes(){
+            return out.toByteArray();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
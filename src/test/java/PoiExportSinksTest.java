@@ -0,0 +1,100 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * The servlet sink against a response that records what reaches it.
+ * @author DCConway
+ */
+public class PoiExportSinksTest {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private HttpServletResponse response;
+    private boolean committed;
+    private int contentLength = -1;
+    private int flushes;
+
+    @Before
+    public void setUp() {
+        final ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                committed = true;
+                body.write(b);
+            }
+
+            @Override
+            public void flush() {
+                committed = true;
+                flushes++;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+        };
+        response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch(method.getName()){
+                    case "getOutputStream":
+                        return stream;
+                    case "setContentLength":
+                        contentLength = (Integer) args[0];
+                        return null;
+                    case "isCommitted":
+                        return committed;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void smallExportIsSentWithItsLength() throws IOException {
+        OutputStream out = PoiExportSinks.servlet(response, 16).open("a.xlsx", PoiExportSinks.XLSX_CONTENT_TYPE);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        assertEquals(3, contentLength);
+        assertEquals(3, body.size());
+    }
+
+    @Test
+    public void abortBeforeCommitLeavesTheResponseAlone() throws IOException {
+        OutputStream out = PoiExportSinks.servlet(response, 16).open("a.xlsx", PoiExportSinks.XLSX_CONTENT_TYPE);
+        out.write(new byte[]{1, 2, 3});
+        PoiExportSinks.abort(out);
+        assertFalse(committed);
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void abortAfterCommitDoesNotFinishTheResponse() throws IOException {
+        OutputStream out = PoiExportSinks.servlet(response, 4).open("a.xlsx", PoiExportSinks.XLSX_CONTENT_TYPE);
+        out.write(new byte[10]);
+        PoiExportSinks.abort(out);
+        // what was buffered is dropped and nothing is flushed
+        assertEquals(0, body.size());
+        assertEquals(0, flushes);
+        assertEquals(-1, contentLength);
+        out.close();
+        assertEquals(0, flushes);
+        assertEquals(0, body.size());
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exports with PoiExporter read back with PoiImporter, plain and streaming
+ * workbooks, plus hand made workbooks for what an export does not write.
+ * @author DCConway
+ */
+public class PoiImporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> MAP_HEADERS = Arrays.asList("Name", "City", "Code");
+
+    @Test
+    public void beansRoundTripThroughXssf() throws Exception {
+        List<Person> people = people(20);
+        assertEquals(people, importAll(exportBeans(people, options(false))));
+    }
+
+    @Test
+    public void beansRoundTripThroughSxssf() throws Exception {
+        List<Person> people = people(20);
+        assertEquals(people, importAll(exportBeans(people, options(true))));
+    }
+
+    @Test
+    public void mapsRoundTripWithSharedAndInlineStrings() throws Exception {
+        List<Map<String,String>> rows = new ArrayList<>();
+        for(int i = 0; i < 30; i++){
+            Map<String,String> row = new HashMap<>();
+            row.put("Name", "name " + i);
+            if(i % 3 != 0){
+                row.put("City", i % 2 == 0 ? "Springfield" : "Shelbyville");
+            }
+            if(i % 4 != 0){
+                row.put("Code", "00" + i);
+            }
+            rows.add(row);
+        }
+        for(boolean streaming : new boolean[]{false, true}){
+            Path file = folder.newFile().toPath();
+            PoiExporter.exportUsingList("maps.xlsx", MAP_HEADERS, rows, PoiExportSinks.file(file), options(streaming));
+            try (Stream<HashMap<String,String>> imported = PoiImporter.streamMaps(file)) {
+                assertEquals(rows, imported.collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void sparseRowsAndBlankCellsInA1904Workbook() throws Exception {
+        Calendar born = new GregorianCalendar(1970, Calendar.MARCH, 4, 5, 6, 7);
+        Path file = folder.newFile().toPath();
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            (wb.getCTWorkbook().isSetWorkbookPr() ? wb.getCTWorkbook().getWorkbookPr() : wb.getCTWorkbook().addNewWorkbookPr()).setDate1904(true);
+            assertTrue(wb.isDate1904());
+            CellStyle date = wb.createCellStyle();
+            date.setDataFormat(wb.createDataFormat().getFormat("yyyy-mm-dd hh:mm:ss"));
+            Sheet sheet = wb.createSheet("People");
+            // the header is not on the first row and the rows have gaps
+            Row header = sheet.createRow(2);
+            header.createCell(0).setCellValue("name");
+            header.createCell(2).setCellValue("born");
+            header.createCell(3).setCellValue("age");
+            Row first = sheet.createRow(3);
+            first.createCell(0).setCellValue("Ann");
+            first.createCell(2).setCellValue(born.getTime());
+            first.getCell(2).setCellStyle(date);
+            first.createCell(3).setCellValue(41);
+            // a row of blank cells
+            Row blank = sheet.createRow(5);
+            blank.createCell(0).setCellStyle(date);
+            blank.createCell(3);
+            // only the last column
+            Row sparse = sheet.createRow(9);
+            sparse.createCell(3).setCellValue(7);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                wb.write(out);
+            }
+        }
+        List<Person> people = importAll(file);
+        assertEquals(2, people.size());
+        assertEquals("Ann", people.get(0).name);
+        assertEquals(born.getTime(), people.get(0).born);
+        assertEquals(41, people.get(0).age);
+        assertNull(people.get(1).name);
+        assertNull(people.get(1).born);
+        assertEquals(7, people.get(1).age);
+    }
+
+    @Test
+    public void conversionErrorNamesTheCell() throws Exception {
+        List<Person> people = people(3);
+        people.get(1).age = Short.MAX_VALUE + 1;
+        assertImportFails(exportBeans(people, options(false)), "Export!C3: 32768 is out of range");
+
+        people = people(3);
+        for(Person p : people){
+            p.score = Math.rint(p.score);
+        }
+        people.get(2).score = 2.5;
+        assertImportFails(exportBeans(people, options(true)), "Export!D4: Not a whole number: 2.5");
+    }
+
+    @Test
+    public void importBeansReadsSheetsInParallel() throws Exception {
+        List<Person> people = people(45);
+        PoiExportOptions options = options(true);
+        options.setRowsPerSheet(10);
+        options.setParallelism(3);
+        Path file = exportBeans(people, options);
+        final Map<String,List<Person>> sheets = new TreeMap<>();
+        PoiImporter.importBeans(file, Person.class, new PoiImportHandler<Person>() {
+            @Override
+            public void rows(String sheetName, List<Person> rows) {
+                synchronized(sheets){
+                    List<Person> sheet = sheets.get(sheetName);
+                    if(sheet == null){
+                        sheet = new ArrayList<>();
+                        sheets.put(sheetName, sheet);
+                    }
+                    sheet.addAll(rows);
+                }
+            }
+        }, 3, 4);
+        assertEquals(Arrays.asList("Export", "Export 2", "Export 3", "Export 4", "Export 5"), new ArrayList<>(sheets.keySet()));
+        List<Person> imported = new ArrayList<>();
+        for(List<Person> sheet : sheets.values()){
+            imported.addAll(sheet);
+        }
+        assertEquals(people, imported);
+    }
+
+    private static PoiExportOptions options(boolean streaming){
+        PoiExportOptions options = new PoiExportOptions();
+        options.setStreaming(streaming);
+        return options;
+    }
+
+    /**
+     * Every other person has no name, birth date or rank.
+     */
+    private static List<Person> people(int count){
+        List<Person> people = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            Person p = new Person();
+            p.id = 1000000000000L + i;
+            p.age = 20 + i;
+            p.score = i * 1.25;
+            p.active = i % 3 == 0;
+            if(i % 2 == 0){
+                p.name = "Person " + i;
+                p.born = new GregorianCalendar(1950 + i, i % 12, 1 + i % 28, i % 24, i % 60, i % 60).getTime();
+                p.rank = i;
+            }
+            people.add(p);
+        }
+        return people;
+    }
+
+    private Path exportBeans(List<Person> people, PoiExportOptions options) throws Exception {
+        Path file = folder.newFile().toPath();
+        PoiExporter.exportToExcel("people.xlsx", PoiExportPlan.declaredFields(Person.class), people, Person.class, PoiExportSinks.file(file), options);
+        return file;
+    }
+
+    private static List<Person> importAll(Path file) throws IOException, IllegalAccessException {
+        try (Stream<Person> imported = PoiImporter.streamBeans(file, Person.class)) {
+            return imported.collect(Collectors.toList());
+        }
+    }
+
+    private static void assertImportFails(Path file, String message) throws IOException, IllegalAccessException {
+        try (Stream<Narrow> imported = PoiImporter.streamBeans(file, PoiExportPlan.declaredFields(Person.class), Narrow.class, Arrays.asList("name", "id", "age", "score"))) {
+            imported.count();
+            fail("the import should fail with " + message);
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(message));
+            assertFalse(ex.getCause() == null);
+        }
+    }
+
+    public static class Person {
+        String name;
+        long id;
+        int age;
+        double score;
+        Date born;
+        Integer rank;
+        boolean active;
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Person)){
+                return false;
+            }
+            Person p = (Person) o;
+            return Objects.equals(name, p.name) && id == p.id && age == p.age && score == p.score
+                    && Objects.equals(born, p.born) && Objects.equals(rank, p.rank) && active == p.active;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, id, age);
+        }
+
+        @Override
+        public String toString() {
+            return name + "/" + id + "/" + age + "/" + score + "/" + born + "/" + rank + "/" + active;
+        }
+    }
+
+    /**
+     * Reads the score of a Person as a whole number and the age as a short.
+     */
+    public static class Narrow {
+        String name;
+        long id;
+        short age;
+        long score;
+    }
+}